@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.apache.lucene.index.IndexWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when the changes made through a long-lived index writer are committed.
+ *
+ * A commit is issued in the background once a given number of changes is pending,
+ * or periodically while there are uncommitted changes. Commits can also be forced
+ * with {@link #flush()}, and happen one last time when the policy is closed.
+ *
+ * The writers of a sharded index are committed together, each shard only if it changed.
+ *
+ */
+public class CommitPolicy implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CommitPolicy.class);
+
+    private final List<IndexWriter> writers;
+    private final long maxPendingChanges;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong pendingChanges = new AtomicLong();
+    private final AtomicBoolean commitScheduled = new AtomicBoolean();
+    private final AtomicLong commitCount = new AtomicLong();
+    private final Object commitLock = new Object();
+
+    /**
+     * Creates and starts a commit policy.
+     *
+     * @param writer the index writer to commit
+     * @param maxPendingChanges the number of changes after which a commit is issued, 0 to disable
+     * @param intervalMs the period between commits while changes are pending (in ms), 0 to disable
+     */
+    public CommitPolicy(IndexWriter writer, long maxPendingChanges, long intervalMs) {
+        this(Collections.singletonList(writer), maxPendingChanges, intervalMs);
+    }
+
+    /**
+     * Creates and starts a commit policy over the writers of a sharded index.
+     *
+     * @param writers the index writers to commit
+     * @param maxPendingChanges the number of changes after which a commit is issued, 0 to disable
+     * @param intervalMs the period between commits while changes are pending (in ms), 0 to disable
+     */
+    public CommitPolicy(List<IndexWriter> writers, long maxPendingChanges, long intervalMs) {
+        this.writers = new ArrayList<>(writers);
+        this.maxPendingChanges = maxPendingChanges;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lucene-commit");
+            t.setDaemon(true);
+            return t;
+        });
+        if (intervalMs > 0) {
+            this.scheduler.scheduleWithFixedDelay(this::commitQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Records changes made to the index, scheduling a commit if too many are pending.
+     *
+     * @param changes the number of added, updated or deleted documents
+     */
+    public void onChange(long changes) {
+        long pending = pendingChanges.addAndGet(changes);
+        if (maxPendingChanges > 0 && pending >= maxPendingChanges && commitScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    commitScheduled.set(false);
+                    commitQuietly();
+                });
+            } catch (RejectedExecutionException ex) {
+                // shutting down, the last commit is done on close
+                commitScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Commits all pending changes immediately, in the calling thread.
+     *
+     * @throws IOException if the commit fails
+     */
+    public void flush() throws IOException {
+        synchronized (commitLock) {
+            long pending = pendingChanges.getAndSet(0);
+            if (pending == 0 && !hasUncommittedChanges()) {
+                return;
+            }
+            try {
+                for (IndexWriter writer : writers) {
+                    if (writer.hasUncommittedChanges()) {
+                        writer.commit();
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                pendingChanges.addAndGet(pending);
+                throw ex;
+            }
+            long n = commitCount.incrementAndGet();
+            logger.debug("Committed {} change(s) to the index (commit #{})", pending, n);
+        }
+    }
+
+    private boolean hasUncommittedChanges() {
+        for (IndexWriter writer : writers) {
+            if (writer.hasUncommittedChanges()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of changes not yet committed
+     */
+    public long getPendingChanges() {
+        return pendingChanges.get();
+    }
+
+    /**
+     * @return the number of commits performed by this policy
+     */
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+
+    private void commitQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException ex) {
+            logger.error("Failed to commit index changes", ex);
+        }
+    }
+
+    /**
+     * Stops the background commits and commits any pending changes.
+     *
+     * @throws IOException if the last commit fails
+     */
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
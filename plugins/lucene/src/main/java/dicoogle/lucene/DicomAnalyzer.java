@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.DelegatingAnalyzerWrapper;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.miscellaneous.LengthFilter;
+import org.apache.lucene.analysis.miscellaneous.LimitTokenCountAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.TrimFilter;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.util.CharTokenizer;
+import org.dcm4che2.data.VR;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Analyzes each field according to the VR of the attribute it holds.
+ *
+ * Attributes whose values are identifiers, codes, dates or times (UI, CS, DA, TM, DT, AS and
+ * AE) are indexed as one term per value, trimmed and lower-cased, so that a query on such an
+ * attribute is a single term lookup. All other text, such as person names and descriptions,
+ * goes through the {@link StandardAnalyzer}, as do all attributes of an index built before
+ * analysis by VR. The same analyzer must be used to index and to
+ * parse queries, so that both agree on the terms of every field.
+ *
+ * The auxiliary suffix fields of substring search hold every suffix of the lower-cased
+ * words of their attribute's value.
+ *
+ */
+public final class DicomAnalyzer extends DelegatingAnalyzerWrapper {
+
+    /** the VRs whose values are indexed as single terms */
+    public static final Set<VR> KEYWORD_VRS = Collections.unmodifiableSet(new HashSet<>(
+            Arrays.asList(VR.UI, VR.CS, VR.DA, VR.TM, VR.DT, VR.AS, VR.AE)));
+
+    /** Splits a value on the multi-value delimiter, one term per value */
+    public static final class ValueAnalyzer extends Analyzer {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            Tokenizer source = new CharTokenizer() {
+                @Override
+                protected boolean isTokenChar(int c) {
+                    return c != '\\';
+                }
+            };
+            TokenStream result = new TrimFilter(source);
+            result = new LengthFilter(result, 1, Integer.MAX_VALUE);
+            result = new LowerCaseFilter(result);
+            return new TokenStreamComponents(source, result);
+        }
+
+        @Override
+        protected TokenStream normalize(String fieldName, TokenStream in) {
+            return new LowerCaseFilter(in);
+        }
+    }
+
+    /** Splits text into lower-cased words, and emits every suffix of each word */
+    public static final class SuffixAnalyzer extends Analyzer {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            Tokenizer source = new StandardTokenizer();
+            TokenStream result = new LowerCaseFilter(source);
+            result = new SuffixFilter(result);
+            return new TokenStreamComponents(source, result);
+        }
+
+        @Override
+        protected TokenStream normalize(String fieldName, TokenStream in) {
+            return new LowerCaseFilter(in);
+        }
+    }
+
+    private final Analyzer text = new StandardAnalyzer();
+    private final Analyzer suffixes = new SuffixAnalyzer();
+    private final Analyzer value = new ValueAnalyzer();
+    private final Analyzer exact = new KeywordAnalyzer();
+    private final Analyzer others;
+    private final Set<String> keyFields;
+    private final Supplier<IndexingPlan> plan;
+    private final boolean vrAnalysis;
+
+    /** the analyzer chosen for each field, for the plan it was chosen with */
+    private volatile IndexingPlan cachedPlan;
+    private final Map<String, Analyzer> cache = new ConcurrentHashMap<>();
+
+    /**
+     * @param plan provides the current indexing plan, or null to analyze all fields as text
+     * @param keyFields the fields holding exact keys, which are never tokenized
+     * @param othersMaxTokens the maximum number of tokens indexed in the "others" field, 0 for no limit
+     */
+    public DicomAnalyzer(Supplier<IndexingPlan> plan, Collection<String> keyFields, int othersMaxTokens) {
+        this(plan, keyFields, othersMaxTokens, true);
+    }
+
+    /**
+     * @param plan provides the current indexing plan, or null to analyze all fields as text
+     * @param keyFields the fields holding exact keys, which are never tokenized
+     * @param othersMaxTokens the maximum number of tokens indexed in the "others" field, 0 for no limit
+     * @param vrAnalysis whether attributes are analyzed according to their VR, false to analyze them
+     *                   as text the way older versions of the plugin did
+     */
+    public DicomAnalyzer(Supplier<IndexingPlan> plan, Collection<String> keyFields, int othersMaxTokens,
+            boolean vrAnalysis) {
+        super(PER_FIELD_REUSE_STRATEGY);
+        this.plan = plan;
+        this.vrAnalysis = vrAnalysis;
+        this.keyFields = new HashSet<>(keyFields);
+        // stops reading the field's content once the limit is reached
+        this.others = (othersMaxTokens > 0) ? new LimitTokenCountAnalyzer(text, othersMaxTokens) : text;
+    }
+
+    @Override
+    protected Analyzer getWrappedAnalyzer(String fieldName) {
+        if (fieldName.equals("others")) {
+            return others;
+        }
+        if (keyFields.contains(fieldName)) {
+            return exact;
+        }
+        if (fieldName.startsWith(IndexSchema.SUFFIX_PREFIX)) {
+            return suffixes;
+        }
+        if (plan == null || !vrAnalysis) {
+            return text;
+        }
+        IndexingPlan current = plan.get();
+        if (current != cachedPlan) {
+            cache.clear();
+            cachedPlan = current;
+        }
+        Analyzer a = cache.get(fieldName);
+        if (a == null) {
+            VR vr = current.getVR(fieldName);
+            a = (vr != null && KEYWORD_VRS.contains(vr)) ? value : text;
+            cache.put(fieldName, a);
+        }
+        return a;
+    }
+
+    /**
+     * @param field a field name
+     * @return the VR of the attribute held in the field, or null if it is not known
+     */
+    public VR getVR(String field) {
+        return (plan != null) ? plan.get().getVR(field) : null;
+    }
+
+    @Override
+    public String toString() {
+        return "DicomAnalyzer{keywordVRs=" + (vrAnalysis ? KEYWORD_VRS : Collections.emptySet())
+                + ", keyFields=" + keyFields + "}";
+    }
+}
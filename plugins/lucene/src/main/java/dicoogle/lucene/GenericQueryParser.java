@@ -18,13 +18,30 @@
  */
 package dicoogle.lucene;
 
+import dicoogle.lucene.dicom.DicomDates;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.DoublePoint;
 import org.apache.lucene.document.FloatPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.RegexpQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.dcm4che2.data.VR;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -33,14 +50,46 @@ import java.util.regex.Pattern;
 /**
  * A query parser that is also compatible with numeric ranges.
  *
- * This allows terms like "MyField:Int:[0 TO 200]" to become allowed, as well as
- * "MyField:Float:[1 TO 2]".
+ * Numbers are queried on their points by naming the field with its type, as in
+ * "SeriesNumber#long:[0 TO 200]", "SliceThickness#double:{1 TO 2]" or "SeriesNumber#long:5".
+ * Bounds are exact, and inclusive or exclusive as written. Ranges on integer and decimal
+ * attributes are typed automatically when the query is parsed with a {@link DicomAnalyzer}.
+ * The older forms "MyField:Int:[0 TO 200]", "MyField:Float:[1 TO 2]" and "MyField:Numeric:[1 TO 2]"
+ * are still accepted. Their keyword does not tell the type of the values, which is resolved from
+ * the attribute's VR like for untyped ranges, and both types are queried when the VR is unknown.
+ * On indexes built before typed points, numbers are matched as floats.
+ *
+ * When an {@link IndexSchema} keeps nested attributes in a single keyed field, queries on
+ * their paths (e.g. "ContentSequence_CodeValue:T-04000") are mapped to terms of that field.
+ * Such values are matched exactly, or with wildcard, prefix, fuzzy, regular expression and
+ * range queries over the value.
+ *
+ * Range queries on dates and times (e.g. "StudyDate:[20260101 TO 20260131]") are run on their
+ * point fields, when the index holds them and the query is parsed with a {@link DicomAnalyzer}.
+ * Bounds may be partial (e.g. "StudyDate:[202601 TO 202603]") or open.
+ *
+ * Leading and infix wildcard queries (e.g. "PatientName:*SILVA*") on fields configured for
+ * substring search are run on their suffix fields, as prefix or term queries.
+ *
+ * The presence of an attribute is queried with "_exists_:PatientName", and its absence with
+ * "_missing_:PatientName". Attribute names are matched exactly, or with wildcard and prefix
+ * queries (e.g. "_exists_:ContentSequence_*"). Such queries are rejected on indexes holding
+ * documents indexed before attributes were recorded, which they would not match correctly.
  *
  */
 public class GenericQueryParser extends QueryParser
 {
-    private static final Pattern QUERY_TERM_PATTERN = Pattern.compile("([a-zA-Z_0-9]*:(Float|Numeric|Int):)+");
-    private Set<String> numericTags;
+    /** separates a field name from the type of its values */
+    public static final char TYPE_SEPARATOR = '#';
+    public static final String LONG_TYPE = "long";
+    public static final String DOUBLE_TYPE = "double";
+
+    /** the older typed syntax, e.g. "MyField:Float:[1 TO 2]" */
+    private static final Pattern LEGACY_TYPE_PATTERN = Pattern.compile("\\b([a-zA-Z_0-9]+):(Float|Numeric|Int):");
+
+    private IndexSchema schema = IndexSchema.DEFAULT;
+    /** the fields named with the older typed syntax in the query being parsed */
+    private Set<String> legacyNumericFields = Collections.emptySet();
 
     public GenericQueryParser(){
         super("others", new StandardAnalyzer());
@@ -54,35 +103,388 @@ public class GenericQueryParser extends QueryParser
         super(field, a);
     }
 
+    /**
+     * Sets the layout of the index to query.
+     *
+     * @param schema the index schema
+     */
+    public void setSchema(IndexSchema schema) {
+        this.schema = (schema != null) ? schema : IndexSchema.DEFAULT;
+    }
+
     @Override
     public Query parse(String query) throws ParseException {
-        Matcher matcher = QUERY_TERM_PATTERN.matcher(query);
-        this.numericTags = new HashSet<>();
-        while (matcher.find()) {
-            String field = matcher.group().split(":")[0];
-            numericTags.add(field);
+        // the older syntax only marks the field as numeric, whatever the keyword
+        Matcher matcher = LEGACY_TYPE_PATTERN.matcher(query);
+        legacyNumericFields = Collections.emptySet();
+        if (matcher.find()) {
+            legacyNumericFields = new HashSet<>();
+            StringBuffer sb = new StringBuffer();
+            do {
+                legacyNumericFields.add(matcher.group(1));
+                matcher.appendReplacement(sb, matcher.group(1) + ":");
+            } while (matcher.find());
+            matcher.appendTail(sb);
+            query = sb.toString();
         }
-
-        query = query.replace("Float:", "");
-        query = query.replace("Int:", "");
-        query = query.replace("Numeric:", "");
         return super.parse(query);
     }
 
+    private static Term keyedTerm(String path, String value) {
+        return new Term(IndexSchema.NESTED_FIELD, IndexSchema.keyedTerm(path, value));
+    }
+
+    private static boolean isExistenceField(String field) {
+        return IndexSchema.EXISTS_FIELD.equals(field) || IndexSchema.MISSING_FIELD.equals(field);
+    }
+
+    /**
+     * @param field the pseudo-field of the query
+     * @param names a query matching attribute names in the existence field
+     * @return a query for the documents holding, or lacking, the matched attributes
+     */
+    private Query existenceQuery(String field, Query names) throws ParseException {
+        if (!schema.hasExistence()) {
+            throw new ParseException("The index was created without " + field + " terms, rebuild it to query " + field);
+        }
+        if (IndexSchema.EXISTS_FIELD.equals(field)) {
+            return names;
+        }
+        return new BooleanQuery.Builder()
+                .add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST)
+                .add(names, BooleanClause.Occur.MUST_NOT)
+                .build();
+    }
+
+    private static Term existenceTerm(String name) {
+        return new Term(IndexSchema.EXISTS_FIELD, name);
+    }
+
+    @Override
+    protected Query getFieldQuery(String field, String queryText, boolean quoted) throws ParseException {
+        if (isTypedField(field)) {
+            return numericRangeQuery(field, queryText.trim(), queryText.trim(), true, true);
+        }
+        if (isExistenceField(field)) {
+            return existenceQuery(field, new TermQuery(existenceTerm(queryText.trim())));
+        }
+        if (schema.isKeyedPath(field)) {
+            return new TermQuery(keyedTerm(field, queryText));
+        }
+        return super.getFieldQuery(field, queryText, quoted);
+    }
+
+    @Override
+    protected Query getFieldQuery(String field, String queryText, int slop) throws ParseException {
+        if (isTypedField(field)) {
+            return numericRangeQuery(field, queryText.trim(), queryText.trim(), true, true);
+        }
+        if (isExistenceField(field)) {
+            return existenceQuery(field, new TermQuery(existenceTerm(queryText.trim())));
+        }
+        if (schema.isKeyedPath(field)) {
+            return new TermQuery(keyedTerm(field, queryText));
+        }
+        return super.getFieldQuery(field, queryText, slop);
+    }
+
+    @Override
+    protected Query getPrefixQuery(String field, String termStr) throws ParseException {
+        if (isExistenceField(field)) {
+            return existenceQuery(field, new PrefixQuery(existenceTerm(termStr)));
+        }
+        if (schema.isKeyedPath(field)) {
+            return new PrefixQuery(keyedTerm(field, termStr));
+        }
+        return super.getPrefixQuery(field, termStr);
+    }
+
+    @Override
+    protected Query getWildcardQuery(String field, String termStr) throws ParseException {
+        if (isExistenceField(field)) {
+            return existenceQuery(field, new WildcardQuery(existenceTerm(termStr)));
+        }
+        if (termStr.startsWith("*") && schema.hasSuffixes(field)) {
+            Query q = suffixQuery(field, termStr);
+            if (q != null) {
+                return q;
+            }
+        }
+        if (schema.isKeyedPath(field)) {
+            return new WildcardQuery(keyedTerm(field, termStr));
+        }
+        return super.getWildcardQuery(field, termStr);
+    }
+
+    @Override
+    protected Query getFuzzyQuery(String field, String termStr, float minSimilarity) throws ParseException {
+        if (schema.isKeyedPath(field)) {
+            int maxEdits = FuzzyQuery.floatToEdits(minSimilarity, termStr.codePointCount(0, termStr.length()));
+            // the path must match exactly
+            return new FuzzyQuery(keyedTerm(field, termStr), maxEdits, field.length() + 1);
+        }
+        return super.getFuzzyQuery(field, termStr, minSimilarity);
+    }
+
+    @Override
+    protected Query getRegexpQuery(String field, String termStr) throws ParseException {
+        if (schema.isKeyedPath(field)) {
+            return new RegexpQuery(keyedTerm(field, "(" + termStr + ")"));
+        }
+        return super.getRegexpQuery(field, termStr);
+    }
+
     @Override
     protected Query getRangeQuery(String field, String low, String high, boolean startInclusive, boolean endInclusive) throws ParseException
     {
-        if (numericTags.contains(field))
+        if (isTypedField(field))
+        {
+            return numericRangeQuery(field, low, high, startInclusive, endInclusive);
+        }
+
+        if (legacyNumericFields.contains(field))
         {
-            final String pointField = "_point_" + field;
-            return FloatPoint.newRangeQuery(pointField,
-                    Float.parseFloat(low),
-                    Float.parseFloat(high));
+            return legacyNumericQuery(field, low, high, startInclusive, endInclusive);
+        }
+
+        if (schema.isKeyedPath(field))
+        {
+            // open ends are bounded by the path, so that other attributes do not match
+            String lower = IndexSchema.keyedTerm(field, (low != null) ? low : "");
+            String upper = (high != null) ? IndexSchema.keyedTerm(field, high) : IndexSchema.keyedTerm(field, "\uffff");
+            return TermRangeQuery.newStringRange(IndexSchema.NESTED_FIELD, lower, upper,
+                    startInclusive || low == null, endInclusive);
+        }
+
+        if (schema.hasDatePoints() && getAnalyzer() instanceof DicomAnalyzer)
+        {
+            VR vr = ((DicomAnalyzer) getAnalyzer()).getVR(field);
+            if (DicomDates.isTemporal(vr))
+            {
+                Query q = dateRangeQuery(field, vr, low, high, startInclusive, endInclusive);
+                if (q != null)
+                {
+                    return q;
+                }
+            }
+        }
+
+        if (schema.hasTypedPoints())
+        {
+            String type = numericType(field);
+            if (type != null && isNumber(low) && isNumber(high))
+            {
+                return numericRangeQuery(field + TYPE_SEPARATOR + type, low, high, startInclusive, endInclusive);
+            }
         }
 
         return super.getRangeQuery(field, low, high, startInclusive, endInclusive);
     }
 
+    /**
+     * @return the type of the points of a numeric attribute, or null if its VR is unknown or not numeric
+     */
+    private String numericType(String field)
+    {
+        if (!(getAnalyzer() instanceof DicomAnalyzer))
+        {
+            return null;
+        }
+        VR vr = ((DicomAnalyzer) getAnalyzer()).getVR(field);
+        IndexingPlan.ValueHandler handler = (vr != null) ? IndexingPlan.ValueHandler.forVR(vr) : null;
+        return (handler == IndexingPlan.ValueHandler.INTEGER) ? LONG_TYPE
+                : (handler == IndexingPlan.ValueHandler.DECIMAL) ? DOUBLE_TYPE : null;
+    }
+
+    /**
+     * Creates a range query for the older typed syntax, on the points the attribute's values are
+     * indexed with, or on both types of points when its VR is unknown.
+     */
+    private Query legacyNumericQuery(String field, String low, String high, boolean startInclusive, boolean endInclusive)
+            throws ParseException
+    {
+        String type = schema.hasTypedPoints() ? numericType(field) : DOUBLE_TYPE;
+        if (type != null)
+        {
+            return numericRangeQuery(field + TYPE_SEPARATOR + type, low, high, startInclusive, endInclusive);
+        }
+        return new BooleanQuery.Builder()
+                .add(numericRangeQuery(field + TYPE_SEPARATOR + LONG_TYPE, low, high, startInclusive, endInclusive),
+                        BooleanClause.Occur.SHOULD)
+                .add(numericRangeQuery(field + TYPE_SEPARATOR + DOUBLE_TYPE, low, high, startInclusive, endInclusive),
+                        BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+
+    /**
+     * Rewrites a wildcard query with a leading "*" as a query on the suffixes of the field's tokens.
+     * "*silva*" becomes a prefix query for "silva", and "*silva" a term query.
+     *
+     * @return the query, or null if it cannot be rewritten
+     */
+    private Query suffixQuery(String field, String termStr) throws ParseException {
+        int start = 0;
+        while (start < termStr.length() && termStr.charAt(start) == '*') {
+            start++;
+        }
+        String rest = termStr.substring(start);
+        if (rest.isEmpty() || rest.charAt(0) == '?' || rest.indexOf('\\') >= 0) {
+            return null;
+        }
+        String suffixField = IndexSchema.suffixField(field);
+        int wildcard = -1;
+        for (int i = 0; i < rest.length() && wildcard < 0; i++) {
+            if (rest.charAt(i) == '*' || rest.charAt(i) == '?') {
+                wildcard = i;
+            }
+        }
+        if (wildcard < 0) {
+            return new TermQuery(new Term(suffixField, getAnalyzer().normalize(suffixField, rest)));
+        }
+        if (wildcard == rest.length() - 1 && rest.charAt(wildcard) == '*') {
+            return super.getPrefixQuery(suffixField, rest.substring(0, wildcard));
+        }
+        return super.getWildcardQuery(suffixField, rest);
+    }
+
+    private static boolean isTypedField(String field) {
+        return field.indexOf(TYPE_SEPARATOR) > 0;
+    }
+
+    /**
+     * @return whether a range bound is open or a decimal number
+     */
+    private static boolean isNumber(String s) {
+        return s == null || IndexingPlan.isDecimal(s.trim());
+    }
+
+    private static BigDecimal parseNumber(String s) throws ParseException {
+        try {
+            return new BigDecimal(s.trim());
+        } catch (NumberFormatException ex) {
+            throw new ParseException("Not a number: " + s);
+        }
+    }
+
+    /**
+     * Creates a range query over the points of a typed field.
+     *
+     * @param typedField the field name, followed by the separator and the type of its values
+     * @param low the lower bound, or null if it is open
+     * @param high the upper bound, or null if it is open
+     * @return the query
+     * @throws ParseException if the type is unknown or a bound is not a number
+     */
+    private Query numericRangeQuery(String typedField, String low, String high, boolean startInclusive, boolean endInclusive)
+            throws ParseException
+    {
+        int sep = typedField.indexOf(TYPE_SEPARATOR);
+        String field = typedField.substring(0, sep);
+        String type = typedField.substring(sep + 1);
+        if (!type.equals(LONG_TYPE) && !type.equals(DOUBLE_TYPE))
+        {
+            throw new ParseException("Unknown numeric type \"" + type + "\" of field " + field);
+        }
+
+        if (!schema.hasTypedPoints())
+        {
+            // the legacy layout has float points for all numbers
+            float lower = (low == null) ? Float.NEGATIVE_INFINITY : parseNumber(low).floatValue();
+            float upper = (high == null) ? Float.POSITIVE_INFINITY : parseNumber(high).floatValue();
+            if (low != null && !startInclusive)
+            {
+                lower = Math.nextUp(lower);
+            }
+            if (high != null && !endInclusive)
+            {
+                upper = Math.nextDown(upper);
+            }
+            return FloatPoint.newRangeQuery(IndexSchema.LEGACY_POINT_PREFIX + field, lower, upper);
+        }
+
+        if (type.equals(LONG_TYPE))
+        {
+            long lower = (low == null) ? Long.MIN_VALUE : longBound(parseNumber(low), true, startInclusive);
+            long upper = (high == null) ? Long.MAX_VALUE : longBound(parseNumber(high), false, endInclusive);
+            return LongPoint.newRangeQuery(IndexSchema.LONG_POINT_PREFIX + field, lower, upper);
+        }
+
+        double lower = (low == null) ? Double.NEGATIVE_INFINITY : parseNumber(low).doubleValue();
+        double upper = (high == null) ? Double.POSITIVE_INFINITY : parseNumber(high).doubleValue();
+        if (low != null && !startInclusive)
+        {
+            lower = Math.nextUp(lower);
+        }
+        if (high != null && !endInclusive)
+        {
+            upper = Math.nextDown(upper);
+        }
+        return DoublePoint.newRangeQuery(IndexSchema.DOUBLE_POINT_PREFIX + field, lower, upper);
+    }
+
+    /**
+     * Converts a bound to the closest integer within the range, saturating at the limits of longs.
+     */
+    static long longBound(BigDecimal value, boolean lower, boolean inclusive)
+    {
+        BigDecimal bound;
+        if (lower)
+        {
+            bound = inclusive ? value.setScale(0, RoundingMode.CEILING)
+                    : value.setScale(0, RoundingMode.FLOOR).add(BigDecimal.ONE);
+        }
+        else
+        {
+            bound = inclusive ? value.setScale(0, RoundingMode.FLOOR)
+                    : value.setScale(0, RoundingMode.CEILING).subtract(BigDecimal.ONE);
+        }
+        if (bound.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) > 0)
+        {
+            return Long.MAX_VALUE;
+        }
+        if (bound.compareTo(BigDecimal.valueOf(Long.MIN_VALUE)) < 0)
+        {
+            return Long.MIN_VALUE;
+        }
+        return bound.longValue();
+    }
+
+    /**
+     * Creates a range query over the normalized values of a date or time attribute.
+     *
+     * @return the query, or null if a bound is not a valid date or time
+     */
+    static Query dateRangeQuery(String field, VR vr, String low, String high, boolean startInclusive, boolean endInclusive)
+    {
+        long lower = Long.MIN_VALUE;
+        if (low != null)
+        {
+            lower = DicomDates.normalize(vr, low, !startInclusive);
+            if (lower == DicomDates.INVALID)
+            {
+                return null;
+            }
+            if (!startInclusive)
+            {
+                lower++;
+            }
+        }
+        long upper = Long.MAX_VALUE;
+        if (high != null)
+        {
+            upper = DicomDates.normalize(vr, high, endInclusive);
+            if (upper == DicomDates.INVALID)
+            {
+                return null;
+            }
+            if (!endInclusive)
+            {
+                upper--;
+            }
+        }
+        return LongPoint.newRangeQuery(IndexSchema.datePointField(field), lower, upper);
+    }
 
  /*   public static void main(String [] args)
     {
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat;
+import org.apache.lucene.codecs.lucene62.Lucene62Codec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * The codec of the segments written by the indexer.
+ *
+ * It chooses how stored fields are compressed, and can give fields postings and doc values
+ * formats other than the default ones. The codec keeps the name of the default codec, since
+ * each segment records its stored fields mode and the formats of its fields: indexes written
+ * with any settings can be read with the default codec, as long as the formats are available.
+ *
+ * Settings only apply to new segments. Older segments take them as they are merged.
+ *
+ */
+public final class IndexCodec extends Lucene62Codec {
+    private static final Logger logger = LoggerFactory.getLogger(IndexCodec.class);
+
+    private final Lucene50StoredFieldsFormat.Mode storedFieldsMode;
+    private final Map<String, PostingsFormat> postingsFormats;
+    private final Map<String, DocValuesFormat> docValuesFormats;
+
+    /**
+     * @param storedFieldsMode how stored fields are compressed
+     * @param postingsFormats the postings formats of specific fields
+     * @param docValuesFormats the doc values formats of specific fields
+     */
+    public IndexCodec(Lucene50StoredFieldsFormat.Mode storedFieldsMode, Map<String, PostingsFormat> postingsFormats,
+                      Map<String, DocValuesFormat> docValuesFormats) {
+        super(storedFieldsMode);
+        this.storedFieldsMode = storedFieldsMode;
+        this.postingsFormats = Collections.unmodifiableMap(new HashMap<>(postingsFormats));
+        this.docValuesFormats = Collections.unmodifiableMap(new HashMap<>(docValuesFormats));
+    }
+
+    @Override
+    public PostingsFormat getPostingsFormatForField(String field) {
+        PostingsFormat format = postingsFormats.get(field);
+        return (format != null) ? format : super.getPostingsFormatForField(field);
+    }
+
+    @Override
+    public DocValuesFormat getDocValuesFormatForField(String field) {
+        DocValuesFormat format = docValuesFormats.get(field);
+        return (format != null) ? format : super.getDocValuesFormatForField(field);
+    }
+
+    /**
+     * @return how stored fields are compressed
+     */
+    public Lucene50StoredFieldsFormat.Mode getStoredFieldsMode() {
+        return storedFieldsMode;
+    }
+
+    /**
+     * Reads the codec from the indexer's settings, adding the defaults of missing settings.
+     *
+     * @param cnf the indexer's settings
+     * @return the codec
+     */
+    public static IndexCodec load(XMLConfiguration cnf) {
+        Lucene50StoredFieldsFormat.Mode mode;
+        try {
+            String compression = cnf.getString("indexer.storage.compression").trim();
+            if (compression.equalsIgnoreCase("size")) {
+                mode = Lucene50StoredFieldsFormat.Mode.BEST_COMPRESSION;
+            } else {
+                if (!compression.equalsIgnoreCase("speed")) {
+                    logger.warn("Unknown stored field compression \"{}\", using \"speed\"", compression);
+                }
+                mode = Lucene50StoredFieldsFormat.Mode.BEST_SPEED;
+            }
+        } catch (NoSuchElementException ex) {
+            mode = Lucene50StoredFieldsFormat.Mode.BEST_SPEED;
+            cnf.setProperty("indexer.storage.compression", "speed");
+        }
+
+        Map<String, PostingsFormat> postings = loadFormats(cnf, "indexer.codec.postingsFormats",
+                PostingsFormat::forName);
+        Map<String, DocValuesFormat> docValues = loadFormats(cnf, "indexer.codec.docValuesFormats",
+                DocValuesFormat::forName);
+        return new IndexCodec(mode, postings, docValues);
+    }
+
+    /**
+     * Reads a list of "field:format" entries, looking formats up by name.
+     */
+    private static <T> Map<String, T> loadFormats(XMLConfiguration cnf, String key, Function<String, T> forName) {
+        Map<String, T> formats = new HashMap<>();
+        if (!cnf.containsKey(key)) {
+            cnf.setProperty(key, "");
+            return formats;
+        }
+        for (String s : cnf.getStringArray(key)) {
+            if (s.trim().isEmpty()) {
+                continue;
+            }
+            int i = s.indexOf(':');
+            if (i <= 0) {
+                logger.warn("Ignoring \"{}\" in {}, expected \"field:format\"", s.trim(), key);
+                continue;
+            }
+            String field = s.substring(0, i).trim();
+            String name = s.substring(i + 1).trim();
+            try {
+                formats.put(field, forName.apply(name));
+            } catch (IllegalArgumentException ex) {
+                logger.warn("Ignoring the format of field {} in {}: {}", field, key, ex.getMessage());
+            }
+        }
+        return formats;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexCodec{storedFields=" + storedFieldsMode + ", postings=" + postingsFormats
+                + ", docValues=" + docValuesFormats + "}";
+    }
+}
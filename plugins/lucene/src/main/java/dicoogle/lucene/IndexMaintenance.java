@@ -0,0 +1,407 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the segments of a long-lived index writer in shape.
+ *
+ * Segments are merged in the background according to the configured merge policy, with
+ * their I/O throttled so that merges do not starve queries. Deleted documents are only
+ * reclaimed by merges, so a maintenance run either expunges them from the segments holding
+ * too many, or merges the index down to a target number of segments. Runs happen once per
+ * day in the configured window, or on demand with {@link #run()}.
+ *
+ * A run which started in the window is not interrupted when the window closes.
+ *
+ */
+public class IndexMaintenance implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(IndexMaintenance.class);
+
+    /**
+     * The merge and maintenance settings of the indexer.
+     */
+    public static final class Settings {
+        /** the settings used when none are configured */
+        public static final Settings DEFAULT = new Settings();
+
+        private double maxSegmentMB = 5120;
+        private double segmentsPerTier = 10;
+        private double deletesPctAllowed = 10;
+        private int mergeThreads = 0;
+        private boolean autoThrottle = true;
+        private double forceMergeMBPerSec = 0;
+        private LocalTime windowStart;
+        private LocalTime windowEnd;
+        private boolean forceMerge = false;
+        private int maxSegments = 5;
+
+        private Settings() {
+        }
+
+        /**
+         * Sets the merge policy and merge scheduler of an index writer.
+         *
+         * @param config the configuration of the index writer
+         */
+        public void apply(IndexWriterConfig config) {
+            TieredMergePolicy policy = new TieredMergePolicy();
+            policy.setMaxMergedSegmentMB(maxSegmentMB);
+            policy.setSegmentsPerTier(segmentsPerTier);
+            policy.setForceMergeDeletesPctAllowed(deletesPctAllowed);
+
+            ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler();
+            if (mergeThreads > 0) {
+                // as many merges may wait as the scheduler allows by default
+                scheduler.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+            }
+            if (!autoThrottle) {
+                scheduler.disableAutoIOThrottle();
+            }
+            if (forceMergeMBPerSec > 0) {
+                scheduler.setForceMergeMBPerSec(forceMergeMBPerSec);
+            }
+            config.setMergePolicy(policy).setMergeScheduler(scheduler);
+        }
+
+        /**
+         * @return whether maintenance runs are scheduled
+         */
+        public boolean hasWindow() {
+            return windowStart != null;
+        }
+
+        /**
+         * Tells which maintenance window a moment falls in.
+         *
+         * @param now the moment
+         * @return the day on which the window opened, or null if the moment is outside the window
+         */
+        LocalDate windowOf(LocalDateTime now) {
+            if (windowStart == null) {
+                return null;
+            }
+            LocalTime t = now.toLocalTime();
+            if (!windowStart.isAfter(windowEnd)) {
+                return (!t.isBefore(windowStart) && t.isBefore(windowEnd)) ? now.toLocalDate() : null;
+            }
+            // the window spans midnight
+            if (!t.isBefore(windowStart)) {
+                return now.toLocalDate();
+            }
+            return t.isBefore(windowEnd) ? now.toLocalDate().minusDays(1) : null;
+        }
+
+        /**
+         * Reads the settings from the indexer's settings, adding the defaults of missing settings.
+         *
+         * @param cnf the indexer's settings
+         * @return the settings
+         */
+        public static Settings load(XMLConfiguration cnf) {
+            Settings s = new Settings();
+            try {
+                s.maxSegmentMB = cnf.getDouble("indexer.merge.maxSegmentMB");
+            } catch (NoSuchElementException ex) {
+                cnf.setProperty("indexer.merge.maxSegmentMB", s.maxSegmentMB);
+            }
+
+            try {
+                s.segmentsPerTier = cnf.getDouble("indexer.merge.segmentsPerTier");
+            } catch (NoSuchElementException ex) {
+                cnf.setProperty("indexer.merge.segmentsPerTier", s.segmentsPerTier);
+            }
+
+            try {
+                s.mergeThreads = cnf.getInt("indexer.merge.threads");
+            } catch (NoSuchElementException ex) {
+                cnf.setProperty("indexer.merge.threads", s.mergeThreads);
+            }
+
+            try {
+                s.autoThrottle = cnf.getBoolean("indexer.merge.autoThrottle");
+            } catch (NoSuchElementException ex) {
+                cnf.setProperty("indexer.merge.autoThrottle", s.autoThrottle);
+            }
+
+            try {
+                s.forceMergeMBPerSec = cnf.getDouble("indexer.merge.forceMergeMBPerSec");
+            } catch (NoSuchElementException ex) {
+                cnf.setProperty("indexer.merge.forceMergeMBPerSec", s.forceMergeMBPerSec);
+            }
+
+            try {
+                s.deletesPctAllowed = cnf.getDouble("indexer.maintenance.deletesPctAllowed");
+            } catch (NoSuchElementException ex) {
+                cnf.setProperty("indexer.maintenance.deletesPctAllowed", s.deletesPctAllowed);
+            }
+
+            try {
+                String window = cnf.getString("indexer.maintenance.window").trim();
+                if (!window.isEmpty()) {
+                    int i = window.indexOf('-');
+                    try {
+                        if (i <= 0) {
+                            throw new DateTimeParseException("expected \"HH:mm-HH:mm\"", window, 0);
+                        }
+                        s.windowStart = LocalTime.parse(window.substring(0, i).trim());
+                        s.windowEnd = LocalTime.parse(window.substring(i + 1).trim());
+                    } catch (DateTimeParseException ex) {
+                        logger.warn("Invalid maintenance window \"{}\", maintenance is not scheduled", window);
+                        s.windowStart = null;
+                        s.windowEnd = null;
+                    }
+                }
+            } catch (NoSuchElementException ex) {
+                cnf.setProperty("indexer.maintenance.window", "");
+            }
+
+            try {
+                String mode = cnf.getString("indexer.maintenance.mode").trim();
+                if (mode.equalsIgnoreCase("merge")) {
+                    s.forceMerge = true;
+                } else if (!mode.equalsIgnoreCase("expunge")) {
+                    logger.warn("Unknown maintenance mode \"{}\", using \"expunge\"", mode);
+                }
+            } catch (NoSuchElementException ex) {
+                cnf.setProperty("indexer.maintenance.mode", "expunge");
+            }
+
+            try {
+                s.maxSegments = Math.max(1, cnf.getInt("indexer.maintenance.maxSegments"));
+            } catch (NoSuchElementException ex) {
+                cnf.setProperty("indexer.maintenance.maxSegments", s.maxSegments);
+            }
+            return s;
+        }
+
+        @Override
+        public String toString() {
+            return "Settings{maxSegmentMB=" + maxSegmentMB + ", segmentsPerTier=" + segmentsPerTier
+                    + ", deletesPctAllowed=" + deletesPctAllowed + ", mergeThreads=" + mergeThreads
+                    + ", autoThrottle=" + autoThrottle + ", forceMergeMBPerSec=" + forceMergeMBPerSec
+                    + ", window=" + (hasWindow() ? windowStart + "-" + windowEnd : "none")
+                    + ", mode=" + (forceMerge ? "merge" : "expunge") + ", maxSegments=" + maxSegments + "}";
+        }
+    }
+
+    /** The number of segments and deleted documents of the index */
+    private static final class Stats {
+        final int segments;
+        final long deleted;
+
+        Stats(int segments, long deleted) {
+            this.segments = segments;
+            this.deleted = deleted;
+        }
+    }
+
+    private final List<IndexWriter> writers;
+    private final CommitPolicy commitPolicy;
+    private final SearcherService searchers;
+    private final Settings settings;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    /** the state of the index when the current run started */
+    private volatile Stats start;
+    /** the day on which the last window with a run opened */
+    private volatile LocalDate lastWindow;
+
+    /**
+     * Creates the maintenance of an index, scheduling its runs if a window is configured.
+     *
+     * @param writer the index writer, configured with {@link Settings#apply(IndexWriterConfig)}
+     * @param commitPolicy the commit policy of the writer, which commits the merged segments
+     * @param searchers the searchers over the writer, which tell the state of the index
+     * @param settings the maintenance settings
+     */
+    public IndexMaintenance(IndexWriter writer, CommitPolicy commitPolicy, SearcherService searchers,
+                            Settings settings) {
+        this(Collections.singletonList(writer), commitPolicy, searchers, settings);
+    }
+
+    /**
+     * Creates the maintenance of a sharded index. Each shard is merged down to the
+     * configured number of segments.
+     *
+     * @param writers the index writers of the shards, configured with {@link Settings#apply(IndexWriterConfig)}
+     * @param commitPolicy the commit policy of the writers, which commits the merged segments
+     * @param searchers the searchers over all shards, which tell the state of the index
+     * @param settings the maintenance settings
+     */
+    public IndexMaintenance(List<IndexWriter> writers, CommitPolicy commitPolicy, SearcherService searchers,
+                            Settings settings) {
+        this.writers = new ArrayList<>(writers);
+        this.commitPolicy = commitPolicy;
+        this.searchers = searchers;
+        this.settings = settings;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lucene-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        if (settings.hasWindow()) {
+            this.scheduler.scheduleWithFixedDelay(this::checkWindow, 1, 1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Runs the maintenance in the calling thread, and commits the merged segments.
+     * Only one run takes place at a time.
+     *
+     * @return the outcome of the run
+     * @throws IOException on failure to merge or commit the segments
+     */
+    public MaintenanceReport run() throws IOException {
+        final boolean forceMerge = settings.forceMerge;
+        if (!running.compareAndSet(false, true)) {
+            return new MaintenanceReport(forceMerge, 0, 0, 0, 0, 0, "another run is in progress");
+        }
+        long time = System.currentTimeMillis();
+        try {
+            Stats before = stats(true);
+            if (before.deleted == 0 && (!forceMerge || before.segments <= settings.maxSegments * writers.size())) {
+                return new MaintenanceReport(forceMerge, before.segments, before.segments, 0, 0,
+                        System.currentTimeMillis() - time, "nothing to reclaim");
+            }
+            this.start = before;
+            logger.info("Started index maintenance: {} segment(s), {} deleted document(s)",
+                    before.segments, before.deleted);
+            for (IndexWriter writer : writers) {
+                if (forceMerge) {
+                    writer.forceMerge(settings.maxSegments);
+                } else {
+                    writer.forceMergeDeletes();
+                }
+            }
+            commitPolicy.flush();
+            Stats after = stats(true);
+            MaintenanceReport report = new MaintenanceReport(forceMerge, before.segments, after.segments,
+                    before.deleted, after.deleted, System.currentTimeMillis() - time, null);
+            logger.info("Finished index maintenance: {}", report);
+            return report;
+        } finally {
+            this.start = null;
+            running.set(false);
+        }
+    }
+
+    /**
+     * Estimates the progress of the current run, from the segments merged or the deleted
+     * documents reclaimed so far.
+     *
+     * @return the progress between 0 and 1, or -1 if no run is taking place
+     */
+    public float getProgress() {
+        Stats from = this.start;
+        if (from == null) {
+            return -1f;
+        }
+        Stats now;
+        try {
+            now = stats(false);
+        } catch (IOException ex) {
+            return 0f;
+        }
+        double total;
+        double done;
+        if (settings.forceMerge) {
+            total = from.segments - settings.maxSegments * writers.size();
+            done = from.segments - now.segments;
+        } else {
+            total = from.deleted;
+            done = from.deleted - now.deleted;
+        }
+        if (total <= 0) {
+            return 0f;
+        }
+        // the run ends with a commit
+        return (float) Math.max(0, Math.min(0.99, done / total));
+    }
+
+    /**
+     * @return whether a run is taking place
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * @param refresh whether to refresh the searcher first, rather than use the last one
+     */
+    private Stats stats(boolean refresh) throws IOException {
+        if (refresh) {
+            searchers.refresh();
+        }
+        IndexSearcher searcher = searchers.acquire();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            return new Stats(reader.leaves().size(), reader.numDeletedDocs());
+        } finally {
+            searchers.release(searcher);
+        }
+    }
+
+    private void checkWindow() {
+        LocalDate window = settings.windowOf(LocalDateTime.now());
+        if (window == null || window.equals(lastWindow)) {
+            return;
+        }
+        lastWindow = window;
+        try {
+            run();
+        } catch (IOException | RuntimeException ex) {
+            logger.error("Scheduled index maintenance failed", ex);
+        }
+    }
+
+    /**
+     * Stops scheduling runs. A run taking place is not interrupted, the index writer waits for its
+     * merges when it is closed.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+    }
+}
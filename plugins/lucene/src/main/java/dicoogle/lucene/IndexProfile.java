@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+
+/**
+ * The level of detail kept in the index for text fields, and how queries are scored.
+ *
+ */
+public enum IndexProfile {
+    /**
+     * Text fields keep norms, and queries are scored. This is the default.
+     */
+    SCORED("scored", TextField.TYPE_STORED, TextField.TYPE_NOT_STORED),
+    /**
+     * Text fields omit norms, and queries run in constant-score mode. Search results are
+     * never ranked, so this only saves heap and disk. Frequencies and positions are kept,
+     * as phrase queries need them.
+     */
+    COMPACT("compact", withoutNorms(TextField.TYPE_STORED), withoutNorms(TextField.TYPE_NOT_STORED));
+
+    private final String setting;
+    private final FieldType textType;
+    private final FieldType streamType;
+
+    IndexProfile(String setting, FieldType textType, FieldType streamType) {
+        this.setting = setting;
+        this.textType = textType;
+        this.streamType = streamType;
+    }
+
+    private static FieldType withoutNorms(FieldType type) {
+        FieldType t = new FieldType(type);
+        t.setOmitNorms(true);
+        t.freeze();
+        return t;
+    }
+
+    /**
+     * @return the type of stored text fields
+     */
+    public FieldType getTextType() {
+        return textType;
+    }
+
+    /**
+     * @return the type of text fields read from a stream, which are not stored
+     */
+    public FieldType getStreamType() {
+        return streamType;
+    }
+
+    /**
+     * @return whether queries are scored
+     */
+    public boolean isScored() {
+        return this == SCORED;
+    }
+
+    /**
+     * Adapts a query to this profile.
+     *
+     * @param query the parsed query
+     * @return the query to run
+     */
+    public Query prepare(Query query) {
+        if (isScored() || query instanceof ConstantScoreQuery) {
+            return query;
+        }
+        return new ConstantScoreQuery(query);
+    }
+
+    /**
+     * @return the value of this profile in the plugin's settings
+     */
+    public String getSetting() {
+        return setting;
+    }
+
+    /**
+     * Obtains the profile named in the plugin's settings.
+     *
+     * @param setting the setting's value
+     * @return the corresponding profile
+     * @throws IllegalArgumentException if no profile has the given name
+     */
+    public static IndexProfile fromSetting(String setting) {
+        for (IndexProfile profile : values()) {
+            if (profile.setting.equalsIgnoreCase(setting.trim())) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown index profile: " + setting);
+    }
+}
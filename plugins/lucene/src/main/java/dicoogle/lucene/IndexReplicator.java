@@ -0,0 +1,344 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the commits of a live index to read-only replicas in other directories,
+ * such as another local disk or a mount shared with other hosts.
+ *
+ * Each new commit is pinned with the snapshot deletion policy while its files are published,
+ * and only the files which a replica does not hold yet are hard-linked or copied to it. Files
+ * are told apart by their checksum, since the names of an index which was rebuilt are reused.
+ * The segments file of the commit goes last, and is renamed into place in a single step, so a
+ * replica always holds a complete commit: searchers opened on it (see {@link SearcherService})
+ * switch from one revision to the next on their next refresh.
+ *
+ * The files of a revision are kept for the configured time after it was replaced, so that
+ * searchers still open on it, on this host or another, are not disturbed. The retention should
+ * not be shorter than the time for which the followers keep their searchers.
+ *
+ */
+public class IndexReplicator implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(IndexReplicator.class);
+
+    private static final String PENDING_PREFIX = "pending_";
+
+    private final IndexWriter writer;
+    private final SnapshotDeletionPolicy policy;
+    private final Path indexPath;
+    private final long retainNanos;
+    private final ScheduledExecutorService scheduler;
+
+    /** the state of each replica, by directory */
+    private final Map<Path, Replica> replicas = new LinkedHashMap<>();
+
+    /** the files of a commit published to a replica */
+    private static final class Revision {
+        final Collection<String> files;
+        /** when the revision was replaced by a newer one (in ns), while it is retained */
+        long replacedAt;
+
+        Revision(Collection<String> files, long replacedAt) {
+            this.files = files;
+            this.replacedAt = replacedAt;
+        }
+    }
+
+    private static final class Replica {
+        /** the generation of the last commit published to the replica, -1 if none */
+        long generation = -1;
+        /** the retained revisions, the current one last */
+        final Deque<Revision> revisions = new ArrayDeque<>();
+    }
+
+    /**
+     * Creates and starts a replicator, which publishes the current commit right away.
+     *
+     * @param writer the index writer
+     * @param policy the deletion policy of the index writer
+     * @param indexPath the directory of the index
+     * @param replicaPaths the directories of the replicas
+     * @param intervalMs the period between checks for a new commit (in ms)
+     * @param retainSec for how long the files of a revision are kept after it was replaced (in seconds)
+     */
+    public IndexReplicator(IndexWriter writer, SnapshotDeletionPolicy policy, Path indexPath,
+                           Collection<Path> replicaPaths, long intervalMs, double retainSec) {
+        this.writer = writer;
+        this.policy = policy;
+        this.indexPath = indexPath;
+        this.retainNanos = (long) (Math.max(0, retainSec) * 1e9);
+        for (Path path : replicaPaths) {
+            replicas.put(path, new Replica());
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lucene-replication");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(1, intervalMs);
+        this.scheduler.scheduleWithFixedDelay(this::publishQuietly, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes the last commit of the index to the replicas which do not hold it yet.
+     * Changes which were not committed are not published.
+     *
+     * @return the generation of the published commit
+     * @throws IOException on failure to publish to a replica; the other replicas are still updated
+     */
+    public synchronized long publish() throws IOException {
+        try (Directory source = FSDirectory.open(indexPath)) {
+            // cheap enough to check on every tick, unlike taking a snapshot
+            long last = SegmentInfos.getLastCommitGeneration(source);
+            if (isPublished(last)) {
+                return last;
+            }
+
+            IndexCommit commit = policy.snapshot();
+            IOException failure = null;
+            try {
+                for (Map.Entry<Path, Replica> e : replicas.entrySet()) {
+                    if (e.getValue().generation == commit.getGeneration()) {
+                        continue;
+                    }
+                    try {
+                        publish(source, commit, e.getKey(), e.getValue());
+                    } catch (IOException ex) {
+                        if (failure == null) {
+                            failure = ex;
+                        } else {
+                            failure.addSuppressed(ex);
+                        }
+                    }
+                }
+            } finally {
+                policy.release(commit);
+                // the files of the commit may have been kept only for the snapshot
+                writer.deleteUnusedFiles();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return commit.getGeneration();
+        }
+    }
+
+    /**
+     * @return the directories of the replicas
+     */
+    public Collection<Path> getReplicaPaths() {
+        return Collections.unmodifiableSet(replicas.keySet());
+    }
+
+    private boolean isPublished(long generation) {
+        for (Replica replica : replicas.values()) {
+            if (replica.generation != generation) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void publish(Directory source, IndexCommit commit, Path target, Replica replica) throws IOException {
+        long time = System.currentTimeMillis();
+        Files.createDirectories(target);
+        long bytes = 0;
+        int copied = 0;
+        String segmentsFile = commit.getSegmentsFileName();
+        Collection<String> files = commit.getFileNames();
+        try (Directory dir = FSDirectory.open(target)) {
+            if (SegmentInfos.getLastCommitGeneration(dir) > commit.getGeneration()) {
+                // its commits would be preferred to those of the index, which was rebuilt since
+                logger.warn("Replica {} holds newer commits than the index, which was rebuilt; replacing them",
+                        target);
+                replica.revisions.clear();
+                prune(target, replica, System.nanoTime());
+            }
+            if (replica.generation < 0 && replica.revisions.isEmpty()) {
+                // the revision left over from a previous run is kept for the searchers open on it
+                replica.revisions.add(new Revision(existingCommitFiles(dir, target), System.nanoTime()));
+            }
+
+            boolean link = true;
+            for (String name : files) {
+                if (name.equals(segmentsFile) || sameFile(source, dir, name)) {
+                    continue;
+                }
+                Path to = target.resolve(name);
+                Files.deleteIfExists(to);
+                link = IndexSnapshots.linkOrCopy(indexPath.resolve(name), to, link);
+                IOUtils.fsync(to, false);
+                bytes += Files.size(to);
+                copied++;
+            }
+        }
+
+        // searchers must never see a partial segments file
+        Path pending = target.resolve(PENDING_PREFIX + segmentsFile);
+        Files.deleteIfExists(pending);
+        Files.copy(indexPath.resolve(segmentsFile), pending);
+        IOUtils.fsync(pending, false);
+        Files.move(pending, target.resolve(segmentsFile), StandardCopyOption.ATOMIC_MOVE);
+        IOUtils.fsync(target, true);
+
+        long now = System.nanoTime();
+        Revision current = replica.revisions.peekLast();
+        if (current != null && current.replacedAt == 0) {
+            current.replacedAt = now;
+        }
+        replica.revisions.addLast(new Revision(new HashSet<>(files), 0));
+        replica.generation = commit.getGeneration();
+        prune(target, replica, now);
+
+        logger.debug("Published commit #{} of the index to {}: {} new files, {} bytes in {} ms",
+                commit.getGeneration(), target, copied, bytes, System.currentTimeMillis() - time);
+    }
+
+    /**
+     * Tells whether a replica holds the same file as the index, by its length and checksum.
+     */
+    private static boolean sameFile(Directory source, Directory target, String name) {
+        try {
+            if (target.fileLength(name) != source.fileLength(name)) {
+                return false;
+            }
+            try (IndexInput in = source.openInput(name, IOContext.READONCE);
+                 IndexInput out = target.openInput(name, IOContext.READONCE)) {
+                return CodecUtil.retrieveChecksum(in) == CodecUtil.retrieveChecksum(out);
+            }
+        } catch (IOException ex) {
+            // missing, or not a complete index file
+            return false;
+        }
+    }
+
+    /**
+     * @return the files of the last commit in a replica, or none if it holds no index
+     */
+    private static Collection<String> existingCommitFiles(Directory dir, Path target) {
+        try {
+            if (DirectoryReader.indexExists(dir)) {
+                return SegmentInfos.readLatestCommit(dir).files(true);
+            }
+        } catch (IOException ex) {
+            logger.warn("Failed to read the index in {}, its files will be replaced", target, ex);
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * Forgets the revisions of a replica which were replaced for longer than the retention,
+     * and deletes the files which no retained revision holds.
+     */
+    private void prune(Path target, Replica replica, long now) {
+        Iterator<Revision> it = replica.revisions.iterator();
+        while (it.hasNext()) {
+            Revision revision = it.next();
+            if (revision.replacedAt != 0 && now - revision.replacedAt > retainNanos) {
+                it.remove();
+            }
+        }
+        Set<String> keep = new HashSet<>();
+        for (Revision revision : replica.revisions) {
+            keep.addAll(revision.files);
+        }
+
+        List<Path> obsolete = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(target)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                // only index files are deleted, anything else is left alone
+                boolean indexFile = name.startsWith("_") || name.startsWith(IndexFileNames.SEGMENTS)
+                        || name.startsWith(PENDING_PREFIX);
+                if (indexFile && !keep.contains(name)) {
+                    obsolete.add(file);
+                }
+            }
+        } catch (IOException ex) {
+            logger.warn("Failed to list the files of replica {}", target, ex);
+            return;
+        }
+        for (Path file : obsolete) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                // e.g. still open on some platforms, it is retried with the next revision
+                logger.debug("Failed to delete {}", file, ex);
+            }
+        }
+    }
+
+    private void publishQuietly() {
+        try {
+            publish();
+        } catch (IOException | RuntimeException ex) {
+            logger.error("Failed to publish the index to its replicas", ex);
+        }
+    }
+
+    /**
+     * Stops the background publishing, and publishes the last commit one last time.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        publishQuietly();
+    }
+}
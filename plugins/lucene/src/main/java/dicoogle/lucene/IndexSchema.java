@@ -0,0 +1,466 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import dicoogle.lucene.dicom.abstraction.IFieldSink;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Describes how DICOM attributes are laid out in index fields.
+ *
+ * The same schema is used by the indexer, to build documents, and by the query parser,
+ * to map queries on attribute names to the fields which hold them.
+ *
+ * Attributes inside sequences are named by their path, e.g. "ContentSequence_CodeValue".
+ * By default each path gets a field of its own. In keyed mode, they are instead indexed as
+ * "path=value" terms of a single field, so that the number of fields in the index stays bounded.
+ * Top-level sequences listed as dedicated keep their own fields in both modes.
+ *
+ * The names of the attributes present in a document are indexed as terms of an existence
+ * field, so that queries can tell documents holding an attribute from those missing it.
+ * In sparse mode, DIM attributes which are missing from a file are left out of its document,
+ * instead of being indexed as empty values.
+ *
+ * The {@link IndexProfile} sets the detail kept for text fields, and how queries are scored.
+ *
+ * Dates and times are also indexed as points, which range queries use unless the index was
+ * built before they existed. Numbers are indexed as long or double points, or as float points
+ * in indexes built before typed points existed.
+ *
+ * Fields configured for substring search also get an auxiliary field holding every suffix of
+ * their tokens, so that leading and infix wildcard queries become prefix lookups.
+ *
+ * Each attribute has a {@link StoragePolicy}. Attributes inside sequences are only indexed
+ * by default, so that the stored fields hold what search results are expected to return.
+ *
+ */
+public final class IndexSchema {
+    private static final Logger logger = LoggerFactory.getLogger(IndexSchema.class);
+
+    /** the field holding nested attributes in keyed mode */
+    public static final String NESTED_FIELD = "_nested";
+
+    /** the field holding the names of the attributes present in a document */
+    public static final String EXISTS_FIELD = "_exists_";
+
+    /** the pseudo-field matching the documents which lack an attribute, in queries */
+    public static final String MISSING_FIELD = "_missing_";
+
+    /** the prefix of the point fields holding normalized dates and times */
+    public static final String DATE_POINT_PREFIX = "_date_";
+
+    /** the prefix of the point fields holding integer values */
+    public static final String LONG_POINT_PREFIX = "_long_";
+
+    /** the prefix of the point fields holding decimal values */
+    public static final String DOUBLE_POINT_PREFIX = "_double_";
+
+    /** the prefix of the float point fields of indexes built before typed points */
+    public static final String LEGACY_POINT_PREFIX = "_point_";
+
+    /** the prefix of the auxiliary fields holding the suffixes of tokens */
+    public static final String SUFFIX_PREFIX = "_suffix_";
+
+    /** the schema of an index built with the default settings */
+    public static final IndexSchema DEFAULT = new IndexSchema(IndexProfile.SCORED, true, false,
+            Collections.<String>emptySet(), Collections.<String>emptySet());
+
+    private final IndexProfile profile;
+    private final boolean sparse;
+    private final boolean keyedNested;
+    private final Set<String> dedicatedSequences;
+    private final Set<String> substringFields;
+    private final boolean datePoints;
+    private final boolean typedPoints;
+    private final boolean existence;
+    private final Map<String, StoragePolicy> storage;
+    private final StoragePolicy nestedStorage;
+
+    /**
+     * Creates a sparse schema.
+     *
+     * @param keyedNested whether nested attributes are indexed in the keyed field
+     * @param dedicatedSequences the top-level sequences whose attributes keep their own fields
+     */
+    public IndexSchema(boolean keyedNested, Set<String> dedicatedSequences) {
+        this(IndexProfile.SCORED, true, keyedNested, dedicatedSequences, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param profile the level of detail of text fields
+     * @param sparse whether missing DIM attributes are left out of documents
+     * @param keyedNested whether nested attributes are indexed in the keyed field
+     * @param dedicatedSequences the top-level sequences whose attributes keep their own fields
+     * @param substringFields the fields indexed for leading and infix wildcard queries
+     */
+    public IndexSchema(IndexProfile profile, boolean sparse, boolean keyedNested, Set<String> dedicatedSequences,
+                       Set<String> substringFields) {
+        this.profile = profile;
+        this.sparse = sparse;
+        this.keyedNested = keyedNested;
+        this.dedicatedSequences = Collections.unmodifiableSet(new HashSet<>(dedicatedSequences));
+        this.substringFields = Collections.unmodifiableSet(new HashSet<>(substringFields));
+        this.datePoints = true;
+        this.typedPoints = true;
+        this.existence = true;
+        this.storage = Collections.emptyMap();
+        this.nestedStorage = StoragePolicy.INDEXED;
+    }
+
+    private IndexSchema(IndexSchema schema, boolean datePoints, boolean typedPoints, boolean existence,
+                        Map<String, StoragePolicy> storage, StoragePolicy nestedStorage) {
+        this.profile = schema.profile;
+        this.sparse = schema.sparse;
+        this.keyedNested = schema.keyedNested;
+        this.dedicatedSequences = schema.dedicatedSequences;
+        this.substringFields = schema.substringFields;
+        this.datePoints = datePoints;
+        this.typedPoints = typedPoints;
+        this.existence = existence;
+        this.storage = storage;
+        this.nestedStorage = nestedStorage;
+    }
+
+    /**
+     * @param storage the policies of specific attributes, by field name
+     * @param nestedStorage the policy of the other attributes inside sequences
+     * @return a copy of this schema, with the given storage policies
+     */
+    public IndexSchema withStorage(Map<String, StoragePolicy> storage, StoragePolicy nestedStorage) {
+        return new IndexSchema(this, datePoints, typedPoints, existence,
+                Collections.unmodifiableMap(new HashMap<>(storage)), nestedStorage);
+    }
+
+    /**
+     * @param datePoints whether all documents of the index hold date points
+     * @return a copy of this schema, with the given availability of date points
+     */
+    public IndexSchema withDatePoints(boolean datePoints) {
+        return (datePoints == this.datePoints) ? this
+                : new IndexSchema(this, datePoints, typedPoints, existence, storage, nestedStorage);
+    }
+
+    /**
+     * @param typedPoints whether numbers are indexed as long and double points
+     * @return a copy of this schema, with the given kind of numeric points
+     */
+    public IndexSchema withTypedPoints(boolean typedPoints) {
+        return (typedPoints == this.typedPoints) ? this
+                : new IndexSchema(this, datePoints, typedPoints, existence, storage, nestedStorage);
+    }
+
+    /**
+     * @param existence whether all documents of the index record which attributes they hold
+     * @return a copy of this schema, with the given availability of existence terms
+     */
+    public IndexSchema withExistence(boolean existence) {
+        return (existence == this.existence) ? this
+                : new IndexSchema(this, datePoints, typedPoints, existence, storage, nestedStorage);
+    }
+
+    /**
+     * @return whether numbers are indexed as long and double points, rather than as
+     * float points in the legacy layout
+     */
+    public boolean hasTypedPoints() {
+        return typedPoints;
+    }
+
+    /**
+     * @return whether all documents of the index hold date points, so that range
+     * queries on dates and times can use them
+     */
+    public boolean hasDatePoints() {
+        return datePoints;
+    }
+
+    /**
+     * @return whether all documents of the index record which attributes they hold, so that
+     * "_exists_" and "_missing_" queries match them
+     */
+    public boolean hasExistence() {
+        return existence;
+    }
+
+    /**
+     * @param field the field of a date or time attribute
+     * @return the point field holding its normalized values
+     */
+    public static String datePointField(String field) {
+        return DATE_POINT_PREFIX + field;
+    }
+
+    /**
+     * @return the fields indexed for leading and infix wildcard queries
+     */
+    public Set<String> getSubstringFields() {
+        return substringFields;
+    }
+
+    /**
+     * @param field a field name
+     * @return whether the field has an auxiliary field of suffixes
+     */
+    public boolean hasSuffixes(String field) {
+        return substringFields.contains(field);
+    }
+
+    /**
+     * @param field a field configured for substring search
+     * @return the auxiliary field holding the suffixes of its tokens
+     */
+    public static String suffixField(String field) {
+        return SUFFIX_PREFIX + field;
+    }
+
+    /**
+     * Tells how the values of a field are kept. Key fields are always stored.
+     *
+     * @param field a field name
+     * @return the storage policy of the field
+     */
+    public StoragePolicy getStorage(String field) {
+        StoragePolicy policy = storage.get(field);
+        if (policy != null) {
+            return policy;
+        }
+        return isNested(field) ? nestedStorage : StoragePolicy.STORED;
+    }
+
+    /**
+     * @return the storage policy of attributes inside sequences, unless configured otherwise
+     */
+    public StoragePolicy getNestedStorage() {
+        return nestedStorage;
+    }
+
+    /**
+     * Tells whether a field holds content of a sequence, either the path of an attribute
+     * in its items or the names of the fields found in them.
+     */
+    private static boolean isNested(String field) {
+        if (field.endsWith("Sequence")) {
+            return true;
+        }
+        int i = field.indexOf('_');
+        return i >= 8 && field.startsWith("Sequence", i - 8);
+    }
+
+    /**
+     * Reads the schema from the indexer's settings, adding the defaults of missing settings.
+     *
+     * @param cnf the indexer's settings
+     * @return the schema
+     */
+    public static IndexSchema load(XMLConfiguration cnf) {
+        IndexProfile profile;
+        try {
+            profile = IndexProfile.fromSetting(cnf.getString("indexer.profile"));
+        } catch (NoSuchElementException ex) {
+            profile = IndexProfile.SCORED;
+            cnf.setProperty("indexer.profile", profile.getSetting());
+        } catch (IllegalArgumentException ex) {
+            logger.warn("{}, using \"{}\"", ex.getMessage(), IndexProfile.SCORED.getSetting());
+            profile = IndexProfile.SCORED;
+        }
+
+        boolean sparse;
+        try {
+            sparse = cnf.getBoolean("indexer.sparse");
+        } catch (NoSuchElementException ex) {
+            sparse = true;
+            cnf.setProperty("indexer.sparse", true);
+        }
+
+        boolean keyedNested;
+        try {
+            String mode = cnf.getString("indexer.nested.mode").trim();
+            if (mode.equalsIgnoreCase("keyed")) {
+                keyedNested = true;
+            } else {
+                if (!mode.equalsIgnoreCase("fields")) {
+                    logger.warn("Unknown nested attribute mode \"{}\", using \"fields\"", mode);
+                }
+                keyedNested = false;
+            }
+        } catch (NoSuchElementException ex) {
+            keyedNested = false;
+            cnf.setProperty("indexer.nested.mode", "fields");
+        }
+
+        Set<String> dedicated = new HashSet<>();
+        if (cnf.containsKey("indexer.nested.dedicated")) {
+            for (String s : cnf.getStringArray("indexer.nested.dedicated")) {
+                if (!s.trim().isEmpty()) {
+                    dedicated.add(s.trim());
+                }
+            }
+        } else {
+            cnf.setProperty("indexer.nested.dedicated", "");
+        }
+
+        Set<String> substring = new HashSet<>();
+        if (cnf.containsKey("indexer.substring.fields")) {
+            for (String s : cnf.getStringArray("indexer.substring.fields")) {
+                if (!s.trim().isEmpty()) {
+                    substring.add(s.trim());
+                }
+            }
+        } else {
+            cnf.setProperty("indexer.substring.fields", "");
+        }
+
+        StoragePolicy nestedStorage;
+        try {
+            nestedStorage = StoragePolicy.fromSetting(cnf.getString("indexer.storage.nested"));
+        } catch (NoSuchElementException ex) {
+            nestedStorage = StoragePolicy.INDEXED;
+            cnf.setProperty("indexer.storage.nested", nestedStorage.getSetting());
+        } catch (IllegalArgumentException ex) {
+            logger.warn("{}, using \"{}\"", ex.getMessage(), StoragePolicy.INDEXED.getSetting());
+            nestedStorage = StoragePolicy.INDEXED;
+        }
+
+        Map<String, StoragePolicy> storage = new HashMap<>();
+        loadStorage(cnf, "indexer.storage.indexed", StoragePolicy.INDEXED, storage);
+        loadStorage(cnf, "indexer.storage.docValues", StoragePolicy.DOC_VALUES, storage);
+        loadStorage(cnf, "indexer.storage.stored", StoragePolicy.STORED, storage);
+
+        return new IndexSchema(profile, sparse, keyedNested, dedicated, substring)
+                .withStorage(storage, nestedStorage);
+    }
+
+    private static void loadStorage(XMLConfiguration cnf, String key, StoragePolicy policy,
+                                    Map<String, StoragePolicy> storage) {
+        if (!cnf.containsKey(key)) {
+            cnf.setProperty(key, "");
+            return;
+        }
+        for (String s : cnf.getStringArray(key)) {
+            String field = s.trim();
+            if (field.isEmpty()) {
+                continue;
+            }
+            if (LuceneIndexer.KEY_FIELDS.contains(field)) {
+                logger.warn("Key field {} is always stored, ignoring it in {}", field, key);
+                continue;
+            }
+            storage.put(field, policy);
+        }
+    }
+
+    /**
+     * @return the level of detail of text fields
+     */
+    public IndexProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return whether missing DIM attributes are left out of documents
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * @return whether nested attributes are indexed in the keyed field
+     */
+    public boolean isKeyedNested() {
+        return keyedNested;
+    }
+
+    /**
+     * @return the top-level sequences whose attributes keep their own fields
+     */
+    public Set<String> getDedicatedSequences() {
+        return dedicatedSequences;
+    }
+
+    /**
+     * Tells whether the attributes in the items of a top-level sequence go to the keyed field.
+     *
+     * @param sequence the alias of a top-level sequence
+     * @return whether its attributes are keyed
+     */
+    public boolean isKeyed(String sequence) {
+        return keyedNested && !dedicatedSequences.contains(sequence);
+    }
+
+    /**
+     * Tells whether a field name refers to a nested attribute held in the keyed field.
+     *
+     * @param field a field name, as used in queries
+     * @return whether the name is the path of a keyed attribute
+     */
+    public boolean isKeyedPath(String field) {
+        if (!keyedNested) {
+            return false;
+        }
+        int i = field.indexOf('_');
+        if (i <= 0) {
+            return false;
+        }
+        String sequence = field.substring(0, i);
+        return sequence.endsWith("Sequence") && !dedicatedSequences.contains(sequence);
+    }
+
+    /**
+     * @param path the path of a nested attribute
+     * @param value the attribute's value
+     * @return the term of the keyed field holding the value
+     */
+    public static String keyedTerm(String path, String value) {
+        return path + '=' + value;
+    }
+
+    /**
+     * Adds the value of a nested attribute to the keyed field. The term is only stored
+     * when the storage policy of nested attributes stores their values.
+     *
+     * @param doc the document
+     * @param path the path of the nested attribute
+     * @param value the attribute's value
+     */
+    public void addKeyed(IFieldSink doc, String path, String value) {
+        if (nestedStorage.isStored()) {
+            doc.addKeyword(NESTED_FIELD, keyedTerm(path, value));
+        } else {
+            doc.addTerm(NESTED_FIELD, keyedTerm(path, value));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IndexSchema{profile=" + profile.getSetting() + ", sparse=" + sparse + ", datePoints=" + datePoints
+                + ", typedPoints=" + typedPoints + ", existence=" + existence
+                + ", nested=" + (keyedNested ? "keyed" : "fields") + ", dedicated=" + dedicatedSequences
+                + ", substring=" + substringFields
+                + ", storage=" + storage + ", nestedStorage=" + nestedStorage.getSetting() + "}";
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Backs up a live index, and restores the backups.
+ *
+ * A backup pins the last commit of the index with a snapshot deletion policy, so that its
+ * files are not deleted while they are copied, and releases it afterwards. Lucene never
+ * modifies the files of a commit, so they are hard-linked into the backup when possible,
+ * and copied otherwise. Documents keep being added and committed during the backup, and
+ * the backup holds the index as of the commit it started with.
+ *
+ * A backup directory is itself an index, which can be opened or restored as is.
+ *
+ */
+public class IndexSnapshots {
+    private static final Logger logger = LoggerFactory.getLogger(IndexSnapshots.class);
+
+    private final IndexWriter writer;
+    private final SnapshotDeletionPolicy policy;
+    private final CommitPolicy commitPolicy;
+    private final Path indexPath;
+
+    /**
+     * @param writer the index writer
+     * @param policy the deletion policy of the index writer
+     * @param commitPolicy the commit policy of the writer, which commits pending changes before a backup
+     * @param indexPath the directory of the index
+     */
+    public IndexSnapshots(IndexWriter writer, SnapshotDeletionPolicy policy, CommitPolicy commitPolicy,
+                          Path indexPath) {
+        this.writer = writer;
+        this.policy = policy;
+        this.commitPolicy = commitPolicy;
+        this.indexPath = indexPath;
+    }
+
+    /**
+     * Commits pending changes, and copies the resulting commit of the index to a directory.
+     *
+     * @param target the backup directory, which must be empty or not exist
+     * @return the generation of the commit which was backed up
+     * @throws IOException if the directory is not empty, or on failure to copy the index
+     */
+    public long backup(Path target) throws IOException {
+        Files.createDirectories(target);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(target)) {
+            if (files.iterator().hasNext()) {
+                throw new IOException("The backup directory is not empty: " + target);
+            }
+        }
+
+        long time = System.currentTimeMillis();
+        commitPolicy.flush();
+        IndexCommit commit = policy.snapshot();
+        try {
+            long bytes = copy(indexPath, target, commit.getFileNames());
+            logger.info("Backed up commit #{} of the index to {}: {} files, {} bytes in {} ms",
+                    commit.getGeneration(), target, commit.getFileNames().size(), bytes,
+                    System.currentTimeMillis() - time);
+            return commit.getGeneration();
+        } finally {
+            policy.release(commit);
+            // the files of the commit may have been kept only for the snapshot
+            writer.deleteUnusedFiles();
+        }
+    }
+
+    /**
+     * Copies the index in a backup directory to the directory of an index. Index files left
+     * over in the directory, such as those of an interrupted restore, are deleted first.
+     *
+     * @param backup the backup directory
+     * @param indexPath the directory of the index, which must not hold an index
+     * @return false if the backup directory does not hold an index
+     * @throws IOException if the directory holds an index, or on failure to copy the index
+     */
+    public static boolean restore(Path backup, Path indexPath) throws IOException {
+        long time = System.currentTimeMillis();
+        Collection<String> files;
+        try (Directory dir = FSDirectory.open(backup)) {
+            if (!DirectoryReader.indexExists(dir)) {
+                return false;
+            }
+            files = SegmentInfos.readLatestCommit(dir).files(true);
+        }
+        Files.createDirectories(indexPath);
+        deleteStaleFiles(indexPath);
+        long bytes = copy(backup, indexPath, files);
+        logger.info("Restored the index from {}: {} files, {} bytes in {} ms", backup, files.size(), bytes,
+                System.currentTimeMillis() - time);
+        return true;
+    }
+
+    /**
+     * Deletes the index files in a directory which holds no index. The segments file of
+     * a commit is written last, so files without one belong to no commit.
+     */
+    private static void deleteStaleFiles(Path indexPath) throws IOException {
+        try (Directory dir = FSDirectory.open(indexPath)) {
+            if (DirectoryReader.indexExists(dir)) {
+                throw new IOException("The directory already holds an index: " + indexPath);
+            }
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(indexPath)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (Files.isRegularFile(file) && (name.startsWith("_") || name.startsWith(IndexFileNames.SEGMENTS)
+                        || name.startsWith(IndexFileNames.PENDING_SEGMENTS))) {
+                    Files.delete(file);
+                    deleted++;
+                }
+            }
+        }
+        if (deleted > 0) {
+            logger.warn("Deleted {} index files left over in {}, by an interrupted restore", deleted, indexPath);
+        }
+    }
+
+    /**
+     * Hard-links or copies files between directories, and syncs them to the storage device.
+     *
+     * @return the number of bytes in the files
+     */
+    private static long copy(Path source, Path target, Collection<String> files) throws IOException {
+        // the segments file goes last, so that an interrupted copy does not look like an index
+        List<String> ordered = new ArrayList<>(files.size());
+        for (String name : files) {
+            if (!name.startsWith(IndexFileNames.SEGMENTS)) {
+                ordered.add(name);
+            }
+        }
+        for (String name : files) {
+            if (name.startsWith(IndexFileNames.SEGMENTS)) {
+                ordered.add(name);
+            }
+        }
+
+        long bytes = 0;
+        boolean link = true;
+        for (String name : ordered) {
+            Path to = target.resolve(name);
+            link = linkOrCopy(source.resolve(name), to, link);
+            bytes += Files.size(to);
+            IOUtils.fsync(to, false);
+        }
+        IOUtils.fsync(target, true);
+        return bytes;
+    }
+
+    /**
+     * Hard-links a file, or copies it if hard links are not possible.
+     *
+     * @param from the existing file
+     * @param to the new file, which must not exist
+     * @param link whether to attempt a hard link
+     * @return whether the next files should be hard-linked too
+     * @throws IOException on failure to copy the file
+     */
+    static boolean linkOrCopy(Path from, Path to, boolean link) throws IOException {
+        if (link) {
+            try {
+                Files.createLink(to, from);
+                return true;
+            } catch (UnsupportedOperationException | IOException ex) {
+                // e.g. on another file system, copy this and the remaining files
+                logger.debug("Cannot hard-link index files to {}, copying them", to.getParent(), ex);
+            }
+        }
+        Files.copy(from, to);
+        return false;
+    }
+}
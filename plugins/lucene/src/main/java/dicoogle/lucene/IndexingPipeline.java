@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of workers for parsing and indexing DICOM files in parallel.
+ *
+ * Work is handed over to the workers through a bounded queue: when the queue is full,
+ * the submitting thread blocks until a slot is freed, so that a fast storage iterator
+ * does not pile up pending files in memory. With a single worker, all work is performed
+ * by the submitting thread itself.
+ *
+ * A pipeline can be replaced while batches are running through it: closing it lets those
+ * batches finish on its workers, which are stopped once the last one is over.
+ *
+ */
+public class IndexingPipeline implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(IndexingPipeline.class);
+
+    /** Phasers do not support more than this number of parties. */
+    private static final int MAX_PENDING = 65535 - 1;
+
+    private final int workers;
+    private final ExecutorService executor;
+    private final Semaphore slots;
+
+    /** the number of batches running on the workers, guarded by this */
+    private int openBatches = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a new pipeline.
+     *
+     * @param workers the number of worker threads, 1 to run everything in the caller thread
+     * @param queueSize the maximum number of files waiting for a worker
+     */
+    public IndexingPipeline(int workers, int queueSize) {
+        this.workers = Math.max(1, workers);
+        if (this.workers == 1) {
+            this.executor = null;
+            this.slots = null;
+        } else {
+            this.executor = Executors.newFixedThreadPool(this.workers, new WorkerThreadFactory());
+            this.slots = new Semaphore(Math.min(MAX_PENDING, this.workers + Math.max(1, queueSize)));
+        }
+        logger.debug("Created indexing pipeline with {} worker(s)", (Object) this.workers);
+    }
+
+    /**
+     * @return the number of workers in this pipeline
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Starts a new batch of work, which can be waited on independently of
+     * other batches running through the same pipeline.
+     *
+     * @return a new batch
+     */
+    public Batch newBatch() {
+        synchronized (this) {
+            if (executor == null || closed) {
+                // the workers may be gone already, the caller does the work
+                return new Batch(null);
+            }
+            openBatches++;
+            return new Batch(executor);
+        }
+    }
+
+    private void batchFinished() {
+        synchronized (this) {
+            openBatches--;
+            if (!closed || openBatches > 0) {
+                return;
+            }
+        }
+        shutdown();
+    }
+
+    /**
+     * Stops the workers once the batches running on them are over.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (openBatches > 0) {
+                logger.debug("Closing indexing pipeline after {} running batch(es)", (Object) openBatches);
+                return;
+            }
+        }
+        shutdown();
+    }
+
+    private void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    logger.warn("Indexing workers did not finish in time");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A group of submitted work items, such as the files of one index task.
+     */
+    public class Batch {
+        private final Phaser pending = new Phaser(1);
+        /** the workers of this batch, which remain available until it is over */
+        private final ExecutorService executor;
+
+        private Batch(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        /**
+         * Submits a work item, blocking while the pipeline's queue is full.
+         *
+         * @param work the work to perform
+         * @throws InterruptedException if interrupted while waiting for a free slot
+         */
+        public void submit(Runnable work) throws InterruptedException {
+            if (executor == null) {
+                work.run();
+                return;
+            }
+            slots.acquire();
+            pending.register();
+            try {
+                executor.execute(() -> {
+                    try {
+                        work.run();
+                    } catch (RuntimeException ex) {
+                        logger.error("Unexpected failure in indexing worker", ex);
+                    } finally {
+                        pending.arriveAndDeregister();
+                        slots.release();
+                    }
+                });
+            } catch (RuntimeException ex) {
+                pending.arriveAndDeregister();
+                slots.release();
+                throw ex;
+            }
+        }
+
+        /**
+         * Waits until all work submitted to this batch is complete.
+         * No more work may be submitted afterwards.
+         */
+        public void await() {
+            pending.arriveAndAwaitAdvance();
+            if (executor != null) {
+                batchFinished();
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lucene-indexer-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
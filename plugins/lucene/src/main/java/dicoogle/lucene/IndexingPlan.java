@@ -0,0 +1,480 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import dicoogle.lucene.dicom.DicomDates;
+import dicoogle.lucene.dicom.abstraction.IFieldSink;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.sdk.utils.TagValue;
+import pt.ua.dicoogle.sdk.utils.TagsStruct;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable table of how each DICOM tag is indexed, compiled from the tag configuration.
+ *
+ * It maps tag numbers to their alias, whether they are "other" fields, their dictionary VR
+ * and the handler which turns their values into index fields, so that none of this is looked
+ * up again for every element of every file. Tags which are not in the standard dictionary are
+ * resolved against the tag configuration when they are first met, and remembered, configured
+ * or not, up to a limit.
+ *
+ */
+public final class IndexingPlan {
+    private static final Logger logger = LoggerFactory.getLogger(IndexingPlan.class);
+
+    /** used to look up the dictionary VR of tags */
+    private static final DicomObject EMPTY = new BasicDicomObject();
+
+    /** the maximum number of tags outside the dictionary constants which are remembered */
+    private static final int MAX_RESOLVED = 1 << 14;
+
+    /**
+     * How the values of an element are added to a document.
+     * Numeric values which cannot be parsed are indexed as text. Dates and times are
+     * indexed as text, and also as points for range queries when they are valid.
+     */
+    public enum ValueHandler {
+        TEXT {
+            @Override
+            public void add(IFieldSink doc, String name, String value) {
+                doc.add(name, value);
+            }
+        },
+        INTEGER {
+            @Override
+            public void add(IFieldSink doc, String name, String value) {
+                if (isInteger(value)) {
+                    doc.add(name, Long.parseLong(value));
+                } else {
+                    doc.add(name, value);
+                }
+            }
+        },
+        DECIMAL {
+            @Override
+            public void add(IFieldSink doc, String name, String value) {
+                if (isDecimal(value)) {
+                    doc.add(name, Double.parseDouble(value));
+                } else {
+                    doc.add(name, value);
+                }
+            }
+        },
+        DATE {
+            @Override
+            public void add(IFieldSink doc, String name, String value) {
+                addTemporal(doc, VR.DA, name, value);
+            }
+        },
+        TIME {
+            @Override
+            public void add(IFieldSink doc, String name, String value) {
+                addTemporal(doc, VR.TM, name, value);
+            }
+        },
+        DATE_TIME {
+            @Override
+            public void add(IFieldSink doc, String name, String value) {
+                addTemporal(doc, VR.DT, name, value);
+            }
+        };
+
+        private static void addTemporal(IFieldSink doc, VR vr, String name, String value) {
+            doc.add(name, value);
+            String pointName = null;
+            int start = 0;
+            // one point per value of a multi-valued element
+            while (start <= value.length()) {
+                int end = value.indexOf('\\', start);
+                if (end < 0) {
+                    end = value.length();
+                }
+                long v = DicomDates.normalize(vr, value.substring(start, end), false);
+                if (v != DicomDates.INVALID) {
+                    if (pointName == null) {
+                        pointName = IndexSchema.datePointField(name);
+                    }
+                    doc.addPoint(pointName, v);
+                }
+                start = end + 1;
+            }
+        }
+
+        /**
+         * Adds a value to a document.
+         *
+         * @param doc the document
+         * @param name the field name
+         * @param value the value, not null
+         */
+        public abstract void add(IFieldSink doc, String name, String value);
+
+        /**
+         * @param vr a value representation
+         * @return the handler for values of that VR
+         */
+        public static ValueHandler forVR(VR vr) {
+            if (vr == VR.IS || vr == VR.US || vr == VR.SS || vr == VR.UL || vr == VR.SL) {
+                return INTEGER;
+            }
+            if (vr == VR.DS || vr == VR.FL || vr == VR.FD) {
+                return DECIMAL;
+            }
+            if (vr == VR.DA) {
+                return DATE;
+            }
+            if (vr == VR.TM) {
+                return TIME;
+            }
+            if (vr == VR.DT) {
+                return DATE_TIME;
+            }
+            return TEXT;
+        }
+    }
+
+    /** How a single tag is indexed */
+    public static final class Entry {
+        private final int tag;
+        private final String alias;
+        private final boolean other;
+        private final VR vr;
+        private final ValueHandler handler;
+
+        Entry(int tag, String alias, boolean other, VR vr) {
+            this.tag = tag;
+            this.alias = alias;
+            this.other = other;
+            this.vr = vr;
+            this.handler = (vr != null) ? ValueHandler.forVR(vr) : ValueHandler.TEXT;
+        }
+
+        public int getTag() {
+            return tag;
+        }
+
+        /**
+         * @return the name of the tag's field
+         */
+        public String getAlias() {
+            return alias;
+        }
+
+        /**
+         * @return whether the tag is indexed when deep search is disabled
+         */
+        public boolean isOther() {
+            return other;
+        }
+
+        /**
+         * @return the tag's VR in the dictionary
+         */
+        public VR getVR() {
+            return vr;
+        }
+
+        /**
+         * @param actual the VR of an element with this tag
+         * @return the handler for that element's values
+         */
+        public ValueHandler handlerFor(VR actual) {
+            return (actual == vr) ? handler : ValueHandler.forVR(actual);
+        }
+    }
+
+    private final TagsStruct tags;
+    private final int[] keys;
+    private final Entry[] entries;
+    private final int mask;
+    private final List<Entry> dimFields;
+    private final Map<String, VR> vrByAlias = new HashMap<>();
+
+    /** tags resolved when met, by open addressing on the tag, written under the plan's lock */
+    private volatile AtomicReferenceArray<Entry> resolved = new AtomicReferenceArray<>(64);
+    private int resolvedCount = 0;
+
+    private IndexingPlan(TagsStruct tags, List<Entry> all, List<Entry> dimFields) {
+        this.tags = tags;
+        int capacity = Integer.highestOneBit(Math.max(16, all.size() * 2) - 1) << 1;
+        this.keys = new int[capacity];
+        this.entries = new Entry[capacity];
+        this.mask = capacity - 1;
+        for (Entry e : all) {
+            int i = slot(e.tag);
+            while (entries[i] != null && keys[i] != e.tag) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = e.tag;
+            entries[i] = e;
+            if (e.alias != null && e.vr != null) {
+                vrByAlias.put(e.alias, e.vr);
+            }
+        }
+        this.dimFields = Collections.unmodifiableList(dimFields);
+    }
+
+    /**
+     * Compiles the plan for the current tag configuration.
+     *
+     * @param tags the tag configuration
+     * @return the plan
+     */
+    public static IndexingPlan compile(TagsStruct tags) {
+        long time = System.currentTimeMillis();
+        List<Entry> all = new ArrayList<>();
+        for (Field f : Tag.class.getFields()) {
+            int mod = f.getModifiers();
+            if (f.getType() != int.class || !Modifier.isStatic(mod) || !Modifier.isFinal(mod)) {
+                continue;
+            }
+            try {
+                int tag = f.getInt(null);
+                Entry e = resolve(tags, tag);
+                // tags which are not configured are remembered as such
+                all.add(e != null ? e : new Entry(tag, null, false, null));
+            } catch (IllegalAccessException ex) {
+                // not a tag
+            }
+        }
+
+        List<Entry> dimFields = new ArrayList<>();
+        for (TagValue tag : tags.getDIMFields()) {
+            Entry e = new Entry(tag.getTagNumber(), tag.getAlias(), tags.isOtherField(tag), EMPTY.vrOf(tag.getTagNumber()));
+            dimFields.add(e);
+            all.add(e);
+        }
+
+        IndexingPlan plan = new IndexingPlan(tags, all, dimFields);
+        logger.debug("Compiled indexing plan with {} tags in {} ms", all.size(), System.currentTimeMillis() - time);
+        return plan;
+    }
+
+    /**
+     * Checks whether this plan was compiled from a tag configuration. Changes made to that
+     * instance afterwards are not noticed, the indexer compiles a new plan when its settings
+     * are applied.
+     *
+     * @param tags the tag configuration
+     * @return whether the plan was compiled from that configuration instance
+     */
+    public boolean isCompiledFrom(TagsStruct tags) {
+        return tags == this.tags;
+    }
+
+    private static Entry resolve(TagsStruct tags, int tag) {
+        TagValue value = tags.getTagValue(tag);
+        if (value == null) {
+            return null;
+        }
+        return new Entry(tag, value.getAlias(), tags.isOtherField(value), EMPTY.vrOf(tag));
+    }
+
+    private int slot(int tag) {
+        return hash(tag) & mask;
+    }
+
+    private static int hash(int tag) {
+        return (tag * 0x9E3779B9) >>> 16;
+    }
+
+    /**
+     * Obtains how a tag is indexed.
+     *
+     * @param tag the tag number
+     * @return the tag's entry, or null if the tag is not configured
+     */
+    public Entry get(int tag) {
+        int i = slot(tag);
+        Entry e;
+        while ((e = entries[i]) != null) {
+            if (keys[i] == tag) {
+                return (e.alias != null) ? e : null;
+            }
+            i = (i + 1) & mask;
+        }
+        // private or retired tags which the dictionary constants do not cover
+        AtomicReferenceArray<Entry> table = resolved;
+        int m = table.length() - 1;
+        i = hash(tag) & m;
+        while ((e = table.get(i)) != null) {
+            if (e.tag == tag) {
+                return (e.alias != null) ? e : null;
+            }
+            i = (i + 1) & m;
+        }
+        e = resolve(tags, tag);
+        remember(e != null ? e : new Entry(tag, null, false, null));
+        return e;
+    }
+
+    private synchronized void remember(Entry e) {
+        if (resolvedCount >= MAX_RESOLVED) {
+            return;
+        }
+        AtomicReferenceArray<Entry> table = resolved;
+        if ((resolvedCount + 1) * 2 > table.length()) {
+            AtomicReferenceArray<Entry> larger = new AtomicReferenceArray<>(table.length() * 2);
+            for (int j = 0; j < table.length(); j++) {
+                Entry old = table.get(j);
+                if (old != null) {
+                    insert(larger, old);
+                }
+            }
+            table = larger;
+            resolved = larger;
+        }
+        if (insert(table, e)) {
+            resolvedCount++;
+        }
+    }
+
+    /** @return false if the tag was already in the table */
+    private static boolean insert(AtomicReferenceArray<Entry> table, Entry e) {
+        int m = table.length() - 1;
+        int i = hash(e.tag) & m;
+        Entry other;
+        while ((other = table.get(i)) != null) {
+            if (other.tag == e.tag) {
+                return false;
+            }
+            i = (i + 1) & m;
+        }
+        table.set(i, e);
+        return true;
+    }
+
+    /**
+     * Obtains the dictionary VR of the attribute held in a field.
+     *
+     * @param field a field name, which is either an alias or the path of a nested attribute
+     * @return the attribute's VR, or null if the field is not an attribute configured for indexing
+     */
+    public VR getVR(String field) {
+        VR vr = vrByAlias.get(field);
+        if (vr == null) {
+            int i = field.lastIndexOf('_');
+            if (i > 0 && i < field.length() - 1) {
+                vr = vrByAlias.get(field.substring(i + 1));
+            }
+        }
+        return vr;
+    }
+
+    /**
+     * @return the fields indexed for every file, with the DIM fields
+     */
+    public List<Entry> getDIMFields() {
+        return dimFields;
+    }
+
+    /**
+     * Checks whether a value is a decimal integer which fits in a long.
+     *
+     * @param s the value
+     * @return whether Long.parseLong would accept it
+     */
+    static boolean isInteger(String s) {
+        int n = s.length();
+        int i = 0;
+        if (n > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) {
+            i++;
+        }
+        if (i == n) {
+            return false;
+        }
+        // skip leading zeros, then the remaining digits must fit in 18 digits (or 19, checked below)
+        while (i < n - 1 && s.charAt(i) == '0') {
+            i++;
+        }
+        int digits = n - i;
+        for (int j = i; j < n; j++) {
+            char c = s.charAt(j);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        if (digits < 19) {
+            return true;
+        }
+        if (digits > 19) {
+            return false;
+        }
+        String max = (s.charAt(0) == '-') ? "9223372036854775808" : "9223372036854775807";
+        return s.substring(i).compareTo(max) <= 0;
+    }
+
+    /**
+     * Checks whether a value is a decimal number, as in the DS value representation:
+     * an optional sign, digits with an optional decimal point, and an optional exponent.
+     *
+     * @param s the value
+     * @return whether the value is a decimal number
+     */
+    static boolean isDecimal(String s) {
+        int n = s.length();
+        int i = 0;
+        if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            i++;
+        }
+        int digits = 0;
+        while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            i++;
+            digits++;
+        }
+        if (i < n && s.charAt(i) == '.') {
+            i++;
+            while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+                i++;
+            }
+            int expDigits = 0;
+            while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                i++;
+                expDigits++;
+            }
+            if (expDigits == 0) {
+                return false;
+            }
+        }
+        return i == n;
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+/**
+ * How the indexer deals with files whose SOPInstanceUID is already in the index.
+ *
+ */
+public enum IngestMode {
+    /**
+     * Look the file's uri and SOPInstanceUID up before adding it, and ignore it if
+     * either is already indexed. This is the default.
+     */
+    CHECK("check"),
+    /**
+     * Keep the document which was indexed first, ignoring later copies of the same instance.
+     * The uri is not looked up, and documents are written as updates keyed on SOPInstanceUID.
+     */
+    FIRST_WINS("first-wins"),
+    /**
+     * Replace the indexed document with the one received last, atomically, without
+     * looking anything up in the index.
+     */
+    LAST_WINS("last-wins");
+
+    private final String setting;
+
+    IngestMode(String setting) {
+        this.setting = setting;
+    }
+
+    /**
+     * @return the value of this mode in the plugin's settings
+     */
+    public String getSetting() {
+        return setting;
+    }
+
+    /**
+     * Obtains the mode named in the plugin's settings.
+     *
+     * @param setting the setting's value
+     * @return the corresponding mode
+     * @throws IllegalArgumentException if no mode has the given name
+     */
+    public static IngestMode fromSetting(String setting) {
+        for (IngestMode mode : values()) {
+            if (mode.setting.equalsIgnoreCase(setting.trim())) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown ingest mode: " + setting);
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import pt.ua.dicoogle.sdk.datastructs.IndexReport2;
+
+/**
+ * An index report which also tells apart new documents from replaced ones.
+ *
+ * Like its base class, it is not thread safe: concurrent updates must be
+ * synchronized on the report.
+ *
+ */
+public class LuceneIndexReport extends IndexReport2 {
+
+    private int nNew = 0;
+    private int nReplaced = 0;
+    private int nSkipped = 0;
+    private long nTruncated = 0;
+    private long indexBytes = -1;
+
+    /**
+     * Records a file indexed as a new document.
+     */
+    public void addNew() {
+        this.addIndexFile();
+        this.nNew++;
+    }
+
+    /**
+     * Records a file whose document replaced one already in the index.
+     */
+    public void addReplaced() {
+        this.addIndexFile();
+        this.nReplaced++;
+    }
+
+    /**
+     * Records a file which was ignored because its instance was already indexed.
+     */
+    public void addSkipped() {
+        this.nSkipped++;
+    }
+
+    /**
+     * Records data elements which were not indexed because a file exceeded the indexing limits.
+     *
+     * @param elements the number of elements left out
+     */
+    public void addTruncated(long elements) {
+        this.nTruncated += elements;
+    }
+
+    /**
+     * Records the size of the index once the task was done, so that the cost of the
+     * index settings can be compared between tasks.
+     *
+     * @param bytes the size of the index directory (in bytes)
+     */
+    public void setIndexBytes(long bytes) {
+        this.indexBytes = bytes;
+    }
+
+    /**
+     * @return the size of the index once the task was done (in bytes), or -1 if unknown
+     */
+    public long getIndexBytes() {
+        return indexBytes;
+    }
+
+    /**
+     * @return the number of files indexed as new documents
+     */
+    public int getNNew() {
+        return nNew;
+    }
+
+    /**
+     * @return the number of files which replaced a document already in the index
+     */
+    public int getNReplaced() {
+        return nReplaced;
+    }
+
+    /**
+     * @return the number of files ignored because their instance was already indexed
+     */
+    public int getNSkipped() {
+        return nSkipped;
+    }
+
+    /**
+     * @return the number of data elements left out because files exceeded the indexing limits
+     */
+    public long getNTruncated() {
+        return nTruncated;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " [new=" + nNew + ", replaced=" + nReplaced + ", skipped=" + nSkipped
+                + ", truncated=" + nTruncated + ", indexBytes=" + indexBytes + "]";
+    }
+}
@@ -18,23 +18,44 @@
  */
 package dicoogle.lucene;
 
-import dicoogle.lucene.dicom.abstraction.DicomDocument;
-import dicoogle.lucene.dicom.abstraction.IDoc;
+import dicoogle.lucene.dicom.DicomStringDecoder;
+import dicoogle.lucene.dicom.ValuesReader;
+import dicoogle.lucene.dicom.abstraction.IFieldSink;
+import dicoogle.lucene.dicom.abstraction.ReusableDocument;
+import dicoogle.lucene.registry.UIDRegistry;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.StoredField;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
 import org.apache.lucene.util.Version;
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
@@ -48,22 +69,23 @@ import pt.ua.dicoogle.sdk.IndexerInterface;
 import pt.ua.dicoogle.sdk.StorageInputStream;
 import pt.ua.dicoogle.sdk.core.DicooglePlatformInterface;
 import pt.ua.dicoogle.sdk.core.PlatformCommunicatorInterface;
-import pt.ua.dicoogle.sdk.datastructs.IndexReport2;
 import pt.ua.dicoogle.sdk.datastructs.Report;
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
 import pt.ua.dicoogle.sdk.task.ProgressCallable;
 import pt.ua.dicoogle.sdk.task.Task;
-import pt.ua.dicoogle.sdk.utils.TagValue;
 import pt.ua.dicoogle.sdk.utils.TagsStruct;
 
 import java.io.*;
 import java.net.URI;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class implements the indexing strategy of the Lucene Plugin
@@ -80,6 +102,28 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 	static final String DEFAULT_INDEX_PATH = "./index/";
 	static final String INDEX_PATH_DIR_SUFFIX = "indexed";
 	static final String INDEX_PATH_COMPRESSED_SUFFIX = "compressed";
+	static final String INDEX_PATH_REGISTRY_SUFFIX = "registry";
+	static final String INDEX_PATH_SHARDS_SUFFIX = "shards";
+
+	/** the commit data entry telling that every document of the index holds date points */
+	static final String COMMIT_DATE_POINTS = "dicoogle.datePoints";
+	/** the commit data entry telling that every document of the index holds typed numeric points */
+	static final String COMMIT_TYPED_POINTS = "dicoogle.typedPoints";
+	/** the commit data entry telling that every document of the index records the attributes it holds */
+	static final String COMMIT_EXISTENCE = "dicoogle.exists";
+	/** the commit data entry telling that every document of the index was analyzed according to the VRs of its attributes */
+	static final String COMMIT_VR_ANALYSIS = "dicoogle.vrAnalysis";
+	/** the commit data entry holding the number of shards of a sharded index */
+	static final String COMMIT_SHARDS = "dicoogle.shards";
+
+	private static final Set<String> UID_FIELD_SET = Collections.singleton("SOPInstanceUID");
+
+	/** the document filled by each indexing thread */
+	private static final ThreadLocal<ReusableDocument> REUSABLE_DOCUMENT = ThreadLocal.withInitial(ReusableDocument::new);
+
+	/** fields which identify a document, indexed verbatim as a single term */
+	static final Set<String> KEY_FIELDS = Collections.unmodifiableSet(
+	        new HashSet<>(Arrays.asList("uri", "SOPInstanceUID")));
 
 
     private ConfigurationHolder settings;
@@ -95,10 +139,17 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
      */
     private Directory index;
     private Analyzer analyzer;
-    
-    private LuceneQuery lQuery = null;
+    /**
+     * whether key fields are indexed as keywords. This is false for indexes created
+     * by older versions of the plugin, which tokenized them, until they are rebuilt.
+     */
+    private volatile boolean keywordKeys = true;
 
-    private final Set<String> sopInstanceUIDs = Collections.newSetFromMap(new ConcurrentHashMap<>(1024));
+    /** near-real-time searchers over the index, also used for duplicate checks */
+    private volatile SearcherService searcherService;
+
+    /** the SOPInstanceUIDs of all indexed objects, or null if it could not be opened */
+    private volatile UIDRegistry uidRegistry;
 
     /**
      * constructs an indexer instance
@@ -106,10 +157,16 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
     public LuceneIndexer() {
         this.indexFilePath = DEFAULT_INDEX_PATH;
         log.info("Created Lucene Indexer Plugin");
-        
+
+        // Dicoogle may not shut plugins down properly,
+        // so make sure that pending changes are committed on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "lucene-shutdown"));
     }
     
     public final void setIndexPath(String indexPath) {
+        // release the index that was open before, if any
+        close();
+
         this.indexFilePath = indexPath;
 
         log.debug("LUCENE: indexing at {}", indexFilePath);
@@ -121,28 +178,748 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
             fileLock.delete();
         }
 
+        List<Path> shardDirs = shardPaths();
+        boolean sharded = shardDirs.size() > 1;
+        List<IndexWriter> opened = new ArrayList<>(shardDirs.size());
         try {
-            index = FSDirectory.open(new File(indexFilePath + INDEX_PATH_DIR_SUFFIX).toPath());
+            Path indexDir = shardDirs.get(0);
+            List<Directory> dirs = new ArrayList<>(shardDirs.size());
+            if (sharded) {
+                if (restorePath != null) {
+                    log.warn("Restoring a sharded index is not supported, ignoring indexer.restore.path");
+                }
+                for (Path shardDir : shardDirs) {
+                    dirs.add(FSDirectory.open(shardDir));
+                }
+                index = null;
+            } else {
+                index = FSDirectory.open(indexDir);
+                if (restorePath != null && !DirectoryReader.indexExists(index)) {
+                    restoreIndex(indexDir);
+                }
+                dirs.add(index);
+            }
+            this.directories = dirs;
             File f = new File(indexFilePath + File.separator + INDEX_PATH_COMPRESSED_SUFFIX);
             f.mkdirs();
-            analyzer = new StandardAnalyzer();
+            boolean tokenizedKeys = false;
+            boolean vrAnalysis = true;
+            for (Directory dir : dirs) {
+                tokenizedKeys |= hasTokenizedKeys(dir);
+                vrAnalysis &= hasFeature(dir, COMMIT_VR_ANALYSIS);
+            }
+            this.keywordKeys = !tokenizedKeys;
+            // an old index keeps being analyzed the way it was built
+            analyzer = newAnalyzer(keywordKeys, vrAnalysis, othersMaxTokens);
+
+            SnapshotDeletionPolicy snapshotPolicy = null;
+            Set<String> features = null;
+            for (Directory dir : dirs) {
+                IndexWriterConfig indexConfig = new IndexWriterConfig(analyzer)
+                        // the buffer is shared by the shards
+                        .setRAMBufferSizeMB(maxRAMBufferSize / (double) dirs.size())
+                        // applies to new segments, older ones keep theirs until they are merged
+                        .setCodec(codec)
+                        .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+                maintenanceSettings.apply(indexConfig);
+                // commits can be pinned while they are backed up
+                snapshotPolicy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+                indexConfig.setIndexDeletionPolicy(snapshotPolicy);
+                // the writers are kept open for as long as the plugin is running
+                IndexWriter w = new IndexWriter(dir, indexConfig);
+                opened.add(w);
+                if (sharded) {
+                    initShardCount(w, dirs.size());
+                }
+                Set<String> shardFeatures = initFeatures(w, COMMIT_DATE_POINTS, COMMIT_TYPED_POINTS, COMMIT_EXISTENCE,
+                        COMMIT_VR_ANALYSIS);
+                if (features == null) {
+                    features = shardFeatures;
+                } else {
+                    features.retainAll(shardFeatures);
+                }
+                // this will create the index if it does not exist yet
+                w.commit();
+            }
+            this.writers = Collections.unmodifiableList(opened);
+            this.schema = schema.withDatePoints(features.contains(COMMIT_DATE_POINTS))
+                    .withTypedPoints(features.contains(COMMIT_TYPED_POINTS))
+                    .withExistence(features.contains(COMMIT_EXISTENCE));
+            this.commitPolicy = new CommitPolicy(this.writers, commitMaxChanges, commitIntervalMs);
+            this.searcherService = sharded
+                    ? new SearcherService(this.writers, searcherRefreshIntervalMs, searcherMaxAgeSec)
+                    : new SearcherService(this.writers.get(0), searcherRefreshIntervalMs, searcherMaxAgeSec);
+            this.maintenance = new IndexMaintenance(this.writers, this.commitPolicy, this.searcherService,
+                    maintenanceSettings);
+            if (sharded) {
+                if (!replicaPaths.isEmpty()) {
+                    log.warn("Replicating a sharded index is not supported, ignoring indexer.replication.paths");
+                }
+                log.info("Opened the index in {} shards", dirs.size());
+            } else {
+                IndexWriter w = this.writers.get(0);
+                this.snapshots = new IndexSnapshots(w, snapshotPolicy, this.commitPolicy, indexDir);
+                if (!replicaPaths.isEmpty()) {
+                    this.replicator = new IndexReplicator(w, snapshotPolicy, indexDir, replicaPaths,
+                            replicationIntervalMs, replicationRetainSec);
+                }
+            }
 
-            IndexWriterConfig indexConfig = new IndexWriterConfig(analyzer)
-                    .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-            // this will create the index if it does not exist yet
-            new IndexWriter(index, indexConfig).close();
-            
         } catch (IOException ex) {
             log.error("Failed to open index", ex);
+            if (this.writers == null) {
+                for (IndexWriter w : opened) {
+                    try {
+                        w.close();
+                    } catch (IOException | RuntimeException ex1) {
+                        log.warn("Failed to close index writer", ex1);
+                    }
+                }
+            }
+        }
+
+        if (this.searcherService != null) {
+            openUIDRegistry();
+        }
+
+    }
+
+    /**
+     * @return the size of the index directory (in bytes), or -1 if it could not be read
+     */
+    private long indexSize() {
+        List<Directory> dirs = this.directories;
+        if (dirs == null) {
+            return -1;
+        }
+        long size = 0;
+        try {
+            for (Directory dir : dirs) {
+                for (String file : dir.listAll()) {
+                    try {
+                        size += dir.fileLength(file);
+                    } catch (FileNotFoundException | NoSuchFileException ex) {
+                        // removed by a merge in the meantime
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            log.warn("Failed to read the size of the index", ex);
+            return -1;
+        }
+        return size;
+    }
+
+    /**
+     * @return the directories of the shards of the index, or the only directory of an unsharded index
+     */
+    private List<Path> shardPaths() {
+        if (!shardDirs.isEmpty()) {
+            return shardDirs;
+        }
+        if (shardCount <= 1) {
+            return Collections.singletonList(new File(indexFilePath + INDEX_PATH_DIR_SUFFIX).toPath());
+        }
+        List<Path> paths = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            paths.add(new File(indexFilePath + INDEX_PATH_SHARDS_SUFFIX + File.separator + i).toPath());
+        }
+        return paths;
+    }
+
+    /**
+     * Records the number of shards in the commit data of a new shard, or checks it against the
+     * recorded one. Documents are routed by the hash of their key, so changing the number of
+     * shards of an existing index would leave updates and duplicate checks on the wrong shards.
+     *
+     * @param writer the index writer of the shard, before its first commit
+     * @param shards the number of shards
+     * @throws IOException if the shard belongs to an index with another number of shards
+     */
+    private static void initShardCount(IndexWriter writer, int shards) throws IOException {
+        Map<String, String> commitData = new HashMap<>();
+        Iterable<Map.Entry<String, String>> data = writer.getLiveCommitData();
+        if (data != null) {
+            for (Map.Entry<String, String> e : data) {
+                commitData.put(e.getKey(), e.getValue());
+            }
+        }
+        String recorded = commitData.get(COMMIT_SHARDS);
+        if (recorded == null && writer.numDocs() == 0) {
+            commitData.put(COMMIT_SHARDS, Integer.toString(shards));
+            writer.setLiveCommitData(commitData.entrySet());
+        } else if (recorded == null) {
+            throw new IOException("The shard " + writer.getDirectory() + " holds an index which is not sharded");
+        } else if (!Integer.toString(shards).equals(recorded)) {
+            throw new IOException("The index was built with " + recorded + " shards, not " + shards
+                    + ". Rebuild it, or configure the same number of shards");
+        }
+    }
+
+    /**
+     * @return the writer of the shard which holds the document with the given key
+     */
+    private static IndexWriter shardOf(List<IndexWriter> writers, String key) {
+        if (writers.size() == 1) {
+            return writers.get(0);
+        }
+        int hash = StringHelper.murmurhash3_x86_32(new BytesRef(key), 0);
+        return writers.get(Math.floorMod(hash, writers.size()));
+    }
+
+    /**
+     * @return the key which a document is routed to its shard by
+     */
+    private static String shardKey(ReusableDocument doc) {
+        String uid = doc.get("SOPInstanceUID");
+        return (uid != null) ? uid : doc.get("uri");
+    }
+
+    /**
+     * Fills the empty index directory from the configured backup.
+     */
+    private void restoreIndex(Path indexDir) {
+        try {
+            if (IndexSnapshots.restore(restorePath, indexDir)) {
+                // the registry knows nothing of the restored documents, have it rebuilt
+                Path registryDir = new File(indexFilePath + INDEX_PATH_REGISTRY_SUFFIX).toPath();
+                if (Files.isDirectory(registryDir)) {
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(registryDir)) {
+                        for (Path file : files) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                }
+            } else {
+                log.warn("There is no index to restore in {}", restorePath);
+            }
+        } catch (IOException ex) {
+            log.error("Failed to restore the index from {}", restorePath, ex);
+        }
+    }
+
+    /**
+     * Backs up the index while it remains in use. Pending changes are committed first,
+     * and the backup holds the index as of that commit.
+     *
+     * @param target the backup directory, which must be empty or not exist
+     * @return the generation of the commit which was backed up
+     * @throws IOException if the index is not open, or on failure to back it up
+     */
+    public long backup(Path target) throws IOException {
+        IndexSnapshots s = this.snapshots;
+        if (s == null) {
+            throw new IOException("The index is not open, or is sharded");
+        }
+        return s.backup(target);
+    }
+
+    /**
+     * Commits pending changes, and publishes the resulting commit to the configured replicas
+     * without waiting for the next scheduled check.
+     *
+     * @return the generation of the published commit
+     * @throws IOException if the index is not open or has no replicas, or on failure to publish it
+     */
+    public long publish() throws IOException {
+        IndexReplicator r = this.replicator;
+        CommitPolicy policy = this.commitPolicy;
+        if (r == null || policy == null) {
+            throw new IOException("The index is not open or has no replicas");
+        }
+        policy.flush();
+        return r.publish();
+    }
+
+    /**
+     * @return the replica which the query plugin should serve queries from,
+     *  or null to query the live index
+     */
+    public Path getQueryReplica() {
+        return queryReplica;
+    }
+
+    /**
+     * Compiles the indexing plan from the current tag configuration, replacing the one in use.
+     * This is done whenever the settings are applied, and must be called again for changes made
+     * to the tag configuration in the meantime. Files being indexed keep the plan they started with.
+     */
+    public void refreshIndexingPlan() {
+        this.indexingPlan = IndexingPlan.compile(TagsStruct.getInstance());
+    }
+
+    /**
+     * Obtains the plan to index a file with, compiling it again if it was given another tag
+     * configuration instance. This is checked for every file, so it only compares references.
+     */
+    private IndexingPlan getIndexingPlan(TagsStruct tags) {
+        IndexingPlan plan = this.indexingPlan;
+        if (plan == null || !plan.isCompiledFrom(tags)) {
+            plan = IndexingPlan.compile(tags);
+            this.indexingPlan = plan;
+        }
+        return plan;
+    }
+
+    private IndexingPlan getIndexingPlan() {
+        IndexingPlan plan = this.indexingPlan;
+        if (plan == null) {
+            plan = IndexingPlan.compile(TagsStruct.getInstance());
+            this.indexingPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * @return the layout of the index fields, to be shared with the query plugin
+     */
+    public IndexSchema getSchema() {
+        return schema;
+    }
+
+    public Directory getLuceneDirectory() {
+        return index;
+    }
+
+    /**
+     * Creates the analyzer used for parsing queries before the index is opened. Key fields are
+     * not tokenized, so that queries on them match the exact values. Once the index is open,
+     * queries are parsed with {@link #getAnalyzer()} instead.
+     *
+     * @return a new analyzer
+     */
+    static Analyzer newAnalyzer() {
+        return newAnalyzer(true);
+    }
+
+    /**
+     * Creates an analyzer for parsing queries on an index which the indexer did not open.
+     *
+     * @param keywordKeys whether the index keeps key fields as single terms,
+     *  false for indexes built by older versions of the plugin
+     * @return a new analyzer
+     */
+    static Analyzer newAnalyzer(boolean keywordKeys) {
+        return new DicomAnalyzer(null, keywordKeys ? KEY_FIELDS : Collections.<String>emptySet(), 0);
+    }
+
+    /**
+     * Creates an analyzer for indexing, which analyzes each attribute according to its VR
+     * in the current indexing plan.
+     *
+     * @param keywordKeys whether key fields are kept as single terms
+     * @param vrAnalysis whether attributes are analyzed according to their VR, false for
+     *  indexes holding documents indexed by older versions of the plugin
+     * @param othersMaxTokens the maximum number of tokens indexed in the "others" field, 0 for no limit
+     * @return a new analyzer
+     */
+    private Analyzer newAnalyzer(boolean keywordKeys, boolean vrAnalysis, int othersMaxTokens) {
+        return new DicomAnalyzer(this::getIndexingPlan,
+                keywordKeys ? KEY_FIELDS : Collections.<String>emptySet(), othersMaxTokens, vrAnalysis);
+    }
+
+    /**
+     * @return the analyzer of the index, to parse queries with, or null if the index is not open
+     */
+    public Analyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    /**
+     * Tells which layout features every document of the index has. Features are recorded in
+     * the commit data of the indexes created with them, since documents indexed by an older
+     * version of the plugin would not be matched by the queries which rely on them.
+     *
+     * @param writer the index writer, before its first commit
+     * @param features the features of the current layout
+     * @return the features which the whole index has
+     */
+    private static Set<String> initFeatures(IndexWriter writer, String... features) {
+        Map<String, String> commitData = new HashMap<>();
+        Iterable<Map.Entry<String, String>> data = writer.getLiveCommitData();
+        if (data != null) {
+            for (Map.Entry<String, String> e : data) {
+                commitData.put(e.getKey(), e.getValue());
+            }
+        }
+        Set<String> present = new HashSet<>();
+        boolean empty = writer.numDocs() == 0;
+        boolean changed = false;
+        for (String feature : features) {
+            if (Boolean.parseBoolean(commitData.get(feature))) {
+                present.add(feature);
+            } else if (empty) {
+                // a new index has every feature from the start
+                commitData.put(feature, "true");
+                present.add(feature);
+                changed = true;
+            } else {
+                log.warn("The index was created by an older version of the plugin, without {}. "
+                        + "Rebuild it to enable the queries which rely on it", feature);
+            }
+        }
+        if (changed) {
+            writer.setLiveCommitData(commitData.entrySet());
+        }
+        return present;
+    }
+
+    /**
+     * Tells whether every document of an index has a layout feature, before it is opened for
+     * writing. An index without documents gets every feature when it is opened, see
+     * {@link #initFeatures(IndexWriter, String...)}.
+     */
+    static boolean hasFeature(Directory directory, String feature) throws IOException {
+        if (!DirectoryReader.indexExists(directory)) {
+            return true;
+        }
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            return reader.numDocs() == 0
+                    || Boolean.parseBoolean(reader.getIndexCommit().getUserData().get(feature));
+        }
+    }
+
+    /**
+     * Checks whether the index holds key fields which were tokenized by an older version
+     * of the plugin. Mixing both kinds of field would break phrase queries on them, so the
+     * old layout is kept for new documents until the index is rebuilt.
+     */
+    static boolean hasTokenizedKeys(Directory directory) throws IOException {
+        if (!DirectoryReader.indexExists(directory)) {
+            return false;
+        }
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            FieldInfos fieldInfos = MultiFields.getMergedFieldInfos(reader);
+            for (String field : KEY_FIELDS) {
+                FieldInfo info = fieldInfos.fieldInfo(field);
+                if (info != null && info.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0) {
+                    log.warn("The index was created by an older version of the plugin. "
+                            + "Rebuild it to enable exact lookups on the {} fields", KEY_FIELDS);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Opens the persistent SOPInstanceUID registry, filling it from the index if
+     * it was not closed properly before. If this fails, duplicate checks fall back to index queries.
+     */
+    private void openUIDRegistry() {
+        UIDRegistry registry = null;
+        try {
+            registry = UIDRegistry.open(new File(indexFilePath + INDEX_PATH_REGISTRY_SUFFIX).toPath(),
+                    registryInitialCapacity, registryBloomBitsPerEntry);
+            if (registry.isRebuildNeeded()) {
+                fillUIDRegistry(registry);
+            }
+            this.uidRegistry = registry;
+            log.info("{}", registry);
+        } catch (IOException | RuntimeException ex) {
+            log.error("Failed to open the SOPInstanceUID registry, duplicates will be checked against the index", ex);
+            if (registry != null) {
+                try {
+                    registry.close();
+                } catch (IOException ex1) {
+                    log.warn("Failed to close the SOPInstanceUID registry", ex1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the SOPInstanceUIDs of all live documents in the index to the given registry.
+     */
+    private void fillUIDRegistry(UIDRegistry registry) throws IOException {
+        long time = System.currentTimeMillis();
+        SearcherService searchers = this.searcherService;
+        searchers.refresh();
+        IndexSearcher searcher = searchers.acquire();
+        try {
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                LeafReader leaf = ctx.reader();
+                Terms terms = leaf.terms("SOPInstanceUID");
+                if (terms == null) {
+                    continue;
+                }
+                Bits liveDocs = leaf.getLiveDocs();
+                TermsEnum termsEnum = terms.iterator();
+                PostingsEnum postings = null;
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                    int doc;
+                    while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                        if (liveDocs == null || liveDocs.get(doc)) {
+                            registry.add(term.utf8ToString());
+                            break;
+                        }
+                    }
+                }
+            }
+        } finally {
+            searchers.release(searcher);
+        }
+        registry.resetStatistics();
+        log.info("Filled the SOPInstanceUID registry with {} entries in {} ms", registry.size(),
+                System.currentTimeMillis() - time);
+    }
+
+    /**
+     * Counts the live documents holding any of the given terms, removing their SOPInstanceUIDs
+     * from the registry. This must be done before the documents are deleted.
+     *
+     * @param field the field of the terms
+     * @param terms the terms, in order
+     * @return the number of matching documents
+     */
+    private long forgetTerms(String field, SortedSet<BytesRef> terms) throws IOException {
+        UIDRegistry registry = this.uidRegistry;
+        SearcherService searchers = this.searcherService;
+        if (searchers == null) {
+            throw new IOException("The index searchers are not available");
+        }
+        // make sure that recently added documents are seen
+        searchers.refresh();
+        IndexSearcher searcher = searchers.acquire();
+        long count = 0;
+        try {
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                LeafReader leaf = ctx.reader();
+                Terms leafTerms = leaf.terms(field);
+                if (leafTerms == null) {
+                    continue;
+                }
+                Bits liveDocs = leaf.getLiveDocs();
+                TermsEnum termsEnum = leafTerms.iterator();
+                PostingsEnum postings = null;
+                for (BytesRef term : terms) {
+                    if (!termsEnum.seekExact(term)) {
+                        continue;
+                    }
+                    postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                    int doc;
+                    while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                        if (liveDocs == null || liveDocs.get(doc)) {
+                            count++;
+                            forgetUID(leaf, doc, registry);
+                        }
+                    }
+                }
+            }
+        } finally {
+            searchers.release(searcher);
+        }
+        return count;
+    }
+
+    /**
+     * Counts the live documents matching any of the given queries, removing their
+     * SOPInstanceUIDs from the registry. This must be done before the documents are deleted.
+     *
+     * @param queries the queries, which are expected not to match the same documents
+     * @return the number of matching documents
+     */
+    private long forgetMatches(List<Query> queries) throws IOException {
+        final UIDRegistry registry = this.uidRegistry;
+        SearcherService searchers = this.searcherService;
+        if (searchers == null) {
+            throw new IOException("The index searchers are not available");
+        }
+        // make sure that recently added documents are seen
+        searchers.refresh();
+        IndexSearcher searcher = searchers.acquire();
+        try {
+            long count = 0;
+            for (Query query : queries) {
+                if (registry == null) {
+                    count += searcher.count(query);
+                    continue;
+                }
+                final long[] n = new long[1];
+                searcher.search(query, new SimpleCollector() {
+                    private LeafReader leaf;
+
+                    @Override
+                    protected void doSetNextReader(LeafReaderContext context) {
+                        leaf = context.reader();
+                    }
+
+                    @Override
+                    public void collect(int doc) throws IOException {
+                        n[0]++;
+                        forgetUID(leaf, doc, registry);
+                    }
+
+                    @Override
+                    public boolean needsScores() {
+                        return false;
+                    }
+                });
+                count += n[0];
+            }
+            return count;
+        } finally {
+            searchers.release(searcher);
+        }
+    }
+
+    private static void forgetUID(LeafReader leaf, int doc, UIDRegistry registry) throws IOException {
+        if (registry == null) {
+            return;
+        }
+        String uid = leaf.document(doc, UID_FIELD_SET).get("SOPInstanceUID");
+        if (uid != null) {
+            registry.remove(uid);
+        }
+    }
+
+    /**
+     * @return the persistent SOPInstanceUID registry, or null if it is not available
+     */
+    public UIDRegistry getUIDRegistry() {
+        return uidRegistry;
+    }
+
+    /**
+     * @return the period between searcher refreshes (in ms)
+     */
+    public long getSearcherRefreshIntervalMs() {
+        return searcherRefreshIntervalMs;
+    }
+
+    /**
+     * @return for how long a searcher pinned by a result stream remains available after it was replaced (in seconds)
+     */
+    public double getSearcherMaxAgeSec() {
+        return searcherMaxAgeSec;
+    }
+
+    /**
+     * @return the searchers over this indexer's live index, or null if the index is not open
+     */
+    public SearcherService getSearcherService() {
+        return searcherService;
+    }
+
+    /**
+     * Commits all changes made to the index so far.
+     *
+     * @throws IOException if the commit fails
+     */
+    public void flush() throws IOException {
+        CommitPolicy policy = this.commitPolicy;
+        if (policy != null) {
+            policy.flush();
+        }
+    }
+
+    /**
+     * Notifies the commit policy of changes made to the index.
+     */
+    private void changed(long changes) {
+        CommitPolicy policy = this.commitPolicy;
+        if (policy != null) {
+            policy.onChange(changes);
+        }
+    }
+
+    /**
+     * Commits pending changes and releases the index writer, once the files being indexed are done.
+     * This method is called on shutdown, and is a no-op if the index is not open.
+     */
+    public synchronized void close() {
+        // wait for the files being indexed, and hold off new ones until the writers are closed
+        indexLock.writeLock().lock();
+        try {
+            List<IndexWriter> ws = this.writers;
+            CommitPolicy policy = this.commitPolicy;
+            SearcherService searchers = this.searcherService;
+            UIDRegistry registry = this.uidRegistry;
+            IndexMaintenance m = this.maintenance;
+            IndexReplicator r = this.replicator;
+            this.writers = null;
+            this.maintenance = null;
+            this.snapshots = null;
+            this.replicator = null;
+            this.commitPolicy = null;
+            this.searcherService = null;
+            this.uidRegistry = null;
+            // the registry can only be trusted next time if everything it knows of was committed
+            boolean committed = true;
+
+            if (m != null) {
+                m.close();
+            }
+            if (searchers != null) {
+                try {
+                    searchers.close();
+                } catch (IOException | RuntimeException ex) {
+                    log.warn("Failed to close index searchers", ex);
+                }
+            }
+            if (policy != null) {
+                try {
+                    policy.close();
+                } catch (IOException | RuntimeException ex) {
+                    log.error("Failed to commit index changes on close", ex);
+                    committed = false;
+                }
+            }
+            if (r != null) {
+                // publishes the last commit
+                r.close();
+            }
+            if (ws != null) {
+                for (IndexWriter w : ws) {
+                    try {
+                        w.close();
+                        log.debug("Closed index writer");
+                    } catch (IOException | RuntimeException ex) {
+                        log.error("Failed to close index writer", ex);
+                        committed = false;
+                    }
+                }
+            }
+            if (registry != null) {
+                try {
+                    if (committed) {
+                        registry.markClean();
+                    }
+                    registry.close();
+                } catch (IOException | RuntimeException ex) {
+                    log.error("Failed to close the SOPInstanceUID registry", ex);
+                }
+            }
+        } finally {
+            indexLock.writeLock().unlock();
         }
-
-        lQuery = new LuceneQuery();
-        lQuery.setIndexPath(getLuceneDirectory());
-
     }
 
-    public Directory getLuceneDirectory() {
-        return index;
+    /**
+     * Creates a task which reclaims the space of deleted documents, or merges the index down
+     * to the configured number of segments, as scheduled maintenance does.
+     *
+     * @return the maintenance task, whose progress tells how much of the work was done
+     */
+    public Task<MaintenanceReport> maintain() {
+        return new Task<>(new ProgressCallable<MaintenanceReport>() {
+            @Override
+            public MaintenanceReport call() throws Exception {
+                IndexMaintenance m = maintenance;
+                if (m == null) {
+                    throw new IllegalStateException("The index is not open");
+                }
+                return m.run();
+            }
+
+            @Override
+            public float getProgress() {
+                IndexMaintenance m = maintenance;
+                return (m != null) ? m.getProgress() : -1f;
+            }
+        });
     }
 
     @Override
@@ -158,14 +935,13 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 
                     	log.debug("Started single index task: {}", file.getURI());
 
-                        IndexReport2 r = new IndexReport2();
+                        LuceneIndexReport r = new LuceneIndexReport();
                         r.started();
                         try
                         {
                             if(handles(file.getURI())) {
-                                beginTransaction();
+                                // committed later on, according to the commit policy
                                 indexStream(file, r);
-                                endTransaction();
                             }
                         } catch (Exception e) {
                             log.error("Error in last commits", e);
@@ -189,42 +965,70 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 	public Task<Report> index(final Iterable<StorageInputStream> files, Object ... args) {
 
 		Task<Report> t = new Task<>(new ProgressCallable<Report>() {
-			private float progress = -1.0f;
+			private volatile float progress = -1.0f;
 
 			@Override
 			public Report call() throws Exception {
 
 				log.debug("Started Index Task: {}", (Object)this.hashCode());
-				IndexReport2 taskReport = new IndexReport2();
+				LuceneIndexReport taskReport = new LuceneIndexReport();
 				taskReport.started();
-				
-				try {
 
-					Iterator<StorageInputStream> it = files.iterator();
+				// the number of files is only known up front for collections
+				final int total = (files instanceof Collection) ? ((Collection<?>) files).size() : -1;
+				final AtomicInteger done = new AtomicInteger();
 
-					beginTransaction();
-					int i = 1;
+				try {
 
-					while (it.hasNext()) {
-						StorageInputStream s = it.next();
-                        if(!handles(s.getURI())){continue;}
+					Iterator<StorageInputStream> it = files.iterator();
 
-						log.debug("Started Indexing: {},{},{}", (Object)this.hashCode(), (Object)i, s.getURI());
-						try {
-							indexStream(s, taskReport);
-						} catch (Exception e) {
-							log.error("ERROR Indexing: {},{},{}", (Object)this.hashCode(), (Object)i, s.getURI(), e);
-							taskReport.addError();
+					IndexingPipeline.Batch batch = pipeline.newBatch();
+					try {
+						int i = 1;
+
+						while (it.hasNext()) {
+							if (writers == null) {
+								log.warn("The index was closed, stopping Index Task {} after {} file(s)",
+										(Object) this.hashCode(), (Object) (i - 1));
+								synchronized (taskReport) {
+									taskReport.addError();
+								}
+								break;
+							}
+							final StorageInputStream s = it.next();
+							if(!handles(s.getURI())){continue;}
+
+							final int n = i++;
+							batch.submit(() -> {
+								log.debug("Started Indexing: {},{},{}", (Object)this.hashCode(), (Object)n, s.getURI());
+								try {
+									indexStream(s, taskReport);
+								} catch (Exception e) {
+									log.error("ERROR Indexing: {},{},{}", (Object)this.hashCode(), (Object)n, s.getURI(), e);
+									synchronized (taskReport) {
+										taskReport.addError();
+									}
+								}
+								log.info("Finished Indexing: {},{},{}", (Object)this.hashCode(), (Object)n, s.getURI());
+								int count = done.incrementAndGet();
+								if (total > 0) {
+									progress = Math.min(count, total) / (float) total;
+								}
+							});
 						}
-						log.info("Finished Indexing: {},{},{},{}", (Object)this.hashCode(), (Object)i, s.getURI(), taskReport);
-						i++;
+					} finally {
+						batch.await();
 					}
-					endTransaction();
+					// make the whole task durable at once
+					flush();
+					taskReport.setIndexBytes(indexSize());
 					progress = 1.0f;
-					
+
 				} catch (Exception e) {
 					log.error("ERROR in Indexing Task", e);
-					taskReport.addError();
+					synchronized (taskReport) {
+						taskReport.addError();
+					}
 				}
 
                 taskReport.finished();
@@ -240,76 +1044,199 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 		return t;
 	}
 	
-	private int transactions=0;
-	private IndexWriter writer;
+	/** the writers of the shards of the index, a single one unless it is sharded */
+	private volatile List<IndexWriter> writers;
+	/** the directories of the shards, in the order of the writers */
+	private volatile List<Directory> directories;
+	/** the number of shards of the index, when their directories are not configured */
+	private int shardCount = 1;
+	/** the configured directories of the shards, if any */
+	private List<Path> shardDirs = Collections.emptyList();
+	private volatile CommitPolicy commitPolicy;
+	private volatile IndexMaintenance maintenance;
+	private volatile IndexSnapshots snapshots;
+	private volatile IndexReplicator replicator;
+	/** the directories which the commits of the index are published to */
+	private List<Path> replicaPaths = Collections.emptyList();
+	private long replicationIntervalMs = 1000;
+	private double replicationRetainSec = 600;
+	/** the replica which queries are served from, or null for the live index */
+	private Path queryReplica;
+	/** the backup which an empty index is restored from, if any */
+	private Path restorePath;
+	private IndexMaintenance.Settings maintenanceSettings = IndexMaintenance.Settings.DEFAULT;
 
 	private int maxRAMBufferSize;
+	private IndexCodec codec = new IndexCodec(Lucene50StoredFieldsFormat.Mode.BEST_SPEED,
+			Collections.emptyMap(), Collections.emptyMap());
+	private long commitMaxChanges;
+	private long commitIntervalMs;
+	private long searcherRefreshIntervalMs = 1000;
+	private double searcherMaxAgeSec = 60;
+	private long registryInitialCapacity = 1 << 20;
+	private int registryBloomBitsPerEntry = 10;
+	private volatile IngestMode ingestMode = IngestMode.CHECK;
+	/** the layout of the index fields */
+	private volatile IndexSchema schema = IndexSchema.DEFAULT;
+	/** how each tag is indexed, compiled from the tag configuration */
+	private volatile IndexingPlan indexingPlan;
+	private int othersMaxTokens = 100000;
+	private int walkMaxDepth = 8;
+	private int walkMaxItems = 10000;
+	private int walkMaxElements = 100000;
+
+	/** held while indexing a file, and exclusively while closing the index */
+	private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+	/** the pool of workers used by bulk index tasks */
+	private volatile IndexingPipeline pipeline = new IndexingPipeline(1, 0);
 
 	private boolean enabled;
-	
-	private synchronized void beginTransaction() throws IOException{		
-		if(transactions==0) {
-            IndexWriterConfig indexConfig = new IndexWriterConfig(analyzer)
-                    .setRAMBufferSizeMB(maxRAMBufferSize)
-                    .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-			this.writer = new IndexWriter(index, indexConfig);
-		}		
-		this.transactions++;
-	}
-	
-	private synchronized void endTransaction() throws IOException{
-		this.transactions--;
-		this.writer.commit();
-		if(transactions==0){
-			this.writer.close();
-			this.writer = null;
-		}
-	}	
-	
-	private synchronized void indexStream(StorageInputStream file, IndexReport2 r) {
 
+	/**
+	 * Indexes a single file. This method is thread safe: documents are parsed in the
+	 * calling thread and added concurrently to the shared index writer.
+	 */
+	private void indexStream(StorageInputStream file, LuceneIndexReport r) {
+
+        // the index is not closed while the file is indexed
+        indexLock.readLock().lock();
+        IngestMode mode = this.ingestMode;
         try {
-            IDoc idoc = this.docFromFile(file);
+            ReusableDocument luceneDoc = this.docFromFile(file, mode, r);
 
-            if (idoc != null) {
-                Document luceneDoc = idoc.toDocument();
+            if (luceneDoc == null) {
+                synchronized (r) {
+                    r.addSkipped();
+                }
+            } else {
                 try {
                     // Index file size
-                    StoredField fileSize = new StoredField("FileSize", file.getSize());
-                    luceneDoc.add(fileSize);
+                    luceneDoc.addStored("FileSize", file.getSize());
                 } catch (Exception e) {
                     log.warn("Failed to add file size field to document", e);
                 }
 
-                try {
-                    this.writer.addDocument(luceneDoc);
-                    r.addIndexFile();
-                } catch (IOException ex) {
-                    log.error("Failed to add document to index", ex);
-                    r.addError();
+                if (mode == IngestMode.CHECK) {
+                    addDocument(luceneDoc, r);
+                } else {
+                    upsertDocument(luceneDoc, mode, r);
                 }
 
             }
         } catch (IOException e) {
             log.error("Failed to produce a document for the index", e);
-            r.addError();
+            synchronized (r) {
+                r.addError();
+            }
+        } finally {
+            indexLock.readLock().unlock();
         }
 	}
 
     /**
-     * @return the constructed document, or `null` if the file was ignored
+     * Adds a document which was already checked not to be in the index.
+     */
+    private void addDocument(ReusableDocument luceneDoc, LuceneIndexReport r) {
+        try {
+            List<IndexWriter> ws = this.writers;
+            if (ws == null) {
+                throw new IOException("The index is not open");
+            }
+            shardOf(ws, shardKey(luceneDoc)).addDocument(luceneDoc);
+            changed(1);
+            synchronized (r) {
+                r.addNew();
+            }
+        } catch (IOException | RuntimeException ex) {
+            // including a writer closed in the meantime, the claimed UID is not in the index
+            log.error("Failed to add document to index", ex);
+            UIDRegistry registry = this.uidRegistry;
+            String uid = luceneDoc.get("SOPInstanceUID");
+            if (registry != null && uid != null) {
+                registry.remove(uid);
+            }
+            synchronized (r) {
+                r.addError();
+            }
+        }
+    }
+
+    /**
+     * Writes a document as an update keyed on its SOPInstanceUID, so that a copy of
+     * the same instance is atomically replaced rather than duplicated. Whether a copy
+     * was there is told by the UID registry, or by a term lookup if it is not available.
+     */
+    private void upsertDocument(ReusableDocument luceneDoc, IngestMode mode, LuceneIndexReport r) {
+        String uid = luceneDoc.get("SOPInstanceUID");
+        UIDRegistry registry = this.uidRegistry;
+        boolean existed = false;
+        try {
+            List<IndexWriter> ws = this.writers;
+            SearcherService searchers = this.searcherService;
+            if (ws == null || searchers == null) {
+                throw new IOException("The index is not open");
+            }
+            if (uid == null) {
+                throw new IOException("The document has no SOPInstanceUID");
+            }
+            Term key = new Term("SOPInstanceUID", uid);
+            existed = (registry != null) ? !registry.add(uid) : searchers.exists(key);
+
+            if (existed && mode == IngestMode.FIRST_WINS) {
+                log.info("SOPInstanceUID already exists, ignoring: {}", uid);
+                synchronized (r) {
+                    r.addSkipped();
+                }
+                return;
+            }
+
+            // copies of an instance are routed to the same shard
+            shardOf(ws, uid).updateDocument(key, luceneDoc);
+            changed(1);
+            synchronized (r) {
+                if (existed) {
+                    r.addReplaced();
+                } else {
+                    r.addNew();
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.error("Failed to add document to index", ex);
+            if (registry != null && uid != null && !existed) {
+                registry.remove(uid);
+            }
+            synchronized (r) {
+                r.addError();
+            }
+        }
+    }
+
+    /**
+     * @param mode the ingest mode; lookups for existing documents are only done in {@link IngestMode#CHECK}
+     * @param r the report of the task, which receives the number of truncated elements
+     * @return the constructed document, which is this thread's reusable document, or `null` if the file was ignored
      * @exception IOException on I/O errors
      */
-    private IDoc docFromFile(StorageInputStream storage) throws IOException {
+    private ReusableDocument docFromFile(StorageInputStream storage, IngestMode mode, LuceneIndexReport r) throws IOException {
+
+        SearcherService searchers = this.searcherService;
+        if (searchers == null) {
+            throw new IOException("The index is not open");
+        }
+
+        boolean keywordKeys = this.keywordKeys;
+        boolean lookup = mode == IngestMode.CHECK;
 
         // Check whether the document already exists
-        final Iterable<SearchResult> it = this.lQuery.query(new TermQuery(new Term("uri", storage.getURI().toString())));
-        if (it.iterator().hasNext()) {
+        Term uriTerm = new Term("uri", storage.getURI().toString());
+        if (lookup && (keywordKeys ? searchers.exists(uriTerm) : searchers.exists(new TermQuery(uriTerm)))) {
             log.info("File {} already exists, ignoring", storage.getURI());
         	return null;
         }
         
         TagsStruct tagStruct = TagsStruct.getInstance();
+        IndexingPlan plan = getIndexingPlan(tagStruct);
 
         BufferedInputStream bufferedStream = null;
         DicomInputStream dicomStream = null;
@@ -320,38 +1247,63 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
             dicomStream = new DicomInputStream(bufferedStream);
             dicomStream.setHandler(new StopTagInputHandler(Tag.PixelData));
             DicomObject dicomObject = dicomStream.readDicomObject();
-            IDoc returnDoc = new DicomDocument();
-            returnDoc.add("uri", storage.getURI().toString());
+            DicomStringDecoder decoder = DicomStringDecoder.forDataset(dicomObject);
+            // filled in place, reusing the fields of the last file indexed by this thread
+            ReusableDocument returnDoc = REUSABLE_DOCUMENT.get();
+            final IndexSchema schema = this.schema;
+            IndexProfile profile = schema.getProfile();
+            returnDoc.setTextTypes(profile.getTextType(), profile.getStreamType());
+            // an old index keeps its float points, which its queries rely on
+            returnDoc.setLegacyPoints(!schema.hasTypedPoints());
+            returnDoc.setStorage(schema);
+            returnDoc.reset();
+            addField(returnDoc, VR.ST, "uri", storage.getURI().toString());
             String SOPInstanceUID = dicomObject.getString(Tag.SOPInstanceUID).trim();
-            // check for collision from the local UID registry,
-            // This is currently required because snapshot may not include the most
-            // recently indexed items, and so could end up re-indexing the same object.
-            if (sopInstanceUIDs.contains(SOPInstanceUID)) {
-                log.info("SOPInstanceUID already exists, ignoring: {}", SOPInstanceUID);
-                return null;
-            }
-            sopInstanceUIDs.add(SOPInstanceUID);
-            // check for collision by SOPInstanceUID from the database's last snapshot
-            final Iterable<?> it2 = this.lQuery.query(new TermQuery(new Term("SOPInstanceUID", SOPInstanceUID)));
-            if (it2.iterator().hasNext()) {
+            // the UID is only claimed here when checking, upserts claim it when writing
+            UIDRegistry registry = lookup ? this.uidRegistry : null;
+            if (registry != null) {
+                // the registry knows of everything in the index, including what the
+                // searcher does not see yet. Claim the UID now, so that concurrent
+                // workers do not index the same object twice.
+                if (!registry.add(SOPInstanceUID)) {
+                    log.info("SOPInstanceUID already exists, ignoring: {}", SOPInstanceUID);
+                    return null;
+                }
+            } else if (lookup && (keywordKeys ? searchers.exists(new Term("SOPInstanceUID", SOPInstanceUID))
+                    : searchers.exists(new TermQuery(new Term("SOPInstanceUID", SOPInstanceUID))))) {
+                // check for collision by SOPInstanceUID from the database's last snapshot
             	log.info("SOPInstanceUID already exists, ignoring: {}", SOPInstanceUID);
                 return null;
             }
 
-            for (TagValue tag : tagStruct.getDIMFields()) {
-                String data;
-                DicomElement e = dicomObject.get(tag.getTagNumber());
-                if (e != null) {
-                    data = getValue(e);
-                } else {
-                    data = "";
+            try {
+                boolean sparse = schema.isSparse();
+                for (IndexingPlan.Entry tag : plan.getDIMFields()) {
+                    DicomElement e = dicomObject.get(tag.getTag());
+                    if (e != null) {
+                        addField(returnDoc, tag.handlerFor(e.vr()), tag.getAlias(), getValue(e, decoder));
+                    } else if (!sparse) {
+                        // legacy layout, missing attributes are indexed as empty values
+                        addValue(returnDoc, tag.handlerFor(tag.getVR()), tag.getAlias(), "");
+                    }
                 }
-                addField(returnDoc, dicomObject.vrOf(tag.getTagNumber()), tag.getAlias(), data);
-            }
-
 
-            if (tagStruct.isModalityEnable(dicomObject.getString(Tag.Modality).trim()) || tagStruct.isIndexAllModalitiesEnabled()) {
-                fetchAllContent(returnDoc, dicomObject, tagStruct.isDeepSearchModalitiesEnabled());
+                if (tagStruct.isModalityEnable(dicomObject.getString(Tag.Modality).trim()) || tagStruct.isIndexAllModalitiesEnabled()) {
+                    long truncated = fetchAllContent(returnDoc, dicomObject, plan, tagStruct.isDeepSearchModalitiesEnabled(), decoder);
+                    if (truncated > 0) {
+                        log.warn("{} data element(s) of {} were not indexed, the file exceeds the indexing limits",
+                                truncated, storage.getURI());
+                        synchronized (r) {
+                            r.addTruncated(truncated);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                // the object was not indexed after all
+                if (registry != null) {
+                    registry.remove(SOPInstanceUID);
+                }
+                throw ex;
             }
 
             return returnDoc;
@@ -406,7 +1358,183 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 			this.maxRAMBufferSize = 255;
 			cnf.setProperty("indexer.maxRAMBufferSize", this.maxRAMBufferSize);
 		}
+
+		try {
+			this.commitMaxChanges = cnf.getLong("indexer.commit.maxChanges");
+		} catch (NoSuchElementException ex) {
+			this.commitMaxChanges = 10000;
+			cnf.setProperty("indexer.commit.maxChanges", this.commitMaxChanges);
+		}
+
+		try {
+			this.commitIntervalMs = cnf.getLong("indexer.commit.intervalMs");
+		} catch (NoSuchElementException ex) {
+			this.commitIntervalMs = 5000;
+			cnf.setProperty("indexer.commit.intervalMs", this.commitIntervalMs);
+		}
+
+		try {
+			this.searcherRefreshIntervalMs = cnf.getLong("indexer.searcher.refreshIntervalMs");
+		} catch (NoSuchElementException ex) {
+			this.searcherRefreshIntervalMs = 1000;
+			cnf.setProperty("indexer.searcher.refreshIntervalMs", this.searcherRefreshIntervalMs);
+		}
+
+		try {
+			this.searcherMaxAgeSec = cnf.getDouble("indexer.searcher.maxAgeSec");
+		} catch (NoSuchElementException ex) {
+			// about the longest pause expected between two pages of results
+			this.searcherMaxAgeSec = 60;
+			cnf.setProperty("indexer.searcher.maxAgeSec", this.searcherMaxAgeSec);
+		}
+
+		try {
+			this.registryInitialCapacity = cnf.getLong("indexer.registry.initialCapacity");
+		} catch (NoSuchElementException ex) {
+			this.registryInitialCapacity = 1 << 20;
+			cnf.setProperty("indexer.registry.initialCapacity", this.registryInitialCapacity);
+		}
+
+		try {
+			this.registryBloomBitsPerEntry = cnf.getInt("indexer.registry.bloomBitsPerEntry");
+		} catch (NoSuchElementException ex) {
+			this.registryBloomBitsPerEntry = 10;
+			cnf.setProperty("indexer.registry.bloomBitsPerEntry", this.registryBloomBitsPerEntry);
+		}
+
+		try {
+			this.ingestMode = IngestMode.fromSetting(cnf.getString("indexer.ingest.mode"));
+		} catch (NoSuchElementException ex) {
+			this.ingestMode = IngestMode.CHECK;
+			cnf.setProperty("indexer.ingest.mode", this.ingestMode.getSetting());
+		} catch (IllegalArgumentException ex) {
+			log.warn("{}, using \"{}\"", ex.getMessage(), IngestMode.CHECK.getSetting());
+			this.ingestMode = IngestMode.CHECK;
+		}
+
+		try {
+			this.othersMaxTokens = cnf.getInt("indexer.others.maxTokens");
+		} catch (NoSuchElementException ex) {
+			this.othersMaxTokens = 100000;
+			cnf.setProperty("indexer.others.maxTokens", this.othersMaxTokens);
+		}
+
+		try {
+			this.walkMaxDepth = cnf.getInt("indexer.walk.maxDepth");
+		} catch (NoSuchElementException ex) {
+			this.walkMaxDepth = 8;
+			cnf.setProperty("indexer.walk.maxDepth", this.walkMaxDepth);
+		}
+
+		try {
+			this.walkMaxItems = cnf.getInt("indexer.walk.maxItems");
+		} catch (NoSuchElementException ex) {
+			this.walkMaxItems = 10000;
+			cnf.setProperty("indexer.walk.maxItems", this.walkMaxItems);
+		}
+
+		try {
+			this.walkMaxElements = cnf.getInt("indexer.walk.maxElements");
+		} catch (NoSuchElementException ex) {
+			this.walkMaxElements = 100000;
+			cnf.setProperty("indexer.walk.maxElements", this.walkMaxElements);
+		}
+
+		this.codec = IndexCodec.load(cnf);
+		log.debug("Index codec: {}", this.codec);
+
+		this.maintenanceSettings = IndexMaintenance.Settings.load(cnf);
+
+		try {
+			this.shardCount = Math.max(1, cnf.getInt("indexer.shards.count"));
+		} catch (NoSuchElementException ex) {
+			this.shardCount = 1;
+			cnf.setProperty("indexer.shards.count", this.shardCount);
+		}
+
+		List<Path> shards = new ArrayList<>();
+		if (cnf.containsKey("indexer.shards.paths")) {
+			for (String path : cnf.getStringArray("indexer.shards.paths")) {
+				if (!path.trim().isEmpty()) {
+					shards.add(Paths.get(path.trim()));
+				}
+			}
+		} else {
+			cnf.setProperty("indexer.shards.paths", "");
+		}
+		if (shards.size() == 1) {
+			log.warn("A single shard directory was configured, using the unsharded index");
+			shards.clear();
+		}
+		this.shardDirs = shards;
+
+		try {
+			String restore = cnf.getString("indexer.restore.path").trim();
+			this.restorePath = restore.isEmpty() ? null : Paths.get(restore);
+		} catch (NoSuchElementException ex) {
+			this.restorePath = null;
+			cnf.setProperty("indexer.restore.path", "");
+		}
+		log.debug("Index maintenance: {}", this.maintenanceSettings);
+
+		List<Path> replicas = new ArrayList<>();
+		if (cnf.containsKey("indexer.replication.paths")) {
+			for (String path : cnf.getStringArray("indexer.replication.paths")) {
+				if (!path.trim().isEmpty()) {
+					replicas.add(Paths.get(path.trim()));
+				}
+			}
+		} else {
+			cnf.setProperty("indexer.replication.paths", "");
+		}
+		this.replicaPaths = replicas;
+
+		try {
+			this.replicationIntervalMs = cnf.getLong("indexer.replication.intervalMs");
+		} catch (NoSuchElementException ex) {
+			this.replicationIntervalMs = 1000;
+			cnf.setProperty("indexer.replication.intervalMs", this.replicationIntervalMs);
+		}
+
+		try {
+			this.replicationRetainSec = cnf.getDouble("indexer.replication.retainSec");
+		} catch (NoSuchElementException ex) {
+			this.replicationRetainSec = 600;
+			cnf.setProperty("indexer.replication.retainSec", this.replicationRetainSec);
+		}
+
+		try {
+			String replica = cnf.getString("indexer.replication.queryPath").trim();
+			this.queryReplica = replica.isEmpty() ? null : Paths.get(replica);
+		} catch (NoSuchElementException ex) {
+			this.queryReplica = null;
+			cnf.setProperty("indexer.replication.queryPath", "");
+		}
+
+		this.schema = IndexSchema.load(cnf);
+		log.debug("Index schema: {}", this.schema);
+
+		int workers;
+		try {
+			workers = cnf.getInt("indexer.pipeline.workers");
+		} catch (NoSuchElementException ex) {
+			workers = 1;
+			cnf.setProperty("indexer.pipeline.workers", workers);
+		}
+
+		int queueSize;
+		try {
+			queueSize = cnf.getInt("indexer.pipeline.queueSize");
+		} catch (NoSuchElementException ex) {
+			queueSize = 64;
+			cnf.setProperty("indexer.pipeline.queueSize", queueSize);
+		}
+
+		IndexingPipeline oldPipeline = this.pipeline;
+		this.pipeline = new IndexingPipeline(workers, queueSize);
+		oldPipeline.close();
         
+        refreshIndexingPlan();
         this.setIndexPath(cnf.getString("indexer.path", DEFAULT_INDEX_PATH));
 		
 		try {
@@ -428,42 +1556,27 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
         return vr == VR.SS || vr == VR.US || vr == VR.SL || vr == VR.UL || vr == VR.FL ||vr == VR.FD;
     }
 
+    /**
+     * Retrieves the value of an element as a string, decoding text as ISO-8859-1.
+     *
+     * @param element the DICOM element
+     * @return the element's value
+     */
     public static String getValue(DicomElement element) {
+        return getValue(element, DicomStringDecoder.DEFAULT);
+    }
 
-        if (!isBinaryField(element.vr())) {
-            String value = null;
-            Charset utf8charset = Charset.forName("UTF-8");
-            Charset iso88591charset = Charset.forName("iso8859-1");
-            byte[] values = element.getBytes();
-            ByteBuffer inputBuffer = ByteBuffer.wrap(values);
-
-            // decode UTF-8
-            CharBuffer data = iso88591charset.decode(inputBuffer);
-
-            // encode ISO-8559-1
-            ByteBuffer outputBuffer = utf8charset.encode(data);
+    /**
+     * Retrieves the value of an element as a string.
+     *
+     * @param element the DICOM element
+     * @param decoder the decoder for the character set of the element's data set
+     * @return the element's value
+     */
+    public static String getValue(DicomElement element, DicomStringDecoder decoder) {
 
-            byte[] outputData = outputBuffer.array();
-            try {
-                value = new String(outputData, "UTF-8").trim();
-            } catch (UnsupportedEncodingException ex) {
-                log.error("Failed to retrieve element data", ex);
-            }
-            /*
-             * 
-             *  ASCII         "ISO_IR 6"    =>  "UTF-8"
-             UTF-8         "ISO_IR 192"  =>  "UTF-8"
-             ISO Latin 1   "ISO_IR 100"  =>  "ISO-8859-1"
-             ISO Latin 2   "ISO_IR 101"  =>  "ISO-8859-2"
-             ISO Latin 3   "ISO_IR 109"  =>  "ISO-8859-3"
-             ISO Latin 4   "ISO_IR 110"  =>  "ISO-8859-4"
-             ISO Latin 5   "ISO_IR 148"  =>  "ISO-8859-9"
-             Cyrillic      "ISO_IR 144"  =>  "ISO-8859-5"
-             Arabic        "ISO_IR 127"  =>  "ISO-8859-6"
-             Greek         "ISO_IR 126"  =>  "ISO-8859-7"
-             Hebrew        "ISO_IR 138"  =>  "ISO-8859-8"
-             */
-            return value;
+        if (!isBinaryField(element.vr())) {
+            return decoder.decode(element.getBytes());
         }
 
         if (element.vr() == VR.FD && element.getBytes().length == 8) {
@@ -521,7 +1634,25 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
         return value;
     }
 
-    private void addField(IDoc docToAdd, VR vr, String tag, String value) {
+    private void addField(IFieldSink docToAdd, VR vr, String tag, String value) {
+        addField(docToAdd, IndexingPlan.ValueHandler.forVR(vr), tag, value);
+    }
+
+    /**
+     * Adds an attribute's value to the document, and records the attribute as present.
+     */
+    private void addField(IFieldSink docToAdd, IndexingPlan.ValueHandler handler, String tag, String value) {
+        if (docToAdd == null || tag == null) {
+            return;
+        }
+        addValue(docToAdd, handler, tag, value);
+        docToAdd.addTerm(IndexSchema.EXISTS_FIELD, tag);
+        if (schema.hasSuffixes(tag)) {
+            docToAdd.addIndexOnly(IndexSchema.suffixField(tag), value);
+        }
+    }
+
+    private void addValue(IFieldSink docToAdd, IndexingPlan.ValueHandler handler, String tag, String value) {
         if (docToAdd == null) {
             return;
         }
@@ -532,143 +1663,329 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
             value = "";
         }
 
-        if (vr == VR.IS || vr == VR.US || vr == VR.SS) {
-            try {
-                long v = Long.parseLong(value);
-                docToAdd.add(tag, v);
-            } catch (NumberFormatException ex) {
-                docToAdd.add(tag, value);
-            }
-        } else if (vr == VR.DS || vr == VR.FL || vr == VR.FD) {
-            try {
-                float v = Float.parseFloat(value);
-                docToAdd.add(tag, v);
-            } catch (NumberFormatException ex) {
-                docToAdd.add(tag, value);
-            }
+        if (keywordKeys && KEY_FIELDS.contains(tag)) {
+            docToAdd.addKeyword(tag, value.trim());
         } else {
-            docToAdd.add(tag, value);
+            handler.add(docToAdd, tag, value);
         }
     }
 
     /**
-     * Retrieve all textual content of a DICOM object, storing attributes in the given document
-     * and returning.
+     * Retrieve all textual content of a DICOM object, storing attributes in the given document.
      * This is used for the others query field, which allows free text queries.
      *
      * @param doc the document object for indexing
      * @param obj the DICOM object to scan
-     * @param deepSearch
-     * @return a 2 element list
+     * @param plan how each tag is indexed
+     * @param deepSearch whether to index all elements, rather than only those configured as "other" fields
+     * @param decoder the decoder for the object's text values
+     * @return the number of data elements which were left out due to the walk's budgets
      */
-    private void fetchAllContent(IDoc doc, DicomObject obj, boolean deepSearch) {
-        StringBuilder sb = new StringBuilder();
-        getRecursiveDicomElement(sb, doc, obj, "", deepSearch);
-        doc.add("others", sb.toString());
+    private long fetchAllContent(IFieldSink doc, DicomObject obj, IndexingPlan plan, boolean deepSearch, DicomStringDecoder decoder) {
+        List<String> values = new ArrayList<>();
+        long truncated = walkDicomObject(values, doc, obj, plan, deepSearch, decoder);
+        // read by the analyzer as the document is indexed, without joining the values
+        doc.add("others", new ValuesReader(values));
+        return truncated;
+    }
+
+    /** A data set or sequence item being walked */
+    private static final class ItemFrame {
+        final Iterator<DicomElement> elements;
+        /** the field name prefix of the item's elements */
+        final String prefix;
+        final DicomStringDecoder decoder;
+        /** the number of sequences enclosing the item */
+        final int depth;
+        /** the sequence holding the item, null for the data set */
+        final SequenceFrame sequence;
+        /** the names of the fields indexed in the item */
+        final StringBuilder tagList = new StringBuilder();
+        /** whether the item's elements go to the keyed nested field */
+        final boolean keyed;
+        /** the sequence element whose items are being walked, if any */
+        SequenceFrame current;
+
+        ItemFrame(DicomObject obj, String prefix, DicomStringDecoder decoder, int depth, SequenceFrame sequence,
+                  boolean keyed) {
+            this.elements = obj.iterator();
+            this.prefix = prefix;
+            this.decoder = decoder;
+            this.depth = depth;
+            this.sequence = sequence;
+            this.keyed = keyed;
+        }
+    }
+
+    /** A sequence element whose items are being walked */
+    private static final class SequenceFrame {
+        final DicomElement element;
+        final String name;
+        /** the names of the fields indexed in all items */
+        final StringBuilder tagList = new StringBuilder();
+        int nextItem = 0;
+
+        SequenceFrame(DicomElement element, String name) {
+            this.element = element;
+            this.name = name;
+        }
     }
 
     /**
-     * Recursively retrieve all textual content of a DICOM object, storing it in the given document and
-     * accumulating values into the given string builder.
-     * This is used for the others query field, which allows free text queries.
+     * Walks all textual content of a DICOM object, including every item of its sequences,
+     * storing it in the given document and collecting values into the given list.
+     * Elements inside sequences are named after the path to them, e.g. "ContentSequence_CodeValue".
+     * Each sequence gets a field with the names of the fields found in its items.
+     *
+     * The walk is iterative and bounded by the configured nesting depth, number of items
+     * and number of elements.
      *
-     * @param acc the accumulator for all DICOM content (to be indexed as "others")
+     * @param acc the values of all DICOM content (to be indexed as "others")
      * @param doc the document object for indexing
      * @param obj the DICOM object to scan
-     * @param prefix the prefix at this level
-     * @param deepSearch
-     * @return the concatenated list of tag names
+     * @param plan how each tag is indexed
+     * @param deepSearch whether to index all elements, rather than only those configured as "other" fields
+     * @param decoder the decoder for the object's text values
+     * @return the number of data elements which were left out due to the walk's budgets
      */
-    private String getRecursiveDicomElement(StringBuilder acc, IDoc doc, DicomObject obj, String prefix, boolean deepSearch) {
+    private long walkDicomObject(List<String> acc, IFieldSink doc, DicomObject obj, IndexingPlan plan, boolean deepSearch,
+                                 DicomStringDecoder decoder) {
+        final int maxDepth = this.walkMaxDepth;
+        final int maxItems = this.walkMaxItems;
+        final int maxElements = this.walkMaxElements;
+        final IndexSchema schema = this.schema;
+
+        long truncated = 0;
+        int items = 0;
+        int elements = 0;
+
+        Deque<ItemFrame> stack = new ArrayDeque<>();
+        stack.push(new ItemFrame(obj, "", decoder, 0, null, false));
+        while (!stack.isEmpty()) {
+            ItemFrame frame = stack.peek();
+
+            SequenceFrame seq = frame.current;
+            if (seq != null) {
+                if (seq.nextItem < seq.element.countItems()) {
+                    DicomObject item = seq.element.getDicomObject(seq.nextItem++);
+                    if (items >= maxItems) {
+                        truncated += item.size();
+                    } else {
+                        items++;
+                        boolean keyed = (frame.depth == 0) ? schema.isKeyed(seq.name) : frame.keyed;
+                        stack.push(new ItemFrame(item, frame.prefix + seq.name + "_",
+                                frame.decoder.forItem(item), frame.depth + 1, seq, keyed));
+                    }
+                } else {
+                    frame.current = null;
+                    addField(doc, VR.ST, seq.name, seq.tagList.toString());
+                    frame.tagList.append(' ').append(seq.tagList);
+                }
+                continue;
+            }
 
-        // Hard heuristic just to be sure that application will be not running forever
-        if (prefix.length() > 512) {
-            return "";
-        }
+            if (!frame.elements.hasNext()) {
+                stack.pop();
+                if (frame.sequence != null) {
+                    frame.sequence.tagList.append(' ').append(frame.tagList);
+                }
+                continue;
+            }
 
-        Map<String, String> sequences = new HashMap<>();
-        String tagList = "";
+            DicomElement dcm = frame.elements.next();
+            IndexingPlan.Entry tag = plan.get(dcm.tag());
+            if (tag == null || !(deepSearch || tag.isOther())) {
+                continue;
+            }
+            if (elements >= maxElements) {
+                truncated++;
+                continue;
+            }
+            elements++;
 
-        TagsStruct tagstruct = TagsStruct.getInstance();
+            String tagName = tag.getAlias();
 
-        Iterator<DicomElement> it = obj.iterator();
-        while (it.hasNext()) {
-            DicomElement dcm = it.next();
-            int tmpTag = dcm.tag();
-            TagValue tag = tagstruct.getTagValue(tmpTag);
-            
-            boolean index = deepSearch || tagstruct.isOtherField(tag);
-            
-            if(tag != null && index){
-            	
-                String tagName = tag.getAlias();
-
-                if (dcm.hasItems()) {
-                    String prefixAux = prefix + tagName + "_";
-
-                    if (dcm.countItems() > 0) {
-                        acc.append(' ');
-                        String tags = getRecursiveDicomElement(acc, doc,
-                                dcm.getDicomObject(0), prefixAux, deepSearch);
-                        tagList = tagList + " " + tags;
-                        sequences.put(tagName, tags);
+            if (dcm.hasItems()) {
+                if (dcm.countItems() == 0) {
+                    continue;
+                }
+                if (frame.depth >= maxDepth) {
+                    for (int i = 0; i < dcm.countItems(); i++) {
+                        truncated += dcm.getDicomObject(i).size();
                     }
-                } /*
-                 * Drop the non-search-valid fields (Pixel data etc)
-                 */ else if (dcm.vr() != VR.OB && dcm.vr() != VR.OW && !tagName.equals("?")) {
-                    String value = getValue(dcm);
-
-                    if (value != null) {
-                        tagList = tagList + " " + prefix + tagName;
-                        addField(doc, dcm.vr(), prefix + tagName, value);
-                        acc.append(' ').append(value);
+                    continue;
+                }
+                frame.current = new SequenceFrame(dcm, tagName);
+            } else if (dcm.vr() != VR.OB && dcm.vr() != VR.OW && !tagName.equals("?")) {
+                // Drop the non-search-valid fields (Pixel data etc)
+                String value = getValue(dcm, frame.decoder);
+
+                if (value != null) {
+                    String fieldName = frame.prefix + tagName;
+                    frame.tagList.append(' ').append(fieldName);
+                    if (frame.keyed) {
+                        schema.addKeyed(doc, fieldName, value);
+                        doc.addTerm(IndexSchema.EXISTS_FIELD, fieldName);
+                    } else {
+                        addField(doc, tag.handlerFor(dcm.vr()), fieldName, value);
                     }
+                    acc.add(value);
                 }
-            	
-            }            
-        }
-
-        // There is a sequence
-        for (Map.Entry<String, String> e : sequences.entrySet()) {
-            addField(doc, VR.ST, e.getKey(), e.getValue());
+            }
         }
 
-        return tagList;
+        return truncated;
     }
 
     @Override
     public boolean unindex(URI uri) {
-        Query q = null;
+        Query q;
         try {
-
-            // could not make this work without a query parser
-            QueryParser parser = new QueryParser( "uri", analyzer);
-            String s = uri.toString().replace("/", "\\/");
-
-            try {
-                q = parser.parse("uri:\"" + s + "\"");
-            } catch (ParseException ex) {
-                log.error("Failed to parse query due to bad URI: {}", uri);
-                return false;
+            if (keywordKeys) {
+                q = new TermQuery(new Term("uri", uri.toString()));
+            } else {
+                q = legacyUriQuery(uri);
+                if (q == null) {
+                    return false;
+                }
             }
 
-
             log.debug("Query: {}", q);
-            beginTransaction();
-            this.writer.deleteDocuments(q);
-            endTransaction();
+            List<IndexWriter> ws = this.writers;
+            if (ws == null) {
+                log.warn("Unindex was attempted before the index was open");
+                return false;
+            }
+            if (this.uidRegistry != null) {
+                // without scoring or collecting top documents, the index may be large
+                if (q instanceof TermQuery) {
+                    forgetTerms("uri", new TreeSet<>(Collections.singleton(((TermQuery) q).getTerm().bytes())));
+                } else {
+                    forgetMatches(Collections.singletonList(q));
+                }
+            }
+            // the shard is not known from the URI alone
+            for (IndexWriter w : ws) {
+                if (q instanceof TermQuery) {
+                    w.deleteDocuments(((TermQuery) q).getTerm());
+                } else {
+                    w.deleteDocuments(q);
+                }
+            }
+            changed(1);
             return true;
         } catch (IOException ex) {
-            log.error("Failed to unindex, attempting close", ex);
-            if (this.writer != null) {
-                try {
-                    this.writer.close();
-                } catch (IOException ex1) {
-                    log.error(ex1.getMessage(), ex1);
+            log.error("Failed to unindex {}", uri, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Removes the documents of many files from the index at once, with a single commit.
+     *
+     * @param uris the files to unindex
+     * @return the number of documents removed, or -1 on failure
+     */
+    public long unindex(Collection<URI> uris) {
+        List<IndexWriter> ws = this.writers;
+        if (ws == null) {
+            log.warn("Unindex was attempted before the index was open");
+            return -1;
+        }
+        if (uris.isEmpty()) {
+            return 0;
+        }
+        try {
+            long removed;
+            if (keywordKeys) {
+                // sorted, so that each segment's term dictionary is read in order
+                SortedSet<BytesRef> terms = new TreeSet<>();
+                for (URI uri : uris) {
+                    terms.add(new BytesRef(uri.toString()));
+                }
+                removed = forgetTerms("uri", terms);
+                Term[] deleted = new Term[terms.size()];
+                int i = 0;
+                for (BytesRef term : terms) {
+                    deleted[i++] = new Term("uri", term);
+                }
+                for (IndexWriter w : ws) {
+                    w.deleteDocuments(deleted);
+                }
+            } else {
+                List<Query> queries = new ArrayList<>(uris.size());
+                for (URI uri : uris) {
+                    Query q = legacyUriQuery(uri);
+                    if (q != null) {
+                        queries.add(q);
+                    }
+                }
+                removed = forgetMatches(queries);
+                Query[] deleted = queries.toArray(new Query[queries.size()]);
+                for (IndexWriter w : ws) {
+                    w.deleteDocuments(deleted);
                 }
-                this.writer = null;
             }
-            return false;
+            flush();
+            log.info("Unindexed {} document(s) of {} URI(s)", removed, uris.size());
+            return removed;
+        } catch (IOException ex) {
+            log.error("Failed to unindex {} URI(s)", uris.size(), ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Removes the documents of all files whose URI starts with the given prefix, such as
+     * the URI of a folder or study path ending with '/', with a single commit.
+     *
+     * @param prefix the prefix of the URIs to unindex, not empty
+     * @return the number of documents removed, or -1 on failure
+     */
+    public long unindexPrefix(String prefix) {
+        List<IndexWriter> ws = this.writers;
+        if (ws == null) {
+            log.warn("Unindex was attempted before the index was open");
+            return -1;
+        }
+        if (prefix.isEmpty()) {
+            log.warn("Refusing to unindex by an empty prefix");
+            return -1;
+        }
+        if (!keywordKeys) {
+            log.error("Unindexing by prefix requires an index with untokenized keys, rebuild the index to use it");
+            return -1;
+        }
+        try {
+            Query q = new PrefixQuery(new Term("uri", prefix));
+            long removed = forgetMatches(Collections.singletonList(q));
+            for (IndexWriter w : ws) {
+                w.deleteDocuments(q);
+            }
+            flush();
+            log.info("Unindexed {} document(s) under {}", removed, prefix);
+            return removed;
+        } catch (IOException ex) {
+            log.error("Failed to unindex {}", prefix, ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Creates the query matching the document of a file in an index whose keys were tokenized
+     * by an older version.
+     *
+     * @return the query, or null if the URI could not be parsed
+     */
+    private Query legacyUriQuery(URI uri) {
+        // match it as a phrase
+        QueryParser parser = new QueryParser("uri", new StandardAnalyzer());
+        String s = uri.toString().replace("/", "\\/");
+        try {
+            return parser.parse("uri:\"" + s + "\"");
+        } catch (ParseException ex) {
+            log.error("Failed to parse query due to bad URI: {}", uri);
+            return null;
         }
     }
 
@@ -61,7 +61,27 @@ public class LucenePluginSet extends PluginBase{
 
 	@Override
 	public void setSettings(ConfigurationHolder xmlSettings) {
-        this.query.setIndexPath(indexer.getLuceneDirectory());
+        this.query.setSchema(indexer.getSchema());
+        this.query.setAnalyzer(indexer.getAnalyzer());
+        this.query.setSearcherTimes(indexer.getSearcherRefreshIntervalMs(), indexer.getSearcherMaxAgeSec());
+        if (indexer.getQueryReplica() != null) {
+            // follower mode, queries are spread away from the live index
+            this.query.setReplicaPath(indexer.getQueryReplica());
+        } else if (indexer.getSearcherService() != null) {
+            // share the indexer's near-real-time searchers, including those of an index it reopens later
+            this.query.setSearcherService(indexer::getSearcherService);
+        } else {
+            this.query.setIndexPath(indexer.getLuceneDirectory());
+        }
 	}
 
+    /**
+     * Commits pending index changes and releases the index.
+     */
+    public void shutdown() {
+        log.info("Shutting down lucene plugin set");
+        query.close();
+        indexer.close();
+    }
+
 }
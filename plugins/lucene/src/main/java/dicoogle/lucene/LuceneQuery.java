@@ -19,15 +19,17 @@
 package dicoogle.lucene;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.Supplier;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 
 import dicoogle.lucene.query.ShardResultStream;
 import org.slf4j.Logger;
@@ -46,60 +48,189 @@ public class LuceneQuery implements QueryInterface{
     private static final Logger logger = LoggerFactory.getLogger(LuceneQuery.class);
 
 	private ConfigurationHolder settings;
-    private Directory indexDir;
-    private Analyzer analyzer = new StandardAnalyzer();
-    
-    private volatile DirectoryReader reader;
+    private volatile Analyzer analyzer = LuceneIndexer.newAnalyzer();
+    /** whether the analyzer was given by the indexer, rather than chosen for the index opened here */
+    private volatile boolean indexerAnalyzer = false;
+
+    /** the layout of the index fields */
+    private volatile IndexSchema schema = IndexSchema.DEFAULT;
+
+    /** the searchers used for queries */
+    private volatile SearcherService searcherService;
+    /** gives the searchers of the indexer, which are replaced when it reopens the index, or null */
+    private volatile Supplier<SearcherService> sharedSearchers;
+    /** whether the searcher service was created (and must be closed) by this plugin */
+    private boolean ownsSearcherService = false;
+    /** the period between refreshes of the searchers opened by this plugin (in ms) */
+    private long refreshIntervalMs = 1000;
+    /** for how long a searcher opened by this plugin remains available to result streams after it was replaced */
+    private double maxPinnedAgeSec = 60;
+    /** the replica served in follower mode, or null */
+    private Path replicaPath;
+    /** the directory opened by this plugin on the replica, if any */
+    private Directory replica;
 
     public LuceneQuery() {
     }
-    
-    protected DirectoryReader reloadedReader() throws IOException {
-        if (this.reader == null) {
-            this.reader = DirectoryReader.open(this.indexDir);
-            logger.debug("New Reader: {}", reader);
-        } else {
-            DirectoryReader nreader = DirectoryReader.openIfChanged(reader);
-            if(nreader != null) {
-                this.reader = nreader;
-                logger.debug("New Reader: {}", reader);
+
+    /**
+     * Uses the searcher service given at the time of each query.
+     * The services are shared, and will not be closed by this plugin.
+     *
+     * @param searchers gives the current searcher service, typically the indexer's, which is
+     *                  replaced whenever the indexer reopens the index
+     */
+    public synchronized void setSearcherService(Supplier<SearcherService> searchers) {
+        releaseSearcherService();
+        this.sharedSearchers = searchers;
+    }
+
+    /** @return the searchers for the next query, or null if none are open */
+    private SearcherService currentSearcherService() {
+        Supplier<SearcherService> shared = this.sharedSearchers;
+        return shared != null ? shared.get() : this.searcherService;
+    }
+
+    /**
+     * Sets the analyzer of queries, which must be the one the index is built with.
+     *
+     * @param analyzer the analyzer, or null to keep the default one
+     */
+    public void setAnalyzer(Analyzer analyzer) {
+        if (analyzer != null) {
+            this.analyzer = analyzer;
+            this.indexerAnalyzer = true;
+        }
+    }
+
+    /**
+     * Sets the layout of the index fields, as built by the indexer.
+     *
+     * @param schema the index schema
+     */
+    public void setSchema(IndexSchema schema) {
+        this.schema = (schema != null) ? schema : IndexSchema.DEFAULT;
+    }
+
+    /**
+     * Sets how the searchers opened by this plugin are refreshed, for the index directories
+     * and replicas set afterwards.
+     *
+     * @param refreshIntervalMs the period between searcher refreshes (in ms)
+     * @param maxPinnedAgeSec for how long a searcher remains available to result streams after it was replaced (in seconds)
+     */
+    public void setSearcherTimes(long refreshIntervalMs, double maxPinnedAgeSec) {
+        this.refreshIntervalMs = refreshIntervalMs;
+        this.maxPinnedAgeSec = maxPinnedAgeSec;
+    }
+
+    /**
+     * Queries the committed contents of the given index directory.
+     *
+     * @param index the index directory
+     */
+    public synchronized void setIndexPath(Directory index) {
+        releaseSearcherService();
+        if (index == null) {
+            return;
+        }
+        try {
+            this.searcherService = new SearcherService(index, refreshIntervalMs, maxPinnedAgeSec);
+            this.ownsSearcherService = true;
+            chooseAnalyzer(index);
+        } catch (IOException ex) {
+            logger.warn("Failed to open index", ex);
+        }
+    }
+
+    /**
+     * Serves queries from a replica of the index, to which the indexer publishes its commits
+     * (follower mode). Searchers switch to each new revision of the replica as it is published,
+     * and queries never touch the index writer. If the replica holds no index yet, it is
+     * opened on the first query after the first revision is published.
+     *
+     * @param replicaPath the directory of the replica
+     */
+    public synchronized void setReplicaPath(Path replicaPath) {
+        releaseSearcherService();
+        this.replicaPath = replicaPath;
+        openReplica();
+    }
+
+    private synchronized SearcherService openReplica() {
+        if (searcherService != null || replicaPath == null) {
+            return searcherService;
+        }
+        try {
+            if (replica == null) {
+                replica = FSDirectory.open(replicaPath);
+            }
+            if (!DirectoryReader.indexExists(replica)) {
+                logger.info("No index was published to replica {} yet", replicaPath);
+                return null;
             }
+            this.searcherService = new SearcherService(replica, refreshIntervalMs, maxPinnedAgeSec);
+            this.ownsSearcherService = true;
+            chooseAnalyzer(replica);
+            logger.info("Serving queries from replica {}", replicaPath);
+        } catch (IOException ex) {
+            logger.warn("Failed to open replica {}", replicaPath, ex);
         }
-        return this.reader;
+        return searcherService;
     }
-    
-    protected DirectoryReader reader() throws IOException {
-        if (this.reader == null) {
-            this.reader = DirectoryReader.open(indexDir);
-            logger.debug("Reader: {}", reader);
+
+    /**
+     * Without the indexer's analyzer, parses queries the way an index opened here was built:
+     * indexes built by older versions of the plugin have tokenized key fields.
+     */
+    private void chooseAnalyzer(Directory index) throws IOException {
+        if (!indexerAnalyzer) {
+            this.analyzer = LuceneIndexer.newAnalyzer(!LuceneIndexer.hasTokenizedKeys(index));
         }
-        return this.reader;
     }
-    
-    public void setIndexPath(Directory index) {
-        this.indexDir = index;
-        this.reader = null;
+
+    /**
+     * Releases the searchers held by this plugin.
+     */
+    public synchronized void close() {
+        releaseSearcherService();
+    }
+
+    private void releaseSearcherService() {
+        SearcherService old = this.searcherService;
+        this.searcherService = null;
+        this.sharedSearchers = null;
+        if (old != null && ownsSearcherService) {
+            try {
+                old.close();
+            } catch (IOException ex) {
+                logger.warn("Failed to close index searchers", ex);
+            }
+        }
+        this.ownsSearcherService = false;
+        if (replica != null) {
+            try {
+                replica.close();
+            } catch (IOException ex) {
+                logger.warn("Failed to close replica {}", replicaPath, ex);
+            }
+        }
+        this.replica = null;
+        this.replicaPath = null;
     }
     
 	@Override
 	public Iterable<SearchResult> query(String query, Object... parameters) {
 		long time = System.currentTimeMillis();
 		
-        if (this.indexDir == null) {
+        if (currentSearcherService() == null && openReplica() == null) {
             logger.warn("Query was attempted before settings were initialized");
             return Collections.emptyList();
         }
-        
-		//Check for changes in the reader;
-        try {
-    	    this.reader = reloadedReader();
-        } catch (IOException ex) {
-            logger.warn("Trying to open index file", ex);
-            return Collections.emptyList();
-        }
 	    
 		GenericQueryParser parser = new GenericQueryParser("others", analyzer);
 		parser.setAllowLeadingWildcard(true);
+		parser.setSchema(schema);
 		AllDocCollector collector = new AllDocCollector();
 		
 		Query queryObject;
@@ -120,21 +251,13 @@ public class LuceneQuery implements QueryInterface{
 	}
 
     public Iterable<SearchResult> query(Query query, Object... parameters) {
-        if (this.indexDir == null) {
+        if (currentSearcherService() == null && openReplica() == null) {
             logger.warn("Query was attempted before settings were initialized");
             return Collections.emptyList();
         }
 
         long time = System.currentTimeMillis();
 
-        //Check for changes in the reader;
-        try {
-            this.reader = reloadedReader();
-        } catch (IOException ex) {
-            logger.warn("Trying to open index file", ex);
-            return Collections.emptyList();
-        }
-
         Iterable<SearchResult> rs = justQuery(query, parameters);
         time = System.currentTimeMillis() - time;
         logger.info("Finished opening result stream in {} ms", time);
@@ -143,12 +266,23 @@ public class LuceneQuery implements QueryInterface{
     }
 
     private Iterable<SearchResult> justQuery(Query query, Object... parameters) {
-        IndexSearcher searcher = new IndexSearcher(reader);
+        SearcherService service = currentSearcherService();
+        if (service == null) {
+            logger.warn("Query was attempted before settings were initialized");
+            return Collections.emptyList();
+        }
         HashMap<String, Object> extrafields = null;
         //AllDocCollector collector = new AllDocCollector();
         if (parameters.length > 0 && parameters[0] instanceof HashMap)
             extrafields = (HashMap<String, Object>) parameters[0];
-        return new ShardResultStream(searcher, query, extrafields);
+        try {
+            // the stream sticks to the current searcher until it is exhausted
+            return new ShardResultStream(service, schema.getProfile().prepare(query), extrafields);
+        } catch (IOException | AlreadyClosedException ex) {
+            // the searchers may be closed by a reload of the index in the meantime
+            logger.warn("Failed to open index searcher", ex);
+            return Collections.emptyList();
+        }
     }
 
     @Override
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+/**
+ * The outcome of an index maintenance run.
+ *
+ */
+public class MaintenanceReport {
+
+    private final boolean forceMerge;
+    private final int segmentsBefore;
+    private final int segmentsAfter;
+    private final long deletedBefore;
+    private final long deletedAfter;
+    private final long elapsedMs;
+    private final String skipped;
+
+    /**
+     * @param forceMerge whether segments were merged down to a target count, rather than only expunging deletes
+     * @param segmentsBefore the number of segments before the run
+     * @param segmentsAfter the number of segments after the run
+     * @param deletedBefore the number of deleted documents before the run
+     * @param deletedAfter the number of deleted documents after the run
+     * @param elapsedMs the duration of the run (in ms)
+     * @param skipped why nothing was done, or null if the run took place
+     */
+    public MaintenanceReport(boolean forceMerge, int segmentsBefore, int segmentsAfter, long deletedBefore,
+                             long deletedAfter, long elapsedMs, String skipped) {
+        this.forceMerge = forceMerge;
+        this.segmentsBefore = segmentsBefore;
+        this.segmentsAfter = segmentsAfter;
+        this.deletedBefore = deletedBefore;
+        this.deletedAfter = deletedAfter;
+        this.elapsedMs = elapsedMs;
+        this.skipped = skipped;
+    }
+
+    /**
+     * @return whether segments were merged down to a target count, rather than only expunging deletes
+     */
+    public boolean isForceMerge() {
+        return forceMerge;
+    }
+
+    public int getSegmentsBefore() {
+        return segmentsBefore;
+    }
+
+    public int getSegmentsAfter() {
+        return segmentsAfter;
+    }
+
+    public long getDeletedBefore() {
+        return deletedBefore;
+    }
+
+    public long getDeletedAfter() {
+        return deletedAfter;
+    }
+
+    /**
+     * @return the duration of the run (in ms)
+     */
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    /**
+     * @return why nothing was done, or null if the run took place
+     */
+    public String getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public String toString() {
+        if (skipped != null) {
+            return "MaintenanceReport [skipped: " + skipped + "]";
+        }
+        return "MaintenanceReport [" + (forceMerge ? "force-merge" : "expunge") + ", segments=" + segmentsBefore
+                + "->" + segmentsAfter + ", deleted=" + deletedBefore + "->" + deletedAfter
+                + ", elapsed=" + elapsedMs + "ms]";
+    }
+}
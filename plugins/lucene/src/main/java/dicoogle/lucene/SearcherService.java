@@ -0,0 +1,464 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides reference-counted index searchers, shared by the query plugin and the indexer.
+ *
+ * When fed from the live index writer, searchers are near-real-time: they see documents which
+ * were added but not yet committed. Searchers are refreshed periodically in the background.
+ * Long running result streams can pin the searcher they started on with {@link #pin()}, and
+ * re-acquire it later with {@link #acquire(long)}. A replaced searcher is dropped as soon as
+ * every stream pinning it was unpinned with {@link #unpin(long)}, and at the latest once it was
+ * replaced for longer than the configured age.
+ *
+ * Closing the service stops new searches, but the searchers pinned by open result streams remain
+ * available to them, until they are unpinned or expire.
+ *
+ * Over a sharded index, each searcher reads all shards, and searches them concurrently.
+ *
+ */
+public class SearcherService implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SearcherService.class);
+
+    private final ReferenceManager<IndexSearcher> manager;
+    private final ScheduledExecutorService refresher;
+    /** the executor of concurrent searches over shards, if any */
+    private final ExecutorService searchExecutor;
+    private final double maxPinnedAgeSec;
+    private volatile boolean closed = false;
+
+    /** the searchers recorded with {@link #pin()}, by token */
+    private final Map<Long, Pinned> pinned = new ConcurrentHashMap<>();
+    /** the tokens of the recorded searchers, by reader */
+    private final Map<IndexReader, Long> tokens = new IdentityHashMap<>();
+    private long nextToken = 0;
+
+    /** a recorded searcher, holding a reference to its reader */
+    private static final class Pinned {
+        final IndexSearcher searcher;
+        /** the number of pins not yet released */
+        int pins = 0;
+        /** when the searcher was found to be replaced (in ns), 0 while it is current */
+        long replacedAt = 0;
+
+        Pinned(IndexSearcher searcher) {
+            this.searcher = searcher;
+        }
+    }
+
+    /**
+     * Creates a near-real-time searcher service over the given index writer.
+     *
+     * @param writer the index writer
+     * @param refreshIntervalMs the period between searcher refreshes (in ms)
+     * @param maxPinnedAgeSec for how long a searcher remains available after it was replaced (in seconds)
+     * @throws IOException if the first searcher could not be opened
+     */
+    public SearcherService(IndexWriter writer, long refreshIntervalMs, double maxPinnedAgeSec) throws IOException {
+        this(new SearcherManager(writer, new SearcherFactory()), null, refreshIntervalMs, maxPinnedAgeSec);
+    }
+
+    /**
+     * Creates a searcher service over the commits of the given index directory.
+     *
+     * @param directory the index directory
+     * @param refreshIntervalMs the period between searcher refreshes (in ms)
+     * @param maxPinnedAgeSec for how long a searcher remains available after it was replaced (in seconds)
+     * @throws IOException if the first searcher could not be opened
+     */
+    public SearcherService(Directory directory, long refreshIntervalMs, double maxPinnedAgeSec) throws IOException {
+        this(new SearcherManager(directory, new SearcherFactory()), null, refreshIntervalMs, maxPinnedAgeSec);
+    }
+
+    /**
+     * Creates a near-real-time searcher service over the writers of a sharded index.
+     * Searches run over the shards concurrently, in as many threads as there are shards.
+     *
+     * @param writers the index writers of the shards
+     * @param refreshIntervalMs the period between searcher refreshes (in ms)
+     * @param maxPinnedAgeSec for how long a searcher remains available after it was replaced (in seconds)
+     * @throws IOException if the first searcher could not be opened
+     */
+    public SearcherService(List<IndexWriter> writers, long refreshIntervalMs, double maxPinnedAgeSec)
+            throws IOException {
+        this(writers, newSearchExecutor(writers.size()), refreshIntervalMs, maxPinnedAgeSec);
+    }
+
+    private SearcherService(List<IndexWriter> writers, ExecutorService searchExecutor, long refreshIntervalMs,
+                            double maxPinnedAgeSec) throws IOException {
+        this(openShards(writers, searchExecutor), searchExecutor, refreshIntervalMs, maxPinnedAgeSec);
+    }
+
+    private SearcherService(ReferenceManager<IndexSearcher> manager, ExecutorService searchExecutor,
+                            long refreshIntervalMs, double maxPinnedAgeSec) {
+        this.manager = manager;
+        this.searchExecutor = searchExecutor;
+        this.maxPinnedAgeSec = maxPinnedAgeSec;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lucene-searcher-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(1, refreshIntervalMs);
+        this.refresher.scheduleWithFixedDelay(this::refreshQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static ExecutorService newSearchExecutor(int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "lucene-search");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static ReferenceManager<IndexSearcher> openShards(List<IndexWriter> writers, ExecutorService executor)
+            throws IOException {
+        try {
+            return new ShardSearcherManager(writers, executor);
+        } catch (IOException | RuntimeException ex) {
+            executor.shutdown();
+            throw ex;
+        }
+    }
+
+    /**
+     * Acquires the current searcher. It must be given back with {@link #release(IndexSearcher)}.
+     *
+     * @return the current searcher
+     * @throws IOException on failure to acquire the searcher
+     */
+    public IndexSearcher acquire() throws IOException {
+        return manager.acquire();
+    }
+
+    /**
+     * Releases a searcher obtained with {@link #acquire()}.
+     *
+     * @param searcher the searcher to release
+     * @throws IOException on failure to release the searcher
+     */
+    public void release(IndexSearcher searcher) throws IOException {
+        manager.release(searcher);
+    }
+
+    /**
+     * Records the current searcher so that it can be acquired again later.
+     *
+     * @return a token identifying the searcher
+     * @throws IOException on failure to record the searcher
+     */
+    public long pin() throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            synchronized (tokens) {
+                Long token = tokens.get(searcher.getIndexReader());
+                if (token == null) {
+                    token = nextToken++;
+                    // held until the searcher is pruned
+                    searcher.getIndexReader().incRef();
+                    tokens.put(searcher.getIndexReader(), token);
+                    pinned.put(token, new Pinned(searcher));
+                }
+                pinned.get(token).pins++;
+                return token;
+            }
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    /**
+     * Pins a searcher previously recorded with {@link #pin()} once more.
+     * Each pin must be released with {@link #unpin(long)}.
+     *
+     * @param token the searcher's token
+     * @return false if the searcher has expired
+     */
+    public boolean repin(long token) {
+        synchronized (tokens) {
+            Pinned p = pinned.get(token);
+            if (p == null) {
+                return false;
+            }
+            p.pins++;
+            return true;
+        }
+    }
+
+    /**
+     * Releases a pin taken with {@link #pin()} or {@link #repin(long)}. Once no pin remains,
+     * the searcher is dropped as soon as it is replaced.
+     *
+     * @param token the searcher's token
+     * @throws IOException on failure to release the searcher
+     */
+    public void unpin(long token) throws IOException {
+        IndexSearcher current = null;
+        if (!closed) {
+            try {
+                current = manager.acquire();
+            } catch (AlreadyClosedException ex) {
+                // closed in the meantime, no searcher is current any more
+            }
+        }
+        IndexReader expired = null;
+        try {
+            synchronized (tokens) {
+                Pinned p = pinned.get(token);
+                if (p == null || --p.pins > 0 || p.searcher == current) {
+                    return;
+                }
+                pinned.remove(token);
+                tokens.remove(p.searcher.getIndexReader());
+                expired = p.searcher.getIndexReader();
+            }
+        } finally {
+            if (current != null) {
+                manager.release(current);
+            }
+            if (expired != null) {
+                expired.decRef();
+            }
+            if (closed) {
+                stopWhenIdle();
+            }
+        }
+    }
+
+    /**
+     * Acquires a searcher previously recorded with {@link #pin()}.
+     * It must be given back with {@link #releasePinned(IndexSearcher)}.
+     *
+     * @param token the searcher's token
+     * @return the searcher, or null if it has expired
+     */
+    public IndexSearcher acquire(long token) {
+        Pinned p = pinned.get(token);
+        // fails if the searcher was pruned in the meantime
+        if (p == null || !p.searcher.getIndexReader().tryIncRef()) {
+            return null;
+        }
+        return p.searcher;
+    }
+
+    /**
+     * Releases a searcher obtained with {@link #acquire(long)}.
+     *
+     * @param searcher the searcher to release
+     * @throws IOException on failure to release the searcher
+     */
+    public void releasePinned(IndexSearcher searcher) throws IOException {
+        searcher.getIndexReader().decRef();
+    }
+
+    /**
+     * Checks whether any document matches the given query in the current searcher.
+     *
+     * @param query the query
+     * @return whether at least one document matches
+     * @throws IOException on search failure
+     */
+    public boolean exists(Query query) throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            return searcher.search(query, 1).totalHits > 0;
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    /**
+     * Checks whether a live document holds the given term in the current searcher.
+     * This is a direct lookup in each segment's term dictionary, without scoring or
+     * loading documents, and is meant for fields indexed as exact keys.
+     *
+     * @param term the term to look for
+     * @return whether at least one live document contains the term
+     * @throws IOException on failure to read the index
+     */
+    public boolean exists(Term term) throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                LeafReader leaf = ctx.reader();
+                Terms terms = leaf.terms(term.field());
+                if (terms == null) {
+                    continue;
+                }
+                TermsEnum termsEnum = terms.iterator();
+                if (!termsEnum.seekExact(term.bytes())) {
+                    continue;
+                }
+                Bits liveDocs = leaf.getLiveDocs();
+                if (liveDocs == null) {
+                    return true;
+                }
+                PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (liveDocs.get(doc)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    /**
+     * Refreshes the current searcher, waiting for the refresh to complete.
+     *
+     * @throws IOException on failure to open the new searcher
+     */
+    public void refresh() throws IOException {
+        manager.maybeRefreshBlocking();
+    }
+
+    private void refreshQuietly() {
+        try {
+            if (closed) {
+                // only the searchers of open result streams are left
+                expire(null);
+                stopWhenIdle();
+                return;
+            }
+            manager.maybeRefresh();
+            prune();
+        } catch (AlreadyClosedException ex) {
+            // closed in the meantime
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Failed to refresh index searcher", ex);
+        }
+    }
+
+    /**
+     * Drops the recorded searchers which were replaced, once no stream pins them any more,
+     * or once they were replaced for longer than the configured age.
+     */
+    private void prune() throws IOException {
+        IndexSearcher current = manager.acquire();
+        try {
+            expire(current);
+        } finally {
+            manager.release(current);
+        }
+    }
+
+    /**
+     * @param current the current searcher, or null once the service is closed
+     */
+    private void expire(IndexSearcher current) throws IOException {
+        List<IndexReader> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (tokens) {
+            Iterator<Pinned> it = pinned.values().iterator();
+            while (it.hasNext()) {
+                Pinned p = it.next();
+                if (p.searcher == current) {
+                    continue;
+                }
+                if (p.replacedAt == 0) {
+                    p.replacedAt = now;
+                }
+                if (p.pins <= 0 || (now - p.replacedAt) / 1e9 > maxPinnedAgeSec) {
+                    it.remove();
+                    tokens.remove(p.searcher.getIndexReader());
+                    expired.add(p.searcher.getIndexReader());
+                }
+            }
+        }
+        for (IndexReader reader : expired) {
+            reader.decRef();
+        }
+    }
+
+    /** Stops the background work once the service is closed and no stream holds a searcher. */
+    private void stopWhenIdle() {
+        synchronized (tokens) {
+            if (!pinned.isEmpty()) {
+                return;
+            }
+        }
+        refresher.shutdown();
+        if (searchExecutor != null) {
+            searchExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Closes the service. Searchers still pinned by open result streams are kept until they are
+     * unpinned or expire, and the refresher keeps running until then to expire them.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            expire(null);
+        } finally {
+            try {
+                manager.close();
+            } finally {
+                if (logger.isDebugEnabled()) {
+                    synchronized (tokens) {
+                        if (!pinned.isEmpty()) {
+                            logger.debug("Closing searcher service with {} searchers held by open streams",
+                                    pinned.size());
+                        }
+                    }
+                }
+                stopWhenIdle();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Manages near-real-time searchers over the writers of a sharded index.
+ *
+ * Each searcher reads one point-in-time reader per shard, and is refreshed when any shard
+ * changes; the readers of the unchanged shards are shared with the previous searcher.
+ * Searchers search the segments of all shards concurrently with the given executor, and
+ * merge their hits.
+ *
+ */
+final class ShardSearcherManager extends ReferenceManager<IndexSearcher> {
+
+    private final List<IndexWriter> writers;
+    private final ExecutorService executor;
+
+    /** a reader over one reader per shard, in the order of the writers */
+    private static final class ShardReader extends MultiReader {
+        ShardReader(DirectoryReader[] shards) throws IOException {
+            // the shard readers are reference counted, rather than closed with this reader
+            super(shards, false);
+        }
+
+        DirectoryReader shard(int i) {
+            return (DirectoryReader) getSequentialSubReaders().get(i);
+        }
+    }
+
+    /**
+     * @param writers the writers of the shards
+     * @param executor the executor of concurrent searches, or null to search in the calling thread
+     * @throws IOException if the first searcher could not be opened
+     */
+    ShardSearcherManager(List<IndexWriter> writers, ExecutorService executor) throws IOException {
+        this.writers = new ArrayList<>(writers);
+        this.executor = executor;
+        DirectoryReader[] readers = new DirectoryReader[writers.size()];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = DirectoryReader.open(this.writers.get(i));
+            }
+            current = new IndexSearcher(new ShardReader(readers), executor);
+        } finally {
+            decRefAll(readers);
+        }
+    }
+
+    @Override
+    protected void decRef(IndexSearcher reference) throws IOException {
+        reference.getIndexReader().decRef();
+    }
+
+    @Override
+    protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+        ShardReader old = (ShardReader) referenceToRefresh.getIndexReader();
+        DirectoryReader[] readers = new DirectoryReader[writers.size()];
+        boolean changed = false;
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                DirectoryReader reader = DirectoryReader.openIfChanged(old.shard(i), writers.get(i));
+                if (reader == null) {
+                    reader = old.shard(i);
+                    reader.incRef();
+                } else {
+                    changed = true;
+                }
+                readers[i] = reader;
+            }
+            return changed ? new IndexSearcher(new ShardReader(readers), executor) : null;
+        } finally {
+            decRefAll(readers);
+        }
+    }
+
+    @Override
+    protected boolean tryIncRef(IndexSearcher reference) {
+        return reference.getIndexReader().tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount(IndexSearcher reference) {
+        return reference.getIndexReader().getRefCount();
+    }
+
+    /**
+     * Gives back the references taken on opening the shard readers, which are held
+     * by the shard reader built over them, if any.
+     */
+    private static void decRefAll(DirectoryReader[] readers) throws IOException {
+        IOException failure = null;
+        for (DirectoryReader reader : readers) {
+            if (reader == null) {
+                continue;
+            }
+            try {
+                reader.decRef();
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
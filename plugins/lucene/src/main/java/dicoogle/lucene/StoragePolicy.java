@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+/**
+ * How the values of an attribute are kept in the index, besides being searchable.
+ *
+ */
+public enum StoragePolicy {
+    /**
+     * Values are kept in the stored fields, and returned with search results. This is the
+     * default for attributes at the top level of the data set.
+     */
+    STORED("stored"),
+    /**
+     * Values are only searchable, and are not returned with search results.
+     */
+    INDEXED("indexed"),
+    /**
+     * Values are kept in doc values instead of the stored fields. They are still returned
+     * with search results, but reading them does not decompress the rest of the document,
+     * which makes them cheap to fetch on their own.
+     */
+    DOC_VALUES("docvalues");
+
+    private final String setting;
+
+    StoragePolicy(String setting) {
+        this.setting = setting;
+    }
+
+    /**
+     * @return whether values are kept in the stored fields
+     */
+    public boolean isStored() {
+        return this == STORED;
+    }
+
+    /**
+     * @return the value of this policy in the plugin's settings
+     */
+    public String getSetting() {
+        return setting;
+    }
+
+    /**
+     * Obtains the policy named in the plugin's settings.
+     *
+     * @param setting the setting's value
+     * @return the corresponding policy
+     * @throws IllegalArgumentException if no policy has the given name
+     */
+    public static StoragePolicy fromSetting(String setting) {
+        for (StoragePolicy policy : values()) {
+            if (policy.setting.equalsIgnoreCase(setting.trim())) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown storage policy: " + setting);
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+import java.io.IOException;
+
+/**
+ * Emits every suffix of each token, after the token itself and at the same position.
+ *
+ * A token "dasilva" becomes "dasilva", "asilva", "silva", ..., "a", so that a value
+ * containing "silva" is found with a prefix query on the suffixes, and a value ending
+ * with "silva" with a term query.
+ *
+ */
+public final class SuffixFilter extends TokenFilter {
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+
+    private char[] token = new char[32];
+    private int length;
+    private int next;
+    private State state;
+
+    public SuffixFilter(TokenStream input) {
+        super(input);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (next < length) {
+            restoreState(state);
+            termAtt.copyBuffer(token, next, length - next);
+            posIncAtt.setPositionIncrement(0);
+            advance();
+            return true;
+        }
+        if (!input.incrementToken()) {
+            return false;
+        }
+        length = termAtt.length();
+        token = ArrayUtil.grow(token, length);
+        System.arraycopy(termAtt.buffer(), 0, token, 0, length);
+        next = 0;
+        advance();
+        state = captureState();
+        return true;
+    }
+
+    /** moves to the start of the next suffix, without splitting surrogate pairs */
+    private void advance() {
+        next++;
+        while (next < length && Character.isLowSurrogate(token[next])) {
+            next++;
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        length = 0;
+        next = 0;
+        state = null;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dicom;
+
+import org.dcm4che2.data.VR;
+
+/**
+ * Normalizes DICOM date and time values into longs which sort chronologically,
+ * so that they can be indexed as points and matched with range queries.
+ *
+ * Dates become YYYYMMDD, times HHMMSSFFF and date times YYYYMMDDHHMMSSFFF, with the
+ * fraction of seconds kept to the millisecond. Components missing from a value are
+ * filled with zeros for a lower bound, or with nines for an upper bound, so that a
+ * partial value such as "202601" covers the whole period it names. The time zone
+ * offset of date times is ignored.
+ *
+ */
+public final class DicomDates {
+
+    /** returned for values which are not valid dates or times */
+    public static final long INVALID = -1;
+
+    private DicomDates() {
+    }
+
+    /**
+     * @param vr a value representation
+     * @return whether values of that VR are dates or times
+     */
+    public static boolean isTemporal(VR vr) {
+        return vr == VR.DA || vr == VR.TM || vr == VR.DT;
+    }
+
+    /**
+     * Normalizes a single value.
+     *
+     * @param vr the value representation, DA, TM or DT
+     * @param value the value
+     * @param upper whether missing components are filled as for an upper bound
+     * @return the normalized value, or {@link #INVALID}
+     */
+    public static long normalize(VR vr, String value, boolean upper) {
+        if (vr == VR.DA) {
+            // ACR-NEMA dates were written as YYYY.MM.DD
+            return normalize(value.trim().replace(".", ""), 8, 0, upper);
+        }
+        if (vr == VR.TM) {
+            // ACR-NEMA times were written as HH:MM:SS.FFFFFF
+            return normalize(value.trim().replace(":", ""), 6, 3, upper);
+        }
+        if (vr == VR.DT) {
+            String s = value.trim();
+            int offset = Math.max(s.indexOf('+', 1), s.indexOf('-', 1));
+            if (offset > 0) {
+                s = s.substring(0, offset);
+            }
+            return normalize(s, 14, 3, upper);
+        }
+        return INVALID;
+    }
+
+    private static long normalize(String s, int intWidth, int fracWidth, boolean upper) {
+        int dot = s.indexOf('.');
+        int intLength = (dot >= 0) ? dot : s.length();
+        if (intLength < 2 || intLength > intWidth) {
+            return INVALID;
+        }
+        if (dot >= 0 && (fracWidth == 0 || intLength != intWidth)) {
+            return INVALID;
+        }
+        char pad = upper ? '9' : '0';
+        long v = 0;
+        for (int i = 0; i < intWidth; i++) {
+            char c = (i < intLength) ? s.charAt(i) : pad;
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            v = v * 10 + (c - '0');
+        }
+        for (int i = 0; i < fracWidth; i++) {
+            int j = dot + 1 + i;
+            char c = (dot >= 0 && j < s.length()) ? s.charAt(j) : pad;
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            v = v * 10 + (c - '0');
+        }
+        if (dot >= 0) {
+            // the digits beyond the millisecond are dropped, but must still be digits
+            for (int j = dot + 1 + fracWidth; j < s.length(); j++) {
+                if (s.charAt(j) < '0' || s.charAt(j) > '9') {
+                    return INVALID;
+                }
+            }
+        }
+        return v;
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dicom;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes the values of DICOM text elements according to the data set's
+ * Specific Character Set (0008,0005).
+ *
+ * With code extensions (ISO 2022 defined terms), the escape sequences in a value switch
+ * between the character sets designated to G0 (bytes below 0x80) and G1 (bytes from 0x80),
+ * starting from the set of the first defined term.
+ *
+ * Instances are immutable and shared between data sets with the same character set.
+ * Charset decoders and output buffers are cached per thread, so decoding a value
+ * allocates little more than the resulting string.
+ *
+ */
+public final class DicomStringDecoder {
+    private static final Logger logger = LoggerFactory.getLogger(DicomStringDecoder.class);
+
+    /** Java charsets of the DICOM defined terms, with and without code extensions */
+    private static final Map<String, Charset> CHARSETS;
+
+    static {
+        Map<String, String> names = new HashMap<>();
+        names.put("ISO_IR 6", "ISO-8859-1");
+        names.put("ISO_IR 100", "ISO-8859-1");
+        names.put("ISO_IR 101", "ISO-8859-2");
+        names.put("ISO_IR 109", "ISO-8859-3");
+        names.put("ISO_IR 110", "ISO-8859-4");
+        names.put("ISO_IR 144", "ISO-8859-5");
+        names.put("ISO_IR 127", "ISO-8859-6");
+        names.put("ISO_IR 126", "ISO-8859-7");
+        names.put("ISO_IR 138", "ISO-8859-8");
+        names.put("ISO_IR 148", "ISO-8859-9");
+        names.put("ISO_IR 13", "JIS_X0201");
+        names.put("ISO_IR 166", "TIS-620");
+        names.put("ISO_IR 192", "UTF-8");
+        names.put("GB18030", "GB18030");
+        names.put("GBK", "GBK");
+        names.put("ISO 2022 IR 87", "ISO-2022-JP");
+        names.put("ISO 2022 IR 159", "ISO-2022-JP");
+        names.put("ISO 2022 IR 149", "EUC-KR");
+
+        Map<String, Charset> charsets = new HashMap<>();
+        for (Map.Entry<String, String> e : names.entrySet()) {
+            if (Charset.isSupported(e.getValue())) {
+                Charset cs = Charset.forName(e.getValue());
+                charsets.put(e.getKey(), cs);
+                if (e.getKey().startsWith("ISO_IR ")) {
+                    charsets.put("ISO 2022 IR " + e.getKey().substring(7), cs);
+                }
+            }
+        }
+        CHARSETS = Collections.unmodifiableMap(charsets);
+    }
+
+    private static final byte ESC = 0x1B;
+
+    /** decode the bytes as they are */
+    private static final int PLAIN = 0;
+    /** decode 7-bit JIS X 0208 bytes in their EUC-JP form */
+    private static final int JIS_X0208 = 1;
+    /** decode 7-bit JIS X 0212 bytes in their EUC-JP form */
+    private static final int JIS_X0212 = 2;
+
+    /** Character sets designated by ISO 2022 escape sequences, by the bytes following ESC */
+    private static final Map<String, Designation> DESIGNATIONS;
+
+    static {
+        Map<String, Designation> designations = new HashMap<>();
+        designate(designations, "(B", "ISO-8859-1", false, PLAIN);
+        designate(designations, "(J", "JIS_X0201", false, PLAIN);
+        designate(designations, "$B", "EUC-JP", false, JIS_X0208);
+        designate(designations, "$@", "EUC-JP", false, JIS_X0208);
+        designate(designations, "$(D", "EUC-JP", false, JIS_X0212);
+        designate(designations, "-A", "ISO-8859-1", true, PLAIN);
+        designate(designations, "-B", "ISO-8859-2", true, PLAIN);
+        designate(designations, "-C", "ISO-8859-3", true, PLAIN);
+        designate(designations, "-D", "ISO-8859-4", true, PLAIN);
+        designate(designations, "-L", "ISO-8859-5", true, PLAIN);
+        designate(designations, "-G", "ISO-8859-6", true, PLAIN);
+        designate(designations, "-F", "ISO-8859-7", true, PLAIN);
+        designate(designations, "-H", "ISO-8859-8", true, PLAIN);
+        designate(designations, "-M", "ISO-8859-9", true, PLAIN);
+        designate(designations, "-T", "TIS-620", true, PLAIN);
+        designate(designations, ")I", "JIS_X0201", true, PLAIN);
+        designate(designations, "$)C", "EUC-KR", true, PLAIN);
+        designate(designations, "$)A", "GB2312", true, PLAIN);
+        DESIGNATIONS = Collections.unmodifiableMap(designations);
+    }
+
+    private static void designate(Map<String, Designation> designations, String escape, String charset,
+                                  boolean g1, int form) {
+        if (Charset.isSupported(charset)) {
+            designations.put(escape, new Designation(Charset.forName(charset), g1, form));
+        }
+    }
+
+    private static final Designation ASCII = new Designation(StandardCharsets.ISO_8859_1, false, PLAIN);
+
+    /** The decoder for data sets without a Specific Character Set */
+    public static final DicomStringDecoder DEFAULT = new DicomStringDecoder(StandardCharsets.ISO_8859_1);
+
+    private static final Map<String, DicomStringDecoder> INSTANCES = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private final Charset charset;
+    /** the initial G0 set with code extensions, null without them */
+    private final Designation g0;
+
+    private DicomStringDecoder(Charset charset) {
+        this(charset, null);
+    }
+
+    private DicomStringDecoder(Charset charset, Designation g0) {
+        this.charset = charset;
+        this.g0 = g0;
+    }
+
+    /**
+     * Obtains the decoder for the character set declared in a data set.
+     *
+     * @param dataset the data set (or sequence item)
+     * @return the decoder for its text values
+     */
+    public static DicomStringDecoder forDataset(DicomObject dataset) {
+        if (!dataset.contains(Tag.SpecificCharacterSet)) {
+            return DEFAULT;
+        }
+        return forCharacterSet(dataset.getStrings(Tag.SpecificCharacterSet));
+    }
+
+    /**
+     * Obtains the decoder for the given values of Specific Character Set.
+     * With code extensions, values are decoded in the character set of the first
+     * defined term, or the first known one when that is empty or the default repertoire,
+     * until an escape sequence designates another set.
+     *
+     * @param codes the defined terms, as in (0008,0005)
+     * @return the decoder for text values in that character set
+     */
+    public static DicomStringDecoder forCharacterSet(String... codes) {
+        if (codes == null || codes.length == 0) {
+            return DEFAULT;
+        }
+        String key = String.join("\\", codes);
+        DicomStringDecoder decoder = INSTANCES.get(key);
+        if (decoder == null) {
+            decoder = INSTANCES.computeIfAbsent(key, k -> create(codes));
+        }
+        return decoder;
+    }
+
+    private static DicomStringDecoder create(String[] codes) {
+        Charset cs = resolve(codes);
+        boolean extended = false;
+        for (String code : codes) {
+            extended |= code != null && code.trim().startsWith("ISO 2022 ");
+        }
+        if (!extended) {
+            return new DicomStringDecoder(cs);
+        }
+        // JIS X 0201 designates its romaji half to G0, every other first term leaves ASCII there
+        String first = (codes[0] == null) ? "" : codes[0].trim();
+        Designation g0 = first.equals("ISO 2022 IR 13") ? DESIGNATIONS.getOrDefault("(J", ASCII) : ASCII;
+        return new DicomStringDecoder(cs, g0);
+    }
+
+    private static Charset resolve(String[] codes) {
+        // with code extensions, the first value may be empty or name the default repertoire
+        boolean declared = false;
+        for (String code : codes) {
+            String c = (code == null) ? "" : code.trim();
+            if (c.isEmpty() || c.equals("ISO_IR 6") || c.equals("ISO 2022 IR 6")) {
+                continue;
+            }
+            declared = true;
+            Charset cs = CHARSETS.get(c);
+            if (cs != null) {
+                return cs;
+            }
+        }
+        if (declared) {
+            logger.warn("Unsupported Specific Character Set {}, decoding as ISO-8859-1", Arrays.toString(codes));
+        }
+        return StandardCharsets.ISO_8859_1;
+    }
+
+    /**
+     * Obtains the decoder for a sequence item, which may declare its own character set.
+     *
+     * @param item the sequence item
+     * @return the decoder for the item's text values
+     */
+    public DicomStringDecoder forItem(DicomObject item) {
+        if (item == null || !item.contains(Tag.SpecificCharacterSet)) {
+            return this;
+        }
+        return forDataset(item);
+    }
+
+    /**
+     * @return the charset of the text values
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Decodes a text value, without leading and trailing padding or white space.
+     *
+     * @param bytes the value's bytes
+     * @return the decoded value
+     */
+    public String decode(byte[] bytes) {
+        if (bytes == null) {
+            return "";
+        }
+        // drop the padding (space or NUL) before decoding
+        int start = 0;
+        int end = bytes.length;
+        while (start < end && (bytes[start] == ' ' || bytes[start] == 0)) {
+            start++;
+        }
+        while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == 0)) {
+            end--;
+        }
+        if (start == end) {
+            return "";
+        }
+
+        if (g0 != null && indexOf(bytes, ESC, start, end) >= 0) {
+            return decodeExtended(bytes, start, end);
+        }
+        CharBuffer out = decode(charset, bytes, start, end);
+        if (out == null) {
+            return new String(bytes, start, end - start, charset).trim();
+        }
+        return new String(out.array(), 0, out.position()).trim();
+    }
+
+    /**
+     * Decodes a value with ISO 2022 escape sequences, one run of G0 or G1 bytes at a time.
+     */
+    private String decodeExtended(byte[] bytes, int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        Designation g0 = this.g0;
+        Charset g1 = charset;
+        int i = start;
+        while (i < end) {
+            if (bytes[i] == ESC) {
+                // intermediate bytes (0x20-0x2F) up to the final byte
+                int j = i + 1;
+                while (j < end && bytes[j] >= 0x20 && bytes[j] <= 0x2F) {
+                    j++;
+                }
+                j = Math.min(j + 1, end);
+                String escape = new String(bytes, i + 1, j - i - 1, StandardCharsets.ISO_8859_1);
+                Designation d = DESIGNATIONS.get(escape);
+                if (d == null) {
+                    logger.debug("Ignoring unsupported escape sequence ESC {}", escape);
+                } else if (d.g1) {
+                    g1 = d.charset;
+                } else {
+                    g0 = d;
+                }
+                i = j;
+                continue;
+            }
+            boolean high = bytes[i] < 0;
+            int j = i + 1;
+            while (j < end && bytes[j] != ESC && (bytes[j] < 0) == high) {
+                j++;
+            }
+            if (high) {
+                append(sb, g1, bytes, i, j);
+            } else if (g0.form == PLAIN) {
+                append(sb, g0.charset, bytes, i, j);
+            } else {
+                byte[] euc = toEucJp(bytes, i, j, g0.form == JIS_X0212);
+                append(sb, g0.charset, euc, 0, euc.length);
+            }
+            i = j;
+        }
+        return sb.toString().trim();
+    }
+
+    private static void append(StringBuilder sb, Charset cs, byte[] bytes, int start, int end) {
+        CharBuffer out = decode(cs, bytes, start, end);
+        if (out == null) {
+            sb.append(new String(bytes, start, end - start, cs));
+        } else {
+            sb.append(out.array(), 0, out.position());
+        }
+    }
+
+    /** Converts 7-bit JIS X 0208 or JIS X 0212 bytes to EUC-JP, which sets their high bits. */
+    private static byte[] toEucJp(byte[] bytes, int start, int end, boolean supplementary) {
+        int len = end - start;
+        byte[] euc = new byte[supplementary ? len + (len + 1) / 2 : len];
+        int k = 0;
+        for (int i = start; i < end; i++) {
+            if (supplementary && (i - start) % 2 == 0) {
+                euc[k++] = (byte) 0x8F;
+            }
+            euc[k++] = (byte) (bytes[i] | 0x80);
+        }
+        return euc;
+    }
+
+    /**
+     * Decodes bytes into the thread's output buffer.
+     *
+     * @return the buffer, positioned after the decoded characters, or null if decoding failed
+     */
+    private static CharBuffer decode(Charset cs, byte[] bytes, int start, int end) {
+        Buffers buffers = BUFFERS.get();
+        CharsetDecoder decoder = buffers.decoder(cs);
+        CharBuffer out = buffers.chars((int) Math.ceil((end - start) * (double) decoder.maxCharsPerByte()) + 1);
+        ByteBuffer in = ByteBuffer.wrap(bytes, start, end - start);
+        try {
+            CoderResult result = decoder.decode(in, out, true);
+            if (result.isUnderflow()) {
+                result = decoder.flush(out);
+            }
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+        } catch (CharacterCodingException ex) {
+            return null;
+        }
+        return out;
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "DicomStringDecoder(" + charset.name() + ")";
+    }
+
+    /** A character set designated to G0 or G1 */
+    private static final class Designation {
+        final Charset charset;
+        final boolean g1;
+        final int form;
+
+        Designation(Charset charset, boolean g1, int form) {
+            this.charset = charset;
+            this.g1 = g1;
+            this.form = form;
+        }
+    }
+
+    /** Per thread decoders and output buffer */
+    private static final class Buffers {
+        private final Map<Charset, CharsetDecoder> decoders = new IdentityHashMap<>();
+        private CharBuffer chars = CharBuffer.allocate(256);
+
+        CharsetDecoder decoder(Charset charset) {
+            CharsetDecoder decoder = decoders.get(charset);
+            if (decoder == null) {
+                decoder = charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                decoders.put(charset, decoder);
+            } else {
+                decoder.reset();
+            }
+            return decoder;
+        }
+
+        CharBuffer chars(int capacity) {
+            if (chars.capacity() < capacity) {
+                chars = CharBuffer.allocate(Math.max(capacity, chars.capacity() * 2));
+            }
+            chars.clear();
+            return chars;
+        }
+    }
+}
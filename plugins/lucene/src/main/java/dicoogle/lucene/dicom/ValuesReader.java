@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dicom;
+
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Reads a list of values as a single text, with a space between consecutive values.
+ *
+ * The values are not copied, so that the text of a large data set never has to be
+ * held as one string.
+ *
+ */
+public class ValuesReader extends Reader {
+    private final List<? extends CharSequence> values;
+    /** the value being read */
+    private int index = 0;
+    /** the position in the value being read, -1 for the separator before it */
+    private int pos = 0;
+
+    /**
+     * @param values the values to read, which must not change while they are read
+     */
+    public ValuesReader(List<? extends CharSequence> values) {
+        this.values = values;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len && index < values.size()) {
+            if (pos < 0) {
+                cbuf[off + n++] = ' ';
+                pos = 0;
+                continue;
+            }
+            CharSequence value = values.get(index);
+            int count = Math.min(len - n, value.length() - pos);
+            if (value instanceof String) {
+                ((String) value).getChars(pos, pos + count, cbuf, off + n);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    cbuf[off + n + i] = value.charAt(pos + i);
+                }
+            }
+            n += count;
+            pos += count;
+            if (pos == value.length()) {
+                index++;
+                pos = -1;
+            }
+        }
+        return (n == 0) ? -1 : n;
+    }
+
+    @Override
+    public void close() {
+        index = values.size();
+    }
+}
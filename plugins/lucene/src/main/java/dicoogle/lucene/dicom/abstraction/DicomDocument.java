@@ -20,6 +20,7 @@ package dicoogle.lucene.dicom.abstraction;
 
 import org.apache.lucene.document.Document;
 
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,7 +36,7 @@ public class DicomDocument implements IDoc
     }
 
     @Override
-    public void add(String name, float value) {
+    public void add(String name, double value) {
         this.getDicomFields().add(new DicomNumericField(name, value));
     }
 
@@ -48,6 +49,31 @@ public class DicomDocument implements IDoc
     public void add(String name, byte[] value) {
         this.getDicomFields().add(new DicomByteArrField(name, value));
     }
+
+    @Override
+    public void addKeyword(String name, String value) {
+        this.getDicomFields().add(new DicomKeywordField(name, value));
+    }
+
+    @Override
+    public void addTerm(String name, String value) {
+        this.getDicomFields().add(new DicomKeywordField(name, value, false));
+    }
+
+    @Override
+    public void addIndexOnly(String name, String value) {
+        this.getDicomFields().add(new DicomIndexOnlyField(name, value));
+    }
+
+    @Override
+    public void addPoint(String name, long value) {
+        this.getDicomFields().add(new DicomLongPointField(name, value));
+    }
+
+    @Override
+    public void add(String name, Reader value) {
+        this.getDicomFields().add(new DicomStreamField(name, value));
+    }
     
     /**
      * @return the dicomFields
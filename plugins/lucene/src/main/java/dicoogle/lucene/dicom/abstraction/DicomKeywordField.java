@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dicom.abstraction;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+
+/**
+ * A field indexed verbatim as a single term, for exact lookups such as
+ * primary keys.
+ */
+public class DicomKeywordField implements IDicomField
+{
+    private final String name;
+    private final String value;
+    private final boolean stored;
+
+    public DicomKeywordField(String name, String value)
+    {
+        this(name, value, true);
+    }
+
+    public DicomKeywordField(String name, String value, boolean stored)
+    {
+        this.name = name;
+        this.value = value;
+        this.stored = stored;
+    }
+
+    /**
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the value
+     */
+    public String getValue() {
+        return value;
+    }
+
+    public StringField toField() {
+        return new StringField(this.name, this.value, stored ? Field.Store.YES : Field.Store.NO);
+    }
+
+    @Override
+    public void addToDoc(Document doc) {
+        doc.add(this.toField());
+    }
+}
@@ -18,6 +18,7 @@
  */
 package dicoogle.lucene.dicom.abstraction;
 
+import dicoogle.lucene.IndexSchema;
 import org.apache.lucene.document.*;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.DocValuesType;
@@ -67,6 +68,6 @@ public class DicomLongField implements IDicomField
         doc.add(new StoredField(this.name, this.value));
         // index as string for keyword-based queries
         doc.add(new StringField(this.name, String.valueOf(this.value), Store.NO));
-        doc.add(new FloatPoint("_point_" + this.name, (float)this.value));
+        doc.add(new LongPoint(IndexSchema.LONG_POINT_PREFIX + this.name, this.value));
     }
 }
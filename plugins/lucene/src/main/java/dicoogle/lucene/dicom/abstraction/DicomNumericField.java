@@ -18,16 +18,17 @@
  */
 package dicoogle.lucene.dicom.abstraction;
 
+import dicoogle.lucene.IndexSchema;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.FloatPoint;
+import org.apache.lucene.document.DoublePoint;
 import org.apache.lucene.document.StoredField;
 
 public class DicomNumericField implements IDicomField
 {
     private final String name;
-    private final float value;
+    private final double value;
 
-    public DicomNumericField(String name, float value) {
+    public DicomNumericField(String name, double value) {
         this.name = name;
         this.value = value;
     }
@@ -42,13 +43,13 @@ public class DicomNumericField implements IDicomField
     /**
      * @return the value
      */
-    public float getValue() {
+    public double getValue() {
         return value;
     }
 
     @Override
     public void addToDoc(Document doc) {
         doc.add(new StoredField(this.name, this.value));
-        doc.add(new FloatPoint("_point_" + this.name, this.value));
+        doc.add(new DoublePoint(IndexSchema.DOUBLE_POINT_PREFIX + this.name, this.value));
     }
 }
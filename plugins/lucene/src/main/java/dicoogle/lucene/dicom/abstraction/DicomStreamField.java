@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dicom.abstraction;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.TextField;
+
+import java.io.Reader;
+
+/**
+ * A full text field whose content is read by the analyzer while the document
+ * is indexed. It is not stored.
+ */
+public class DicomStreamField implements IDicomField
+{
+    private final String name;
+    private final Reader value;
+
+    public DicomStreamField(String name, Reader value)
+    {
+        this.name = name;
+        this.value = value;
+    }
+
+    /**
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the value
+     */
+    public Reader getValue() {
+        return value;
+    }
+
+    public TextField toField() {
+        return new TextField(this.name, this.value);
+    }
+
+    @Override
+    public void addToDoc(Document doc) {
+        doc.add(this.toField());
+    }
+}
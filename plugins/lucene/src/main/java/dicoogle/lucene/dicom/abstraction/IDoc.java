@@ -18,18 +18,13 @@
  */
 package dicoogle.lucene.dicom.abstraction;
 
-import org.apache.lucene.document.Document;
-
 import java.util.List;
 
-public interface IDoc 
+/**
+ * A document which keeps the fields added to it, before they are turned into Lucene fields.
+ *
+ */
+public interface IDoc extends IFieldSink
 {
-    void add(String name, String value);
-    void add(String name, float value);
-    void add(String name, long value);
-    void add(String name, byte[] value);
-
     List<IDicomField> getDicomFields();
-
-    Document toDocument();
 }
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dicom.abstraction;
+
+import org.apache.lucene.document.Document;
+
+import java.io.Reader;
+
+/**
+ * Receives the fields of an indexed document, as they are read from a DICOM object.
+ *
+ */
+public interface IFieldSink
+{
+    void add(String name, String value);
+    void add(String name, double value);
+    void add(String name, long value);
+    void add(String name, byte[] value);
+
+    /**
+     * Adds a field which is indexed as a single exact term.
+     */
+    void addKeyword(String name, String value);
+
+    /**
+     * Adds a single exact term which is indexed but not stored.
+     */
+    void addTerm(String name, String value);
+
+    /**
+     * Adds a text field which is only searched, without norms, frequencies or positions.
+     */
+    void addIndexOnly(String name, String value);
+
+    /**
+     * Adds a value which is only indexed as a point, for range queries.
+     */
+    void addPoint(String name, long value);
+
+    /**
+     * Adds an unstored full text field, read while the document is indexed.
+     */
+    void add(String name, Reader value);
+
+    /**
+     * @return a Lucene document with the fields added so far
+     */
+    Document toDocument();
+}
@@ -0,0 +1,418 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dicom.abstraction;
+
+import dicoogle.lucene.IndexSchema;
+import dicoogle.lucene.StoragePolicy;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.FloatPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A document which is filled in place, reusing the same Lucene field instances
+ * from one indexed file to the next.
+ *
+ * Fields are pooled per field name and kind, so that filling the document for a file
+ * with the same layout as the previous one only updates field values. It produces the
+ * same fields as {@link DicomDocument}, and is passed to the index writer directly.
+ *
+ * Once given an index schema, values are stored according to the storage policy of each
+ * field. Values kept in doc values are added as their text, whatever their type.
+ *
+ * Instances are not thread safe, and are meant to be kept one per indexing thread.
+ * The fields may only be reused after the index writer is done with the document.
+ *
+ */
+public class ReusableDocument implements IFieldSink, Iterable<IndexableField>
+{
+    private static final int TEXT = 0;
+    private static final int STORED_DOUBLE = 1;
+    private static final int STORED_LONG = 2;
+    private static final int STRING = 3;
+    private static final int LEGACY_POINT = 4;
+    private static final int BYTES = 5;
+    private static final int KEYWORD = 6;
+    private static final int READER = 7;
+    private static final int TERM = 8;
+    private static final int POINT_ONLY = 9;
+    private static final int NUMBER_LONG_POINT = 10;
+    private static final int NUMBER_DOUBLE_POINT = 11;
+    private static final int INDEX_ONLY = 12;
+    private static final int DOC_VALUE = 13;
+    private static final int KINDS = 14;
+
+    /** the number of distinct field names after which the pools are dropped */
+    private static final int MAX_SLOTS = 16384;
+
+    /** The pooled fields of a field name */
+    private static final class Slot {
+        final String name;
+        final StoragePolicy storage;
+        final Field[][] pools = new Field[KINDS][];
+        final int[] used = new int[KINDS];
+        boolean touched;
+
+        Slot(String name, StoragePolicy storage) {
+            this.name = name;
+            this.storage = storage;
+        }
+
+        Field reuse(int kind) {
+            Field[] pool = pools[kind];
+            int i = used[kind];
+            if (pool == null || i >= pool.length || pool[i] == null) {
+                return null;
+            }
+            used[kind]++;
+            return pool[i];
+        }
+
+        Field register(int kind, Field field) {
+            Field[] pool = pools[kind];
+            int i = used[kind]++;
+            if (pool == null) {
+                pool = pools[kind] = new Field[1];
+            } else if (i >= pool.length) {
+                Field[] bigger = new Field[pool.length * 2];
+                System.arraycopy(pool, 0, bigger, 0, pool.length);
+                pool = pools[kind] = bigger;
+            }
+            pool[i] = field;
+            return field;
+        }
+    }
+
+    private final Map<String, Slot> slots = new HashMap<>();
+    private final List<Slot> touched = new ArrayList<>();
+    private final List<IndexableField> fields = new ArrayList<>();
+    private FieldType textType = TextField.TYPE_STORED;
+    private FieldType streamType = TextField.TYPE_NOT_STORED;
+    private boolean legacyPoints;
+    private IndexSchema storageSchema;
+
+    /**
+     * Sets the types of new text fields. The pooled fields are dropped if the types change.
+     *
+     * @param textType the type of stored text fields
+     * @param streamType the type of text fields read from a stream
+     */
+    public void setTextTypes(FieldType textType, FieldType streamType) {
+        if (textType != this.textType || streamType != this.streamType) {
+            this.textType = textType;
+            this.streamType = streamType;
+            slots.clear();
+        }
+    }
+
+    /**
+     * Sets the schema which tells how the values of each field are stored. Without one, all
+     * values are stored. The pooled fields are dropped if the schema changes.
+     *
+     * @param schema the index schema, or null to store all values
+     */
+    public void setStorage(IndexSchema schema) {
+        if (schema != this.storageSchema) {
+            this.storageSchema = schema;
+            slots.clear();
+        }
+    }
+
+    /**
+     * Sets whether numbers are indexed as float points, as in indexes built before
+     * typed points existed, rather than as long and double points.
+     *
+     * @param legacyPoints whether to use the legacy float points
+     */
+    public void setLegacyPoints(boolean legacyPoints) {
+        this.legacyPoints = legacyPoints;
+    }
+
+    /**
+     * Empties the document, so that it can be filled for the next file.
+     */
+    public void reset() {
+        for (Slot s : touched) {
+            s.touched = false;
+            for (int k = 0; k < KINDS; k++) {
+                s.used[k] = 0;
+            }
+        }
+        touched.clear();
+        fields.clear();
+        if (slots.size() > MAX_SLOTS) {
+            slots.clear();
+        }
+    }
+
+    private Slot slot(String name) {
+        Slot s = slots.get(name);
+        if (s == null) {
+            s = new Slot(name, (storageSchema == null) ? StoragePolicy.STORED : storageSchema.getStorage(name));
+            slots.put(name, s);
+        }
+        if (!s.touched) {
+            s.touched = true;
+            touched.add(s);
+        }
+        return s;
+    }
+
+    @Override
+    public void add(String name, String value) {
+        Slot s = slot(name);
+        Field f = s.reuse(TEXT);
+        if (f == null) {
+            // the stream type is the unstored variant of the text type
+            f = s.register(TEXT, new Field(s.name, value, s.storage.isStored() ? textType : streamType));
+        } else {
+            f.setStringValue(value);
+        }
+        fields.add(f);
+        if (s.storage == StoragePolicy.DOC_VALUES) {
+            addDocValue(s, value);
+        }
+    }
+
+    private void addDocValue(Slot s, String value) {
+        BytesRef bytes = new BytesRef(value);
+        if (bytes.length > IndexWriter.MAX_TERM_LENGTH) {
+            // too long for doc values, keep it in the stored fields instead
+            fields.add(new StoredField(s.name, value));
+            return;
+        }
+        Field f = s.reuse(DOC_VALUE);
+        if (f == null) {
+            f = s.register(DOC_VALUE, new SortedSetDocValuesField(s.name, bytes));
+        } else {
+            f.setBytesValue(bytes);
+        }
+        fields.add(f);
+    }
+
+    @Override
+    public void add(String name, double value) {
+        Slot s = slot(name);
+        if (s.storage.isStored()) {
+            Field stored = s.reuse(STORED_DOUBLE);
+            if (stored == null) {
+                stored = s.register(STORED_DOUBLE, new StoredField(s.name, value));
+            } else {
+                stored.setDoubleValue(value);
+            }
+            fields.add(stored);
+        } else if (s.storage == StoragePolicy.DOC_VALUES) {
+            addDocValue(s, String.valueOf(value));
+        }
+        if (legacyPoints) {
+            addLegacyPoint(s, (float) value);
+            return;
+        }
+        Field point = s.reuse(NUMBER_DOUBLE_POINT);
+        if (point == null) {
+            point = s.register(NUMBER_DOUBLE_POINT, new DoublePoint(IndexSchema.DOUBLE_POINT_PREFIX + s.name, value));
+        } else {
+            point.setDoubleValue(value);
+        }
+        fields.add(point);
+    }
+
+    @Override
+    public void add(String name, long value) {
+        Slot s = slot(name);
+        // index & store as number, for retrieval and range-based queries
+        String text = String.valueOf(value);
+        if (s.storage.isStored()) {
+            Field stored = s.reuse(STORED_LONG);
+            if (stored == null) {
+                stored = s.register(STORED_LONG, new StoredField(s.name, value));
+            } else {
+                stored.setLongValue(value);
+            }
+            fields.add(stored);
+        } else if (s.storage == StoragePolicy.DOC_VALUES) {
+            addDocValue(s, text);
+        }
+        // index as string for keyword-based queries
+        Field string = s.reuse(STRING);
+        if (string == null) {
+            string = s.register(STRING, new StringField(s.name, text, Field.Store.NO));
+        } else {
+            string.setStringValue(text);
+        }
+        fields.add(string);
+        if (legacyPoints) {
+            addLegacyPoint(s, (float) value);
+            return;
+        }
+        Field point = s.reuse(NUMBER_LONG_POINT);
+        if (point == null) {
+            point = s.register(NUMBER_LONG_POINT, new LongPoint(IndexSchema.LONG_POINT_PREFIX + s.name, value));
+        } else {
+            point.setLongValue(value);
+        }
+        fields.add(point);
+    }
+
+    private void addLegacyPoint(Slot s, float value) {
+        Field point = s.reuse(LEGACY_POINT);
+        if (point == null) {
+            point = s.register(LEGACY_POINT, new FloatPoint(IndexSchema.LEGACY_POINT_PREFIX + s.name, value));
+        } else {
+            point.setFloatValue(value);
+        }
+        fields.add(point);
+    }
+
+    @Override
+    public void add(String name, byte[] value) {
+        Slot s = slot(name);
+        Field f = s.reuse(BYTES);
+        if (f == null) {
+            f = s.register(BYTES, new StoredField(s.name, value));
+        } else {
+            f.setBytesValue(value);
+        }
+        fields.add(f);
+    }
+
+    @Override
+    public void addKeyword(String name, String value) {
+        Slot s = slot(name);
+        Field f = s.reuse(KEYWORD);
+        if (f == null) {
+            f = s.register(KEYWORD, new StringField(s.name, value, Field.Store.YES));
+        } else {
+            f.setStringValue(value);
+        }
+        fields.add(f);
+    }
+
+    @Override
+    public void addTerm(String name, String value) {
+        Slot s = slot(name);
+        Field f = s.reuse(TERM);
+        if (f == null) {
+            f = s.register(TERM, new StringField(s.name, value, Field.Store.NO));
+        } else {
+            f.setStringValue(value);
+        }
+        fields.add(f);
+    }
+
+    @Override
+    public void addIndexOnly(String name, String value) {
+        Slot s = slot(name);
+        Field f = s.reuse(INDEX_ONLY);
+        if (f == null) {
+            f = s.register(INDEX_ONLY, new Field(s.name, value, DicomIndexOnlyField.FIELD_TYPE));
+        } else {
+            f.setStringValue(value);
+        }
+        fields.add(f);
+    }
+
+    @Override
+    public void addPoint(String name, long value) {
+        Slot s = slot(name);
+        Field f = s.reuse(POINT_ONLY);
+        if (f == null) {
+            f = s.register(POINT_ONLY, new LongPoint(s.name, value));
+        } else {
+            f.setLongValue(value);
+        }
+        fields.add(f);
+    }
+
+    @Override
+    public void add(String name, Reader value) {
+        Slot s = slot(name);
+        Field f = s.reuse(READER);
+        if (f == null) {
+            f = s.register(READER, new Field(s.name, value, streamType));
+        } else {
+            f.setReaderValue(value);
+        }
+        fields.add(f);
+    }
+
+    /**
+     * Adds a value which is stored but not indexed.
+     */
+    public void addStored(String name, long value) {
+        Slot s = slot(name);
+        Field f = s.reuse(STORED_LONG);
+        if (f == null) {
+            f = s.register(STORED_LONG, new StoredField(s.name, value));
+        } else {
+            f.setLongValue(value);
+        }
+        fields.add(f);
+    }
+
+    /**
+     * @param name the field name
+     * @return the first string value of the field, or null if there is none
+     */
+    public String get(String name) {
+        for (IndexableField f : fields) {
+            if (f.name().equals(name) && f.fieldType().stored()) {
+                String value = f.stringValue();
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<IndexableField> iterator() {
+        return fields.iterator();
+    }
+
+    /**
+     * Creates a standalone copy of this document. Its fields are shared with this document,
+     * so it is only valid until this document is reset.
+     */
+    @Override
+    public Document toDocument() {
+        Document doc = new Document();
+        for (IndexableField f : fields) {
+            doc.add(f);
+        }
+        return doc;
+    }
+}
@@ -20,7 +20,20 @@ package dicoogle.lucene.query;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.search.IndexSearcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +46,9 @@ import pt.ua.dicoogle.sdk.datastructs.SearchResult;
  * In big-data scenarios query operations should not be bound to standard collections. 
  * As such, the stream pattern is used to guarantee that a minimal amount of resources is required when performing searches.
  *
+ * When extra fields are selected, only those fields and the uri are read from each document.
+ * Fields kept in doc values are read along with the stored fields, as if they were stored.
+ *
  *
  */
 public abstract class AbstractResultStream implements Iterable<SearchResult> {
@@ -40,6 +56,8 @@ public abstract class AbstractResultStream implements Iterable<SearchResult> {
 
 	protected IndexSearcher searcher;
 	protected HashMap<String, Object> xtraFields;
+	/** the fields read from each document, null for all of them */
+	private final Set<String> fieldsToLoad;
 
 	/**
 	 * Constructs a stream with all extrafields selected.
@@ -61,6 +79,12 @@ public abstract class AbstractResultStream implements Iterable<SearchResult> {
 		super();
 		this.searcher = searcher;
 		this.xtraFields = xtraFields;
+		if (xtraFields != null) {
+			this.fieldsToLoad = new HashSet<>(xtraFields.keySet());
+			this.fieldsToLoad.add("uri");
+		} else {
+			this.fieldsToLoad = null;
+		}
 	}
 
 	/**
@@ -71,11 +95,62 @@ public abstract class AbstractResultStream implements Iterable<SearchResult> {
 	 */
 	public Document getDocument(int docID) {
 		try {
-			return searcher.doc(docID);
+			return loadDocument(searcher, docID);
 		} catch (IOException e) {
             logger.warn("Failed to retrieve Document {}", (Object)docID, e);
 		}
 		return null;
 	}
 
+	/**
+	 * Reads the fields of a document which the results of this stream need.
+	 * 
+	 * @param searcher The searcher to read the document from.
+	 * @param docID The id of the document in the searcher.
+	 * @return The document.
+	 * @throws IOException on failure to read the document.
+	 */
+	protected Document loadDocument(IndexSearcher searcher, int docID) throws IOException {
+		Document doc = (fieldsToLoad == null) ? searcher.doc(docID) : searcher.doc(docID, fieldsToLoad);
+		addDocValues(searcher.getIndexReader(), docID, doc);
+		return doc;
+	}
+
+	/**
+	 * Adds the values of the document's doc values fields to it, as stored fields.
+	 */
+	private void addDocValues(IndexReader reader, int docID, Document doc) throws IOException {
+		List<LeafReaderContext> leaves = reader.leaves();
+		LeafReaderContext ctx = leaves.get(ReaderUtil.subIndex(docID, leaves));
+		LeafReader leaf = ctx.reader();
+		FieldInfos infos = leaf.getFieldInfos();
+		if (!infos.hasDocValues()) {
+			return;
+		}
+		int leafDoc = docID - ctx.docBase;
+		if (fieldsToLoad != null) {
+			for (String field : fieldsToLoad) {
+				FieldInfo info = infos.fieldInfo(field);
+				if (info != null) {
+					addDocValues(leaf, info, leafDoc, doc);
+				}
+			}
+		} else {
+			for (FieldInfo info : infos) {
+				addDocValues(leaf, info, leafDoc, doc);
+			}
+		}
+	}
+
+	private static void addDocValues(LeafReader leaf, FieldInfo info, int leafDoc, Document doc) throws IOException {
+		if (info.getDocValuesType() != DocValuesType.SORTED_SET) {
+			return;
+		}
+		SortedSetDocValues values = leaf.getSortedSetDocValues(info.name);
+		values.setDocument(leafDoc);
+		for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+			doc.add(new StoredField(info.name, values.lookupOrd(ord).utf8ToString()));
+		}
+	}
+
 }
\ No newline at end of file
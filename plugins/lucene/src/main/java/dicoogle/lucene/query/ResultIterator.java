@@ -48,6 +48,9 @@ public class ResultIterator implements Iterator<SearchResult> {
 	private Map<String, Object> extraFields;
 	private final Iterator<ScoreDoc> documentIterator;
 	private SearchResult bufferedResult;
+	/** the number of documents read, and the time spent reading them (in ns) */
+	private int fetched;
+	private long fetchNanos;
 	
 	/**
 	 * Creates the iterator with all the fields selected.
@@ -93,12 +96,21 @@ public class ResultIterator implements Iterator<SearchResult> {
 
 			ScoreDoc score = documentIterator.next();		
 			
+			long start = System.nanoTime();
 			Document doc = resultStream.getDocument(score.doc);
+			fetchNanos += System.nanoTime() - start;
+			fetched++;
 			if(doc != null){				
 				bufferedResult = createSearchResult(doc);				
 			}			
 		}
 		
+		if (bufferedResult == null && fetched > 0) {
+			logger.debug("Fetched {} documents in {} ms, {} us per document", fetched, fetchNanos / 1000000,
+					fetchNanos / 1000 / fetched);
+			fetched = 0;
+			fetchNanos = 0;
+		}
 	}
 
 	@Override
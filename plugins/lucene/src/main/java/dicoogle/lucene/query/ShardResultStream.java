@@ -18,6 +18,8 @@
  */
 package dicoogle.lucene.query;
 
+import dicoogle.lucene.SearcherService;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
@@ -36,6 +38,12 @@ import java.util.Iterator;
  * 
  * Rather than having all the returned document ids in memory, this class uses a pagination strategy to minimize the amount of memory need for the search operation.
  * The page size is configurable.
+ * 
+ * When created from a {@link SearcherService}, all pages and documents of the stream are read from
+ * the searcher which was current when the stream was created, so that later changes to the index
+ * do not shift the results between pages. The searcher is unpinned once the iteration over
+ * the results is over, so that it can be released as soon as it was replaced. Over a sharded index, each page is searched in all
+ * shards concurrently, and their hits are merged into a single ranking.
  *
  */
 public class ShardResultStream extends AbstractResultStream {
@@ -43,6 +51,11 @@ public class ShardResultStream extends AbstractResultStream {
 	
 	private Query query;
 	private int bulkSize;
+
+	private final SearcherService searcherService;
+	private final long searcherToken;
+	/** whether the pin taken on creation was handed over to an iterator */
+	private boolean creationPinTaken = false;
 	
 	/**
 	 * Constructs the Stream with all the Extra-Fields returned and a page size of 50000.
@@ -77,6 +90,92 @@ public class ShardResultStream extends AbstractResultStream {
 		super(searcher, xtraFields);
 		this.query = query;
 		this.bulkSize = bulkSize;
+		this.searcherService = null;
+		this.searcherToken = -1;
+	}
+
+	/**
+	 * Constructs the Stream over the current searcher of a searcher service, with a page size of 50000.
+	 * 
+	 * @param searcherService The service providing the searcher, which is pinned for the lifetime of the stream.
+	 * @param query The query string.
+	 * @param xtraFields The extraFields to be returned in the results.
+	 * @throws IOException if the current searcher could not be pinned.
+	 */
+	public ShardResultStream(SearcherService searcherService, Query query, HashMap<String, Object> xtraFields) throws IOException {
+		this(searcherService, query, xtraFields, 50000);
+	}
+
+	/**
+	 * Constructs the Stream over the current searcher of a searcher service.
+	 * 
+	 * @param searcherService The service providing the searcher, which is pinned for the lifetime of the stream.
+	 * @param query The query string.
+	 * @param xtraFields The extraFields to be returned in the results.
+	 * @param bulkSize The page size of the stream.
+	 * @throws IOException if the current searcher could not be pinned.
+	 */
+	public ShardResultStream(SearcherService searcherService, Query query, HashMap<String, Object> xtraFields, int bulkSize) throws IOException {
+		super(null, xtraFields);
+		this.query = query;
+		this.bulkSize = bulkSize;
+		this.searcherService = searcherService;
+		this.searcherToken = searcherService.pin();
+	}
+
+	/**
+	 * Acquires the searcher of this stream.
+	 * 
+	 * @return the searcher
+	 * @throws IOException if the pinned searcher is no longer available
+	 */
+	private IndexSearcher acquireSearcher() throws IOException {
+		if (searcherService == null) {
+			return searcher;
+		}
+		IndexSearcher s = searcherService.acquire(searcherToken);
+		if (s == null) {
+			throw new IOException("The index searcher of this result stream has expired");
+		}
+		return s;
+	}
+
+	/**
+	 * Pins the searcher of this stream for a new iteration, the first one taking over
+	 * the pin taken when the stream was created.
+	 *
+	 * @return false if the searcher has expired
+	 */
+	private synchronized boolean pinSearcher() {
+		if (!creationPinTaken) {
+			creationPinTaken = true;
+			return true;
+		}
+		return searcherService.repin(searcherToken);
+	}
+
+	private void releaseSearcher(IndexSearcher s) throws IOException {
+		if (searcherService != null) {
+			searcherService.releasePinned(s);
+		}
+	}
+
+	@Override
+	public Document getDocument(int docID) {
+		if (searcherService == null) {
+			return super.getDocument(docID);
+		}
+		try {
+			IndexSearcher s = acquireSearcher();
+			try {
+				return loadDocument(s, docID);
+			} finally {
+				releaseSearcher(s);
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to retrieve Document {}", (Object)docID, e);
+		}
+		return null;
 	}
 
 	/* (non-Javadoc)
@@ -104,6 +203,8 @@ public class ShardResultStream extends AbstractResultStream {
 		private int totalHits;
 		private int index;
 		private int bulkIndex;
+		/** whether this iterator holds a pin on the searcher of the stream */
+		private boolean pinned;
 		
 		/**
 		 * Initializes the iterator.
@@ -111,9 +212,29 @@ public class ShardResultStream extends AbstractResultStream {
 		public ShardIterator() {
 			this.index = 0;
 			this.bulkIndex = 0;
+			this.pinned = searcherService != null && pinSearcher();
+			if (searcherService != null && !pinned) {
+				logger.error("The index searcher of this result stream has expired");
+				return;
+			}
 			search();			
 		}
 
+		/**
+		 * Releases the pin on the searcher, once the iteration is over.
+		 */
+		private void unpin() {
+			if (!pinned) {
+				return;
+			}
+			pinned = false;
+			try {
+				searcherService.unpin(searcherToken);
+			} catch (IOException e) {
+				logger.warn("Failed to release the index searcher", e);
+			}
+		}
+
 		/**
 		 * Performs the search operation.
 		 */
@@ -121,10 +242,15 @@ public class ShardResultStream extends AbstractResultStream {
 			try {
 				TopDocs results;
 				
-				if(index == 0){
-					results = searcher.search(query, bulkSize);					
-				}else{
-					results = searcher.searchAfter(docs[docs.length-1], query, bulkSize);						
+				IndexSearcher s = acquireSearcher();
+				try {
+					if(index == 0){
+						results = s.search(query, bulkSize);
+					}else{
+						results = s.searchAfter(docs[docs.length-1], query, bulkSize);
+					}
+				} finally {
+					releaseSearcher(s);
 				}
 								
 				this.docs = results.scoreDocs;
@@ -140,7 +266,11 @@ public class ShardResultStream extends AbstractResultStream {
 
 		@Override
 		public boolean hasNext() {
-			return index < totalHits;
+			if (index < totalHits) {
+				return true;
+			}
+			unpin();
+			return false;
 		}
 
 		@Override
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.registry;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An array of longs backed by a memory-mapped region of a file.
+ *
+ * The region is mapped in segments of 1 GiB, so that arrays larger than
+ * what a single buffer can address are supported.
+ *
+ */
+final class MappedLongArray {
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final MappedByteBuffer[] segments;
+    private final long length;
+
+    /**
+     * Maps a region of the given file, extending the file if necessary.
+     *
+     * @param channel the file channel, open for reading and writing
+     * @param offset the position of the region in the file (in bytes)
+     * @param length the number of longs in the array
+     * @throws IOException on failure to map the file
+     */
+    MappedLongArray(FileChannel channel, long offset, long length) throws IOException {
+        this.length = length;
+        long bytes = length << 3;
+        int n = (int) ((bytes + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        this.segments = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long start = ((long) i) << SEGMENT_SHIFT;
+            long size = Math.min(SEGMENT_SIZE, bytes - start);
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset + start, size);
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    long get(long index) {
+        long pos = index << 3;
+        return segments[(int) (pos >>> SEGMENT_SHIFT)].getLong((int) (pos & SEGMENT_MASK));
+    }
+
+    void set(long index, long value) {
+        long pos = index << 3;
+        segments[(int) (pos >>> SEGMENT_SHIFT)].putLong((int) (pos & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Writes all changes to the storage device.
+     */
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+}
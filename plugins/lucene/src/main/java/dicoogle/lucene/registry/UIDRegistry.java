@@ -0,0 +1,559 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.registry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A persistent set of unique identifiers (such as SOPInstanceUIDs), kept outside of the Java heap.
+ *
+ * Each identifier is reduced to a 128-bit fingerprint, stored in an open addressing hash table
+ * in a memory-mapped file. The table is fronted by a Bloom filter in the same file, which tells
+ * identifiers that were never added apart without probing the table.
+ *
+ * The registry is only trusted across restarts if it was closed after {@link #markClean()}.
+ * Otherwise, it is reopened empty and {@link #isRebuildNeeded()} returns true, so that the owner
+ * can fill it again from the index.
+ *
+ * All operations are thread safe.
+ *
+ */
+public final class UIDRegistry implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(UIDRegistry.class);
+
+    private static final long MAGIC = 0x4443_4D55_4944_5247L; // "DCMUIDRG"
+    private static final long VERSION = 1;
+    private static final String FILE_PREFIX = "uids-";
+    private static final String FILE_SUFFIX = ".reg";
+
+    private static final int HEADER_BYTES = 4096;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_STATE = 16;
+    private static final int H_CAPACITY = 24;
+    private static final int H_SIZE = 32;
+    private static final int H_TOMBSTONES = 40;
+    private static final int H_BLOOM_BITS = 48;
+    private static final int H_BLOOM_HASHES = 56;
+
+    private static final long STATE_CLEAN = 0;
+    private static final long STATE_DIRTY = 1;
+
+    /** the maximum fraction of used (live or deleted) slots in the table */
+    private static final double MAX_LOAD = 0.7;
+    private static final long MIN_CAPACITY = 1024;
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final Path directory;
+    private final long initialCapacity;
+    private final int bloomBitsPerEntry;
+
+    private long generation;
+    private Path file;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedLongArray table;
+    private MappedLongArray bloom;
+
+    private long capacity;
+    private long size;
+    private long tombstones;
+    private long bloomBits;
+    private int bloomHashes;
+    private boolean clean;
+    private boolean rebuildNeeded;
+
+    // fingerprint of the last hashed identifier
+    private long fp1;
+    private long fp2;
+
+    // lookup statistics
+    private long bloomRejections;
+    private long bloomFalsePositives;
+
+    private UIDRegistry(Path directory, long initialCapacity, int bloomBitsPerEntry) {
+        this.directory = directory;
+        this.initialCapacity = Math.max(MIN_CAPACITY, Long.highestOneBit(Math.max(1, initialCapacity - 1)) << 1);
+        this.bloomBitsPerEntry = Math.max(1, bloomBitsPerEntry);
+    }
+
+    /**
+     * Opens the registry kept in the given directory, creating it if it does not exist.
+     *
+     * @param directory the directory of the registry
+     * @param initialCapacity the initial number of slots in the hash table
+     * @param bloomBitsPerEntry the number of Bloom filter bits per identifier, which sets the false positive rate
+     * @return the registry
+     * @throws IOException on failure to open or create the registry
+     */
+    public static UIDRegistry open(Path directory, long initialCapacity, int bloomBitsPerEntry) throws IOException {
+        Files.createDirectories(directory);
+        UIDRegistry registry = new UIDRegistry(directory, initialCapacity, bloomBitsPerEntry);
+        registry.load();
+        return registry;
+    }
+
+    private void load() throws IOException {
+        Path latest = null;
+        long latestGeneration = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path f : files) {
+                long g = parseGeneration(f);
+                if (g > latestGeneration) {
+                    latest = f;
+                    latestGeneration = g;
+                }
+            }
+        }
+
+        if (latest != null && tryOpen(latest, latestGeneration)) {
+            logger.info("Opened UID registry {} with {} entries", latest, size);
+        } else {
+            if (latest != null) {
+                logger.warn("UID registry {} was not closed properly, it will be rebuilt", latest);
+            }
+            create(Math.max(0, latestGeneration + 1), initialCapacity);
+            this.rebuildNeeded = true;
+        }
+        deleteOtherGenerations();
+
+        // anything may happen from now on, until the owner says otherwise
+        this.clean = false;
+        header.putLong(H_STATE, STATE_DIRTY);
+        header.force();
+    }
+
+    private static long parseGeneration(Path f) {
+        String name = f.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+            return -1;
+        }
+    }
+
+    private boolean tryOpen(Path f, long g) throws IOException {
+        if (Files.size(f) < HEADER_BYTES) {
+            return false;
+        }
+        FileChannel ch = FileChannel.open(f, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer h = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        long cap = h.getLong(H_CAPACITY);
+        long bits = h.getLong(H_BLOOM_BITS);
+        if (h.getLong(H_MAGIC) != MAGIC || h.getLong(H_VERSION) != VERSION
+                || h.getLong(H_STATE) != STATE_CLEAN
+                || cap < MIN_CAPACITY || Long.bitCount(cap) != 1 || bits <= 0
+                || Files.size(f) < HEADER_BYTES + (cap * 2 + (bits >>> 6)) * 8) {
+            ch.close();
+            return false;
+        }
+        this.generation = g;
+        this.file = f;
+        this.channel = ch;
+        this.header = h;
+        this.capacity = cap;
+        this.size = h.getLong(H_SIZE);
+        this.tombstones = h.getLong(H_TOMBSTONES);
+        this.bloomBits = bits;
+        this.bloomHashes = (int) h.getLong(H_BLOOM_HASHES);
+        this.table = new MappedLongArray(ch, HEADER_BYTES, cap * 2);
+        this.bloom = new MappedLongArray(ch, HEADER_BYTES + cap * 16, bits >>> 6);
+        return true;
+    }
+
+    /**
+     * Creates an empty registry file and makes it current.
+     */
+    private void create(long g, long cap) throws IOException {
+        Path f = directory.resolve(FILE_PREFIX + g + FILE_SUFFIX);
+        Files.deleteIfExists(f);
+        FileChannel ch = FileChannel.open(f, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long bits = (long) Math.ceil(cap * MAX_LOAD * bloomBitsPerEntry);
+        bits = Math.max(64, (bits + 63) & ~63L);
+        int hashes = Math.max(1, (int) Math.round(bloomBitsPerEntry * Math.log(2)));
+
+        MappedByteBuffer h = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        h.putLong(H_MAGIC, MAGIC);
+        h.putLong(H_VERSION, VERSION);
+        h.putLong(H_STATE, STATE_DIRTY);
+        h.putLong(H_CAPACITY, cap);
+        h.putLong(H_SIZE, 0);
+        h.putLong(H_TOMBSTONES, 0);
+        h.putLong(H_BLOOM_BITS, bits);
+        h.putLong(H_BLOOM_HASHES, hashes);
+
+        this.generation = g;
+        this.file = f;
+        this.channel = ch;
+        this.header = h;
+        this.capacity = cap;
+        this.size = 0;
+        this.tombstones = 0;
+        this.bloomBits = bits;
+        this.bloomHashes = hashes;
+        this.table = new MappedLongArray(ch, HEADER_BYTES, cap * 2);
+        this.bloom = new MappedLongArray(ch, HEADER_BYTES + cap * 16, bits >>> 6);
+    }
+
+    private void deleteOtherGenerations() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path f : files) {
+                if (!f.equals(file)) {
+                    try {
+                        Files.deleteIfExists(f);
+                    } catch (IOException ex) {
+                        // may still be mapped on some platforms, try again next time
+                        logger.debug("Could not delete old UID registry file {}", f, ex);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            logger.warn("Failed to list UID registry files", ex);
+        }
+    }
+
+    /**
+     * @return true if the registry had to be created or emptied when opened,
+     * and should be filled again with the identifiers in the index
+     */
+    public synchronized boolean isRebuildNeeded() {
+        return rebuildNeeded;
+    }
+
+    /**
+     * Adds an identifier to the registry.
+     *
+     * @param uid the identifier
+     * @return true if the identifier was not in the registry
+     * @throws IOException on failure to grow the registry
+     */
+    public synchronized boolean add(String uid) throws IOException {
+        fingerprint(uid);
+        if (bloomMayContain(fp1, fp2)) {
+            if (find(fp1, fp2) >= 0) {
+                return false;
+            }
+            bloomFalsePositives++;
+        } else {
+            bloomRejections++;
+        }
+
+        if (size + tombstones + 1 > capacity * MAX_LOAD) {
+            // grow, or just drop the tombstones if there are many of them
+            long newCapacity = (size + 1 > capacity * MAX_LOAD / 2) ? capacity * 2 : capacity;
+            resize(newCapacity);
+        }
+        insert(fp1, fp2);
+        return true;
+    }
+
+    /**
+     * Checks whether an identifier is in the registry.
+     *
+     * @param uid the identifier
+     * @return true if the identifier is in the registry
+     */
+    public synchronized boolean contains(String uid) {
+        fingerprint(uid);
+        if (!bloomMayContain(fp1, fp2)) {
+            bloomRejections++;
+            return false;
+        }
+        if (find(fp1, fp2) >= 0) {
+            return true;
+        }
+        bloomFalsePositives++;
+        return false;
+    }
+
+    /**
+     * Removes an identifier from the registry.
+     *
+     * @param uid the identifier
+     * @return true if the identifier was in the registry
+     */
+    public synchronized boolean remove(String uid) {
+        fingerprint(uid);
+        if (!bloomMayContain(fp1, fp2)) {
+            return false;
+        }
+        long slot = find(fp1, fp2);
+        if (slot < 0) {
+            return false;
+        }
+        ensureDirty();
+        // the Bloom filter bits are left alone, since they may be shared with other entries
+        table.set(slot * 2, 0);
+        table.set(slot * 2 + 1, 1);
+        size--;
+        tombstones++;
+        header.putLong(H_SIZE, size);
+        header.putLong(H_TOMBSTONES, tombstones);
+        return true;
+    }
+
+    /**
+     * @return the number of identifiers in the registry
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the size of the registry file, in bytes
+     */
+    public synchronized long sizeInBytes() {
+        return HEADER_BYTES + capacity * 16 + (bloomBits >>> 3);
+    }
+
+    /**
+     * @return the false positive rate of the Bloom filter expected from its current load
+     */
+    public synchronized double expectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) bloomHashes * (size + tombstones) / bloomBits), bloomHashes);
+    }
+
+    /**
+     * @return the fraction of lookups for absent identifiers that were not rejected by the Bloom filter,
+     * since the registry was opened or the statistics were reset
+     */
+    public synchronized double observedFalsePositiveRate() {
+        long negatives = bloomRejections + bloomFalsePositives;
+        return negatives == 0 ? 0 : (double) bloomFalsePositives / negatives;
+    }
+
+    /**
+     * Resets the lookup statistics, such as after filling the registry.
+     */
+    public synchronized void resetStatistics() {
+        bloomRejections = 0;
+        bloomFalsePositives = 0;
+    }
+
+    /**
+     * Declares the contents of the registry as consistent with the index,
+     * so that they can be trusted when the registry is opened again.
+     * Any later change makes the registry inconsistent again.
+     */
+    public synchronized void markClean() {
+        this.clean = true;
+        this.rebuildNeeded = false;
+    }
+
+    /**
+     * Writes all changes to disk and closes the registry.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            table.force();
+            bloom.force();
+            header.putLong(H_STATE, clean ? STATE_CLEAN : STATE_DIRTY);
+            header.force();
+        } finally {
+            channel.close();
+            channel = null;
+        }
+        logger.info("Closed {}", this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("UID registry %s: %d entries, %d bytes, expected FPR %.4f, observed FPR %.4f",
+                file, size, sizeInBytes(), expectedFalsePositiveRate(), observedFalsePositiveRate());
+    }
+
+    private void ensureDirty() {
+        clean = false;
+    }
+
+    private void insert(long h1, long h2) {
+        ensureDirty();
+        long mask = capacity - 1;
+        long idx = h1 & mask;
+        long tombstone = -1;
+        while (true) {
+            long a = table.get(idx * 2);
+            long b = table.get(idx * 2 + 1);
+            if (a == 0) {
+                if (b == 0) {
+                    break;
+                }
+                if (tombstone < 0) {
+                    tombstone = idx;
+                }
+            }
+            idx = (idx + 1) & mask;
+        }
+        if (tombstone >= 0) {
+            idx = tombstone;
+            tombstones--;
+            header.putLong(H_TOMBSTONES, tombstones);
+        }
+        table.set(idx * 2, h1);
+        table.set(idx * 2 + 1, h2);
+        bloomAdd(h1, h2);
+        size++;
+        header.putLong(H_SIZE, size);
+    }
+
+    private long find(long h1, long h2) {
+        long mask = capacity - 1;
+        long idx = h1 & mask;
+        for (long n = 0; n < capacity; n++) {
+            long a = table.get(idx * 2);
+            long b = table.get(idx * 2 + 1);
+            if (a == h1 && b == h2) {
+                return idx;
+            }
+            if (a == 0 && b == 0) {
+                return -1;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(long newCapacity) throws IOException {
+        long time = System.currentTimeMillis();
+        Path oldFile = this.file;
+        FileChannel oldChannel = this.channel;
+        MappedLongArray oldTable = this.table;
+        long oldCapacity = this.capacity;
+
+        create(generation + 1, newCapacity);
+        for (long i = 0; i < oldCapacity; i++) {
+            long a = oldTable.get(i * 2);
+            if (a != 0) {
+                insert(a, oldTable.get(i * 2 + 1));
+            }
+        }
+        header.force();
+
+        oldChannel.close();
+        try {
+            Files.deleteIfExists(oldFile);
+        } catch (IOException ex) {
+            logger.debug("Could not delete old UID registry file {}", oldFile, ex);
+        }
+        logger.info("Resized UID registry from {} to {} slots in {} ms", oldCapacity, newCapacity,
+                System.currentTimeMillis() - time);
+    }
+
+    private boolean bloomMayContain(long h1, long h2) {
+        long combined = h2;
+        long step = Long.rotateLeft(h1, 32) | 1;
+        for (int i = 0; i < bloomHashes; i++) {
+            long bit = (combined & Long.MAX_VALUE) % bloomBits;
+            if ((bloom.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += step;
+        }
+        return true;
+    }
+
+    private void bloomAdd(long h1, long h2) {
+        long combined = h2;
+        long step = Long.rotateLeft(h1, 32) | 1;
+        for (int i = 0; i < bloomHashes; i++) {
+            long bit = (combined & Long.MAX_VALUE) % bloomBits;
+            long word = bit >>> 6;
+            bloom.set(word, bloom.get(word) | (1L << bit));
+            combined += step;
+        }
+    }
+
+    /**
+     * Computes the 128-bit fingerprint of an identifier into fp1 and fp2,
+     * using the MurmurHash3 (x64, 128-bit) mixing functions over its UTF-16 code units.
+     */
+    private void fingerprint(String s) {
+        long h1 = 0x9368e53c2f6af274L;
+        long h2 = 0x586dcd208f7cd3fdL;
+        final int len = s.length();
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            long k1 = pack(s, i, 4);
+            long k2 = pack(s, i + 4, 4);
+
+            k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+        int rem = len - i;
+        if (rem > 4) {
+            long k2 = pack(s, i + 4, rem - 4);
+            k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+        }
+        if (rem > 0) {
+            long k1 = pack(s, i, Math.min(4, rem));
+            k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        // (0, 0) and (0, 1) mark empty and deleted slots
+        this.fp1 = (h1 == 0) ? 1 : h1;
+        this.fp2 = h2;
+    }
+
+    private static long pack(String s, int offset, int count) {
+        long k = 0;
+        for (int j = 0; j < count; j++) {
+            k |= ((long) s.charAt(offset + j)) << (16 * j);
+        }
+        return k;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
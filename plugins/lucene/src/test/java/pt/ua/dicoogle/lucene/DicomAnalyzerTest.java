@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.DicomAnalyzer;
+import dicoogle.lucene.GenericQueryParser;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DicomAnalyzerTest {
+
+    private static List<String> tokens(Analyzer analyzer, String field, String text) throws IOException {
+        List<String> out = new ArrayList<>();
+        try (TokenStream ts = analyzer.tokenStream(field, text)) {
+            CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+            ts.reset();
+            while (ts.incrementToken()) {
+                out.add(term.toString());
+            }
+            ts.end();
+        }
+        return out;
+    }
+
+    @Test
+    public void testValues() throws IOException {
+        Analyzer analyzer = new DicomAnalyzer.ValueAnalyzer();
+        assertEquals(Collections.singletonList("1.2.840.10008.5.1.4.1.1.2"),
+                tokens(analyzer, "SOPClassUID", "1.2.840.10008.5.1.4.1.1.2"));
+        assertEquals(Collections.singletonList("ct"), tokens(analyzer, "Modality", "CT "));
+        List<String> expected = new ArrayList<>();
+        expected.add("original");
+        expected.add("primary");
+        expected.add("axial");
+        assertEquals(expected, tokens(analyzer, "ImageType", "ORIGINAL\\PRIMARY \\\\AXIAL"));
+    }
+
+    @Test
+    public void testFields() throws IOException {
+        Analyzer analyzer = new DicomAnalyzer(null, Collections.singleton("SOPInstanceUID"), 2);
+        assertEquals(Collections.singletonList("1.2.3.4"), tokens(analyzer, "SOPInstanceUID", "1.2.3.4"));
+        // without a plan, attributes are analyzed as text
+        assertEquals(2, tokens(analyzer, "PatientName", "Doe John").size());
+        assertEquals(2, tokens(analyzer, "others", "a b c d").size());
+    }
+
+    @Test
+    public void testWithoutVRAnalysis() throws IOException {
+        // an index built before analysis by VR never looks the attributes up in the plan
+        Analyzer analyzer = new DicomAnalyzer(() -> {
+            throw new AssertionError("the plan is not used");
+        }, Collections.singleton("SOPInstanceUID"), 0, false);
+        assertEquals(Collections.singletonList("1.2.3.4"), tokens(analyzer, "SOPInstanceUID", "1.2.3.4"));
+        assertEquals(Arrays.asList("original", "primary"), tokens(analyzer, "ImageType", "ORIGINAL\\PRIMARY"));
+        assertEquals(2, tokens(analyzer, "PatientName", "Doe John").size());
+    }
+
+    @Test
+    public void testSingleTermQueries() throws ParseException {
+        Analyzer analyzer = new PerFieldAnalyzerWrapper(new StandardAnalyzer(),
+                Collections.<String, Analyzer>singletonMap("StudyDate", new DicomAnalyzer.ValueAnalyzer()));
+        GenericQueryParser parser = new GenericQueryParser(analyzer);
+        assertEquals(new TermQuery(new Term("StudyDate", "20170315")), parser.parse("StudyDate:20170315"));
+        assertEquals(new PrefixQuery(new Term("StudyDate", "2017")), parser.parse("StudyDate:2017*"));
+    }
+
+    @Test
+    public void testSuffixes() throws IOException {
+        assertEquals(Arrays.asList("da", "a", "silva", "ilva", "lva", "va", "a"),
+                tokens(new DicomAnalyzer.SuffixAnalyzer(), "_suffix_PatientName", "Da^SILVA"));
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.dicom.DicomDates;
+import org.dcm4che2.data.VR;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DicomDatesTest {
+
+    @Test
+    public void testDate() {
+        assertEquals(20260131L, DicomDates.normalize(VR.DA, "20260131", false));
+        assertEquals(20260131L, DicomDates.normalize(VR.DA, " 2026.01.31 ", true));
+        // partial bounds cover the whole period
+        assertEquals(20260100L, DicomDates.normalize(VR.DA, "202601", false));
+        assertEquals(20260199L, DicomDates.normalize(VR.DA, "202601", true));
+
+        assertEquals(DicomDates.INVALID, DicomDates.normalize(VR.DA, "", false));
+        assertEquals(DicomDates.INVALID, DicomDates.normalize(VR.DA, "2026-01-31", false));
+        assertEquals(DicomDates.INVALID, DicomDates.normalize(VR.DA, "202601311", false));
+    }
+
+    @Test
+    public void testTime() {
+        assertEquals(83015123L, DicomDates.normalize(VR.TM, "083015.123456", false));
+        assertEquals(83015000L, DicomDates.normalize(VR.TM, "08:30:15", false));
+        assertEquals(80000000L, DicomDates.normalize(VR.TM, "08", false));
+        assertEquals(89999999L, DicomDates.normalize(VR.TM, "08", true));
+        assertEquals(83015999L, DicomDates.normalize(VR.TM, "083015", true));
+        assertTrue(DicomDates.normalize(VR.TM, "235959.999", false) > DicomDates.normalize(VR.TM, "2359", false));
+
+        assertEquals(DicomDates.INVALID, DicomDates.normalize(VR.TM, "0830.5", false));
+        assertEquals(DicomDates.INVALID, DicomDates.normalize(VR.TM, "08h30", false));
+    }
+
+    @Test
+    public void testDateTime() {
+        assertEquals(20260131083015123L, DicomDates.normalize(VR.DT, "20260131083015.123+0100", false));
+        assertEquals(20260131083015123L, DicomDates.normalize(VR.DT, "20260131083015.123-0500", false));
+        assertEquals(20260000000000000L, DicomDates.normalize(VR.DT, "2026", false));
+        assertEquals(20269999999999999L, DicomDates.normalize(VR.DT, "2026", true));
+        assertEquals(DicomDates.INVALID, DicomDates.normalize(VR.PN, "2026", false));
+    }
+}
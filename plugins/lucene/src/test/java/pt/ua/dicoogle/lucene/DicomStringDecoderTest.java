@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.dicom.DicomStringDecoder;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class DicomStringDecoderTest {
+
+    private static byte[] bytes(String s, String charset) throws Exception {
+        return s.getBytes(charset);
+    }
+
+    @Test
+    public void testDefault() throws Exception {
+        DicomStringDecoder decoder = DicomStringDecoder.forDataset(new BasicDicomObject());
+        assertSame(DicomStringDecoder.DEFAULT, decoder);
+        assertEquals("Joseé", decoder.decode(bytes("Joseé ", "ISO-8859-1")));
+        // padding is dropped
+        assertEquals("1.2.3", decoder.decode(new byte[]{'1', '.', '2', '.', '3', 0}));
+        assertEquals("", decoder.decode(new byte[]{' ', ' '}));
+        assertEquals("", decoder.decode(null));
+    }
+
+    @Test
+    public void testLatin2() throws Exception {
+        DicomObject obj = new BasicDicomObject();
+        obj.putString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 101");
+        DicomStringDecoder decoder = DicomStringDecoder.forDataset(obj);
+        assertEquals("ISO-8859-2", decoder.getCharset().name());
+        assertEquals("Łódź", decoder.decode(bytes("Łódź", "ISO-8859-2")));
+    }
+
+    @Test
+    public void testUtf8() throws Exception {
+        DicomStringDecoder decoder = DicomStringDecoder.forCharacterSet("ISO_IR 192");
+        assertEquals(StandardCharsets.UTF_8, decoder.getCharset());
+        String name = "Müller^Ąnna";
+        assertEquals(name, decoder.decode(bytes(name + " ", "UTF-8")));
+        // large values
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("ção ");
+        }
+        String text = sb.toString().trim();
+        assertEquals(text, decoder.decode(bytes(text, "UTF-8")));
+    }
+
+    @Test
+    public void testCodeExtensions() {
+        assertEquals("ISO-8859-5", DicomStringDecoder.forCharacterSet("", "ISO 2022 IR 144").getCharset().name());
+        assertSame(DicomStringDecoder.forCharacterSet("ISO_IR 100"), DicomStringDecoder.forCharacterSet("ISO_IR 100"));
+        // unknown character sets fall back to ISO-8859-1
+        assertEquals(StandardCharsets.ISO_8859_1, DicomStringDecoder.forCharacterSet("ISO_IR 999").getCharset());
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] escape(String designation) {
+        return ("\u001b" + designation).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void testKorean() throws Exception {
+        DicomStringDecoder decoder = DicomStringDecoder.forCharacterSet("", "ISO 2022 IR 149");
+        // KS X 1001 is designated to G1 before each run of Korean characters
+        byte[] value = concat(bytes("Hong^Gildong=", "US-ASCII"),
+                escape("$)C"), bytes("洪", "EUC-KR"), bytes("^", "US-ASCII"),
+                escape("$)C"), bytes("吉洞", "EUC-KR"), bytes("=", "US-ASCII"),
+                escape("$)C"), bytes("홍", "EUC-KR"), bytes("^", "US-ASCII"),
+                escape("$)C"), bytes("길동", "EUC-KR"));
+        assertEquals("Hong^Gildong=洪^吉洞=홍^길동", decoder.decode(value));
+    }
+
+    @Test
+    public void testJapanese() throws Exception {
+        DicomStringDecoder decoder = DicomStringDecoder.forCharacterSet("", "ISO 2022 IR 87");
+        // the JDK encoder switches G0 between ASCII and JIS X 0208 the same way
+        String name = "Yamada^Tarou=山田^太郎=やまだ^たろう";
+        assertEquals(name, decoder.decode(bytes(name, "ISO-2022-JP")));
+
+        // supplementary kanji of JIS X 0212
+        decoder = DicomStringDecoder.forCharacterSet("", "ISO 2022 IR 87", "ISO 2022 IR 159");
+        assertEquals("山^丂", decoder.decode(bytes("山^丂", "ISO-2022-JP-2")));
+    }
+
+    @Test
+    public void testMultipleCodeExtensions() throws Exception {
+        DicomStringDecoder decoder = DicomStringDecoder.forCharacterSet("ISO 2022 IR 13", "ISO 2022 IR 87");
+        // starts with JIS X 0201, half-width katakana in G1 and romaji in G0
+        byte[] value = concat(bytes("ﾔﾏﾀﾞ^ﾀﾛｳ=", "JIS_X0201"), bytes("山田^太郎", "ISO-2022-JP"));
+        assertEquals("ﾔﾏﾀﾞ^ﾀﾛｳ=山田^太郎", decoder.decode(value));
+
+        // G1 sets can be switched in the middle of a value
+        decoder = DicomStringDecoder.forCharacterSet("ISO 2022 IR 100", "ISO 2022 IR 144");
+        value = concat(bytes("Joseé=", "ISO-8859-1"), escape("-L"), bytes("Юрий", "ISO-8859-5"),
+                escape("-A"), bytes("=é", "ISO-8859-1"));
+        assertEquals("Joseé=Юрий=é", decoder.decode(value));
+
+        // unknown escape sequences are dropped
+        assertEquals("ab", decoder.decode(concat(bytes("a", "US-ASCII"), escape("%G"), bytes("b", "US-ASCII"))));
+    }
+
+    @Test
+    public void testItemCharacterSet() {
+        DicomObject item = new BasicDicomObject();
+        DicomStringDecoder latin2 = DicomStringDecoder.forCharacterSet("ISO_IR 101");
+        assertSame(latin2, latin2.forItem(item));
+        item.putString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 192");
+        assertEquals(StandardCharsets.UTF_8, latin2.forItem(item).getCharset());
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.IndexCodec;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class IndexCodecTest {
+
+    private static Directory index(IndexCodec codec, int n) throws IOException {
+        return TestIndexes.index(new IndexWriterConfig(new StandardAnalyzer()).setCodec(codec), n);
+    }
+
+    private static IndexCodec codec(Lucene50StoredFieldsFormat.Mode mode) {
+        return new IndexCodec(mode, Collections.<String, PostingsFormat>emptyMap(),
+                Collections.<String, DocValuesFormat>emptyMap());
+    }
+
+    @Test
+    public void testStoredFieldsMode() throws IOException {
+        Directory speed = index(codec(Lucene50StoredFieldsFormat.Mode.BEST_SPEED), 2000);
+        Directory compact = index(codec(Lucene50StoredFieldsFormat.Mode.BEST_COMPRESSION), 2000);
+        assertTrue(TestIndexes.size(compact) < TestIndexes.size(speed));
+
+        // segments record their mode, and are read with the default codec
+        try (DirectoryReader reader = DirectoryReader.open(compact)) {
+            SegmentReader segment = (SegmentReader) reader.leaves().get(0).reader();
+            assertEquals(Lucene50StoredFieldsFormat.Mode.BEST_COMPRESSION.name(),
+                    segment.getSegmentInfo().info.getAttribute(Lucene50StoredFieldsFormat.MODE_KEY));
+            assertEquals("1.2.3.42", reader.document(42).get("SOPInstanceUID"));
+        }
+        speed.close();
+        compact.close();
+    }
+
+    @Test
+    public void testPerFieldFormats() throws IOException {
+        PostingsFormat keys = new Lucene50PostingsFormat(64, 128);
+        Map<String, PostingsFormat> postings = Collections.singletonMap("SOPInstanceUID", keys);
+        IndexCodec codec = new IndexCodec(Lucene50StoredFieldsFormat.Mode.BEST_SPEED, postings,
+                Collections.<String, DocValuesFormat>emptyMap());
+        assertSame(keys, codec.getPostingsFormatForField("SOPInstanceUID"));
+        assertNotSame(keys, codec.getPostingsFormatForField("PatientName"));
+        assertEquals("Lucene62", codec.getName());
+
+        Directory dir = index(codec, 500);
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            assertEquals(1, searcher.count(new TermQuery(new Term("SOPInstanceUID", "1.2.3.7"))));
+            assertEquals(5, searcher.count(new TermQuery(new Term("PatientName", "7"))));
+        }
+        dir.close();
+    }
+}
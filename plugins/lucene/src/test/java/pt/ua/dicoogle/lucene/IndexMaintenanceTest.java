@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.CommitPolicy;
+import dicoogle.lucene.IndexMaintenance;
+import dicoogle.lucene.MaintenanceReport;
+import dicoogle.lucene.SearcherService;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class IndexMaintenanceTest {
+
+    private Directory directory;
+    private IndexWriter writer;
+    private CommitPolicy commits;
+    private SearcherService searchers;
+    private IndexMaintenance maintenance;
+
+    @Before
+    public void init() throws IOException {
+        directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        IndexMaintenance.Settings.DEFAULT.apply(config);
+        writer = new IndexWriter(directory, config);
+        commits = new CommitPolicy(writer, 0, 0);
+        searchers = new SearcherService(writer, 60000, 60);
+        maintenance = new IndexMaintenance(writer, commits, searchers, IndexMaintenance.Settings.DEFAULT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        maintenance.close();
+        searchers.close();
+        commits.close();
+        writer.close();
+        directory.close();
+    }
+
+    private void addSegment(int first, int n) throws IOException {
+        TestIndexes.add(writer, first, n);
+        commits.flush();
+    }
+
+    @Test
+    public void testExpungeDeletes() throws IOException {
+        addSegment(0, 100);
+        addSegment(100, 100);
+        addSegment(200, 100);
+        // a retention purge of part of the archive
+        for (int i = 100; i < 150; i++) {
+            writer.deleteDocuments(new Term("uri", "file:/a/" + i + ".dcm"));
+        }
+        commits.flush();
+        assertEquals(-1f, maintenance.getProgress(), 0f);
+
+        MaintenanceReport report = maintenance.run();
+        assertNull(report.getSkipped());
+        assertFalse(report.isForceMerge());
+        assertEquals(50, report.getDeletedBefore());
+        assertEquals(0, report.getDeletedAfter());
+        assertFalse(writer.hasUncommittedChanges());
+        assertFalse(maintenance.isRunning());
+
+        // nothing left to do
+        assertNotNull(maintenance.run().getSkipped());
+    }
+}
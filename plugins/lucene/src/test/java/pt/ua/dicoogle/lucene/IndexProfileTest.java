@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.IndexProfile;
+import dicoogle.lucene.dicom.abstraction.ReusableDocument;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class IndexProfileTest {
+
+    private static Directory index(IndexProfile profile, int n) throws IOException {
+        ReusableDocument doc = new ReusableDocument();
+        doc.setTextTypes(profile.getTextType(), profile.getStreamType());
+        return TestIndexes.index(new IndexWriterConfig(new StandardAnalyzer()), doc, n);
+    }
+
+    private static int count(Directory dir, Query query) throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            return new IndexSearcher(reader).count(query);
+        }
+    }
+
+    @Test
+    public void testCompactOmitsNorms() throws IOException {
+        Directory scored = index(IndexProfile.SCORED, 2000);
+        Directory compact = index(IndexProfile.COMPACT, 2000);
+
+        try (DirectoryReader reader = DirectoryReader.open(compact)) {
+            for (LeafReaderContext ctx : reader.leaves()) {
+                assertNull(ctx.reader().getNormValues("PatientName"));
+                assertNull(ctx.reader().getNormValues("others"));
+            }
+        }
+        try (DirectoryReader reader = DirectoryReader.open(scored)) {
+            for (LeafReaderContext ctx : reader.leaves()) {
+                assertNotNull(ctx.reader().getNormValues("PatientName"));
+            }
+        }
+        assertTrue(TestIndexes.size(compact) < TestIndexes.size(scored));
+
+        // positions are kept, so both profiles answer the same queries
+        Query term = new TermQuery(new Term("Modality", "ct"));
+        Query phrase = new PhraseQuery("others", "chest", "wo", "contrast");
+        assertEquals(count(scored, term), count(compact, IndexProfile.COMPACT.prepare(term)));
+        assertEquals(2000, count(compact, IndexProfile.COMPACT.prepare(phrase)));
+    }
+
+    @Test
+    public void testPrepare() {
+        Query q = new TermQuery(new Term("Modality", "ct"));
+        assertSame(q, IndexProfile.SCORED.prepare(q));
+        Query prepared = IndexProfile.COMPACT.prepare(q);
+        assertEquals(new ConstantScoreQuery(q), prepared);
+        assertSame(prepared, IndexProfile.COMPACT.prepare(prepared));
+        assertEquals(IndexProfile.COMPACT, IndexProfile.fromSetting(" Compact "));
+    }
+}
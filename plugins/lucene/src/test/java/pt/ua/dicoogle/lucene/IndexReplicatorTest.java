@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.IndexReplicator;
+import dicoogle.lucene.SearcherService;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class IndexReplicatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Builds an index from scratch in a wiped directory, and publishes it.
+     */
+    private static void index(Path indexPath, Path replicaPath, String folder) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(indexPath)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        SnapshotDeletionPolicy policy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+        try (Directory dir = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer())
+                     .setIndexDeletionPolicy(policy))) {
+            TestIndexes.add(writer, folder, 0, 10);
+            writer.commit();
+            IndexReplicator replicator = new IndexReplicator(writer, policy, indexPath,
+                    Collections.singletonList(replicaPath), 3600000, 3600);
+            replicator.close();
+        }
+    }
+
+    @Test
+    public void testRebuiltIndex() throws IOException {
+        Path indexPath = folder.newFolder("indexed").toPath();
+        Path replicaPath = folder.getRoot().toPath().resolve("replica");
+        index(indexPath, replicaPath, "a");
+        // the same file names and sizes, with other contents
+        index(indexPath, replicaPath, "b");
+
+        try (Directory replica = FSDirectory.open(replicaPath);
+             DirectoryReader reader = DirectoryReader.open(replica)) {
+            assertEquals(10, reader.numDocs());
+            assertEquals("file:/b/0.dcm", reader.document(0).get("uri"));
+        }
+    }
+
+    @Test
+    public void testFollowerSwitchesRevisions() throws IOException {
+        Path indexPath = folder.newFolder("indexed").toPath();
+        Path replicaPath = folder.getRoot().toPath().resolve("replica");
+        SnapshotDeletionPolicy policy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+        try (Directory dir = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(dir,
+                     new IndexWriterConfig(new StandardAnalyzer()).setIndexDeletionPolicy(policy))) {
+            TestIndexes.add(writer, 0, 100);
+            writer.commit();
+            // publishing is driven by the test
+            IndexReplicator replicator = new IndexReplicator(writer, policy, indexPath,
+                    Collections.singletonList(replicaPath), 3600000, 3600);
+            try {
+                long first = replicator.publish();
+                assertTrue(policy.getSnapshots().isEmpty());
+
+                try (Directory replica = FSDirectory.open(replicaPath);
+                     SearcherService follower = new SearcherService(replica, 3600000, 600)) {
+                    IndexSearcher old = follower.acquire();
+                    try {
+                        assertEquals(100, old.getIndexReader().numDocs());
+
+                        // uncommitted changes are not published
+                        TestIndexes.add(writer, 100, 50);
+                        assertEquals(first, replicator.publish());
+                        follower.refresh();
+                        assertEquals(100, count(follower));
+
+                        writer.commit();
+                        writer.forceMerge(1);
+                        writer.commit();
+                        assertTrue(replicator.publish() > first);
+                        follower.refresh();
+                        assertEquals(150, count(follower));
+
+                        // the previous revision is still readable
+                        assertEquals(100, old.search(new MatchAllDocsQuery(), 1).totalHits);
+                    } finally {
+                        follower.release(old);
+                    }
+                }
+            } finally {
+                replicator.close();
+            }
+        }
+    }
+
+    private static int count(SearcherService service) throws IOException {
+        IndexSearcher searcher = service.acquire();
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            service.release(searcher);
+        }
+    }
+}
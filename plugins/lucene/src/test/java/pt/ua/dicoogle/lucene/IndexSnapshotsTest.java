@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.CommitPolicy;
+import dicoogle.lucene.IndexSnapshots;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class IndexSnapshotsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int count(Path path) throws IOException {
+        try (Directory dir = FSDirectory.open(path); DirectoryReader reader = DirectoryReader.open(dir)) {
+            return reader.numDocs();
+        }
+    }
+
+    @Test
+    public void testBackupAndRestore() throws IOException {
+        Path indexPath = folder.newFolder("indexed").toPath();
+        Path backupPath = folder.getRoot().toPath().resolve("backup");
+        SnapshotDeletionPolicy policy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+        try (Directory dir = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(dir,
+                     new IndexWriterConfig(new StandardAnalyzer()).setIndexDeletionPolicy(policy))) {
+            CommitPolicy commits = new CommitPolicy(writer, 0, 0);
+            IndexSnapshots snapshots = new IndexSnapshots(writer, policy, commits, indexPath);
+
+            TestIndexes.add(writer, 0, 100);
+            // pending changes are committed first
+            snapshots.backup(backupPath);
+            assertTrue(policy.getSnapshots().isEmpty());
+
+            // the live index moves on, the backup does not
+            TestIndexes.add(writer, 100, 50);
+            writer.forceMerge(1);
+            commits.close();
+            assertEquals(150, writer.numDocs());
+            assertEquals(100, count(backupPath));
+
+            try {
+                snapshots.backup(backupPath);
+                fail("the backup directory is not empty");
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+
+        Path restored = folder.getRoot().toPath().resolve("restored");
+        assertTrue(IndexSnapshots.restore(backupPath, restored));
+        assertEquals(100, count(restored));
+        assertFalse(IndexSnapshots.restore(folder.newFolder("empty").toPath(), folder.getRoot().toPath().resolve("x")));
+        assertFalse(Files.exists(folder.getRoot().toPath().resolve("x")));
+    }
+
+    @Test
+    public void testInterruptedRestore() throws IOException {
+        Path indexPath = folder.newFolder("indexed").toPath();
+        Path backupPath = folder.getRoot().toPath().resolve("backup");
+        SnapshotDeletionPolicy policy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+        try (Directory dir = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(dir,
+                     new IndexWriterConfig(new StandardAnalyzer()).setIndexDeletionPolicy(policy))) {
+            CommitPolicy commits = new CommitPolicy(writer, 0, 0);
+            TestIndexes.add(writer, 0, 100);
+            new IndexSnapshots(writer, policy, commits, indexPath).backup(backupPath);
+            commits.close();
+        }
+
+        // a restore which stopped before the segments file was written
+        Path restored = folder.newFolder("restored").toPath();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(backupPath)) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().startsWith(IndexFileNames.SEGMENTS)) {
+                    Files.copy(file, restored.resolve(file.getFileName()));
+                }
+            }
+        }
+        try (Directory dir = FSDirectory.open(restored)) {
+            assertFalse(DirectoryReader.indexExists(dir));
+        }
+
+        assertTrue(IndexSnapshots.restore(backupPath, restored));
+        assertEquals(100, count(restored));
+
+        try {
+            IndexSnapshots.restore(backupPath, restored);
+            fail("the directory already holds an index");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
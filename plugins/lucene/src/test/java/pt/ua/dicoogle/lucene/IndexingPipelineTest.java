@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.IndexingPipeline;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IndexingPipelineTest {
+
+    @Test
+    public void testBatch() throws InterruptedException {
+        IndexingPipeline pipeline = new IndexingPipeline(4, 2);
+        AtomicInteger done = new AtomicInteger();
+        IndexingPipeline.Batch batch = pipeline.newBatch();
+        for (int i = 0; i < 100; i++) {
+            batch.submit(done::incrementAndGet);
+        }
+        batch.await();
+        assertEquals(100, done.get());
+        pipeline.close();
+    }
+
+    @Test
+    public void testCloseDuringBatch() throws InterruptedException {
+        IndexingPipeline pipeline = new IndexingPipeline(2, 1);
+        AtomicInteger done = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        IndexingPipeline.Batch batch = pipeline.newBatch();
+        batch.submit(() -> {
+            started.countDown();
+            done.incrementAndGet();
+        });
+        started.await();
+
+        // the batch keeps its workers after the pipeline is replaced
+        pipeline.close();
+        for (int i = 0; i < 50; i++) {
+            batch.submit(done::incrementAndGet);
+        }
+        batch.await();
+        assertEquals(51, done.get());
+
+        // batches started afterwards run in the caller thread
+        IndexingPipeline.Batch late = pipeline.newBatch();
+        Thread caller = Thread.currentThread();
+        late.submit(() -> assertSame(caller, Thread.currentThread()));
+        late.await();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.IndexingPlan.ValueHandler;
+import dicoogle.lucene.dicom.abstraction.DicomDocument;
+import dicoogle.lucene.dicom.abstraction.DicomLongField;
+import dicoogle.lucene.dicom.abstraction.DicomLongPointField;
+import dicoogle.lucene.dicom.abstraction.DicomNumericField;
+import dicoogle.lucene.dicom.abstraction.DicomTextField;
+import dicoogle.lucene.dicom.abstraction.IDicomField;
+import org.dcm4che2.data.VR;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IndexingPlanTest {
+
+    private static IDicomField handle(ValueHandler handler, String value) {
+        DicomDocument doc = new DicomDocument();
+        handler.add(doc, "Field", value);
+        assertEquals(1, doc.getDicomFields().size());
+        return doc.getDicomFields().get(0);
+    }
+
+    @Test
+    public void testForVR() {
+        assertEquals(ValueHandler.INTEGER, ValueHandler.forVR(VR.IS));
+        assertEquals(ValueHandler.INTEGER, ValueHandler.forVR(VR.US));
+        assertEquals(ValueHandler.DECIMAL, ValueHandler.forVR(VR.DS));
+        assertEquals(ValueHandler.DECIMAL, ValueHandler.forVR(VR.FD));
+        assertEquals(ValueHandler.TEXT, ValueHandler.forVR(VR.PN));
+        assertEquals(ValueHandler.DATE, ValueHandler.forVR(VR.DA));
+        assertEquals(ValueHandler.TIME, ValueHandler.forVR(VR.TM));
+        assertEquals(ValueHandler.DATE_TIME, ValueHandler.forVR(VR.DT));
+    }
+
+    @Test
+    public void testInteger() {
+        assertEquals(42L, ((DicomLongField) handle(ValueHandler.INTEGER, "42")).getValue());
+        assertEquals(-7L, ((DicomLongField) handle(ValueHandler.INTEGER, "-7")).getValue());
+        assertEquals(Long.MAX_VALUE, ((DicomLongField) handle(ValueHandler.INTEGER, "9223372036854775807")).getValue());
+        assertEquals(Long.MIN_VALUE, ((DicomLongField) handle(ValueHandler.INTEGER, "-9223372036854775808")).getValue());
+        assertEquals(5L, ((DicomLongField) handle(ValueHandler.INTEGER, "0000000000000000000005")).getValue());
+
+        // not numbers, indexed as text
+        assertTrue(handle(ValueHandler.INTEGER, "9223372036854775808") instanceof DicomTextField);
+        assertTrue(handle(ValueHandler.INTEGER, "1\\2") instanceof DicomTextField);
+        assertTrue(handle(ValueHandler.INTEGER, "") instanceof DicomTextField);
+        assertTrue(handle(ValueHandler.INTEGER, "-") instanceof DicomTextField);
+        assertTrue(handle(ValueHandler.INTEGER, "1.5") instanceof DicomTextField);
+    }
+
+    @Test
+    public void testDecimal() {
+        assertEquals(1.5f, ((DicomNumericField) handle(ValueHandler.DECIMAL, "1.5")).getValue(), 0f);
+        assertEquals(-0.25f, ((DicomNumericField) handle(ValueHandler.DECIMAL, "-.25")).getValue(), 0f);
+        assertEquals(1500f, ((DicomNumericField) handle(ValueHandler.DECIMAL, "1.5E3")).getValue(), 0f);
+        assertEquals(3f, ((DicomNumericField) handle(ValueHandler.DECIMAL, "3.")).getValue(), 0f);
+
+        assertTrue(handle(ValueHandler.DECIMAL, "0.5\\0.5") instanceof DicomTextField);
+        assertTrue(handle(ValueHandler.DECIMAL, ".") instanceof DicomTextField);
+        assertTrue(handle(ValueHandler.DECIMAL, "1e") instanceof DicomTextField);
+        assertTrue(handle(ValueHandler.DECIMAL, "NaN") instanceof DicomTextField);
+        assertTrue(handle(ValueHandler.DECIMAL, "") instanceof DicomTextField);
+    }
+
+    @Test
+    public void testDate() {
+        DicomDocument doc = new DicomDocument();
+        ValueHandler.DATE.add(doc, "StudyDate", "20260115\\bad\\2026.02.01");
+        assertEquals(3, doc.getDicomFields().size());
+        assertEquals("20260115\\bad\\2026.02.01", ((DicomTextField) doc.getDicomFields().get(0)).getValue());
+        DicomLongPointField first = (DicomLongPointField) doc.getDicomFields().get(1);
+        assertEquals("_date_StudyDate", first.getName());
+        assertEquals(20260115L, first.getValue());
+        assertEquals(20260201L, ((DicomLongPointField) doc.getDicomFields().get(2)).getValue());
+
+        // invalid dates are only indexed as text
+        assertEquals(1, handleAll(ValueHandler.DATE, "unknown"));
+        assertEquals(1, handleAll(ValueHandler.DATE, ""));
+    }
+
+    private static int handleAll(ValueHandler handler, String value) {
+        DicomDocument doc = new DicomDocument();
+        handler.add(doc, "Field", value);
+        return doc.getDicomFields().size();
+    }
+}
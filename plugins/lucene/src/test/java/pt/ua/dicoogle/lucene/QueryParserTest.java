@@ -19,17 +19,31 @@
 package pt.ua.dicoogle.lucene;
 
 import dicoogle.lucene.GenericQueryParser;
+import dicoogle.lucene.IndexProfile;
+import dicoogle.lucene.IndexSchema;
+import dicoogle.lucene.dicom.abstraction.ReusableDocument;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.DoublePoint;
 import org.apache.lucene.document.FloatPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.BytesRefBuilder;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.Collections;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 /**
  * @author Eduardo Pinho <eduardopinho@ua.pt>
@@ -42,37 +56,46 @@ public class QueryParserTest {
         analyzer = new StandardAnalyzer();
     }
 
-    @Test
-    public void test1() throws ParseException {
-        String queryText = "MyStringS:Float:[1 TO 10]";
-
-        Query expected = FloatPoint.newRangeQuery("_point_MyStringS", 1, 10);
-
-        GenericQueryParser parser = new GenericQueryParser("others", analyzer);
-
-        assertEquals(expected, parser.parse(queryText));
+    /**
+     * Counts the matches of a query on a document with integer and decimal attributes,
+     * indexed on their typed points.
+     */
+    private int count(String queryText) throws ParseException, IOException {
+        Directory dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer))) {
+            ReusableDocument doc = new ReusableDocument();
+            doc.add("MyStringS", 5L);
+            doc.add("SeriesNumber", 5L);
+            doc.add("AccessionNumber", 2.5);
+            doc.add("SliceThickness", 2.5);
+            doc.add("Something", 0.5);
+            writer.addDocument(doc);
+        }
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            return new IndexSearcher(reader).count(new GenericQueryParser(analyzer).parse(queryText));
+        }
     }
 
     @Test
-    public void test2() throws ParseException {
-        String queryText = "AccessionNumber:Int:[1 TO 10]";
-
-        Query expected = FloatPoint.newRangeQuery("_point_AccessionNumber", 1, 10);
-
-        GenericQueryParser parser = new GenericQueryParser(analyzer);
-
-        assertEquals(expected, parser.parse(queryText));
+    public void test1() throws ParseException, IOException {
+        // the keyword of the older syntax does not have to match the type of the values
+        assertEquals(1, count("MyStringS:Float:[1 TO 10]"));
+        assertEquals(1, count("SeriesNumber:Float:[1 TO 10]"));
+        assertEquals(0, count("SeriesNumber:Float:[6 TO 10]"));
     }
 
     @Test
-    public void test3() throws ParseException {
-        String queryText = "Something:Numeric:[0.25 TO 0.75]";
-
-        Query expected = FloatPoint.newRangeQuery("_point_Something", 0.25f, 0.75f);
-
-        GenericQueryParser parser = new GenericQueryParser(analyzer);
+    public void test2() throws ParseException, IOException {
+        assertEquals(1, count("AccessionNumber:Int:[1 TO 10]"));
+        assertEquals(1, count("SliceThickness:Int:[1 TO 10]"));
+        assertEquals(0, count("SliceThickness:Int:[3 TO 10]"));
+    }
 
-        assertEquals(expected, parser.parse(queryText));
+    @Test
+    public void test3() throws ParseException, IOException {
+        assertEquals(1, count("Something:Numeric:[0.25 TO 0.75]"));
+        assertEquals(1, count("SeriesNumber:Numeric:[4.5 TO 5.5]"));
+        assertEquals(0, count("Something:Numeric:[0.75 TO 1]"));
     }
 
     @Test
@@ -108,4 +131,112 @@ public class QueryParserTest {
         assertEquals(expected.getClass(), parser.parse(queryText).getClass());
         assertEquals(expected, parser.parse(queryText));
     }
+
+    @Test
+    public void testKeyedNested() throws ParseException {
+        IndexSchema schema = new IndexSchema(true, Collections.singleton("ReferencedSeriesSequence"));
+        GenericQueryParser parser = new GenericQueryParser(analyzer);
+        parser.setSchema(schema);
+
+        assertEquals(new TermQuery(new Term("_nested", "ContentSequence_CodeValue=T-04000")),
+                parser.parse("ContentSequence_CodeValue:T\\-04000"));
+        assertEquals(new WildcardQuery(new Term("_nested", "ContentSequence_CodeMeaning=Br*st")),
+                parser.parse("ContentSequence_CodeMeaning:Br*st"));
+        assertEquals(new PrefixQuery(new Term("_nested", "ContentSequence_CodeMeaning=Bre")),
+                parser.parse("ContentSequence_CodeMeaning:Bre*"));
+        assertEquals(TermRangeQuery.newStringRange("_nested",
+                "ContentSequence_Value=1", "ContentSequence_Value=5", true, false),
+                parser.parse("ContentSequence_Value:[1 TO 5}"));
+
+        // dedicated sequences and top-level attributes keep their own fields
+        assertEquals(new TermQuery(new Term("ReferencedSeriesSequence_SeriesInstanceUID", "1.2.3")),
+                parser.parse("ReferencedSeriesSequence_SeriesInstanceUID:1.2.3"));
+        assertEquals(new TermQuery(new Term("PatientName", "salvador")),
+                parser.parse("PatientName:Salvador"));
+    }
+
+    @Test
+    public void testExistence() throws ParseException {
+        GenericQueryParser parser = new GenericQueryParser(analyzer);
+
+        assertEquals(new TermQuery(new Term("_exists_", "PatientName")),
+                parser.parse("_exists_:PatientName"));
+        assertEquals(new PrefixQuery(new Term("_exists_", "ContentSequence_")),
+                parser.parse("_exists_:ContentSequence_*"));
+
+        Query missing = new BooleanQuery.Builder()
+                .add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST)
+                .add(new TermQuery(new Term("_exists_", "PatientName")), BooleanClause.Occur.MUST_NOT)
+                .build();
+        assertEquals(missing, parser.parse("_missing_:PatientName"));
+    }
+
+    @Test
+    public void testExistenceOnLegacyIndex() throws ParseException {
+        GenericQueryParser parser = new GenericQueryParser(analyzer);
+        parser.setSchema(IndexSchema.DEFAULT.withExistence(false));
+        // old documents have no existence terms, so neither query would be right
+        for (String query : new String[]{"_exists_:PatientName", "_missing_:PatientName", "_missing_:Content*"}) {
+            try {
+                parser.parse(query);
+                fail("Parsed " + query);
+            } catch (ParseException ex) {
+                // expected
+            }
+        }
+        assertEquals(new TermQuery(new Term("PatientName", "salvador")), parser.parse("PatientName:Salvador"));
+    }
+
+    @Test
+    public void testTypedRanges() throws ParseException {
+        GenericQueryParser parser = new GenericQueryParser(analyzer);
+
+        assertEquals(LongPoint.newRangeQuery("_long_SeriesNumber", 1, 9),
+                parser.parse("SeriesNumber#long:{0 TO 10}"));
+        assertEquals(LongPoint.newRangeQuery("_long_SeriesNumber", 2, Long.MAX_VALUE),
+                parser.parse("SeriesNumber#long:[1.5 TO *]"));
+        // beyond the precision of floats
+        assertEquals(LongPoint.newRangeQuery("_long_FileSize", 16777217L, 16777217L),
+                parser.parse("FileSize#long:16777217"));
+        assertEquals(DoublePoint.newRangeQuery("_double_SliceThickness", Math.nextUp(0.5), 2.5),
+                parser.parse("SliceThickness#double:{0.5 TO 2.5]"));
+        assertEquals(DoublePoint.newRangeQuery("_double_SliceThickness", Double.NEGATIVE_INFINITY, Math.nextDown(2.5)),
+                parser.parse("SliceThickness#double:[* TO 2.5}"));
+        // the older syntax does not touch values
+        assertEquals(new TermQuery(new Term("PatientName", "int")), parser.parse("PatientName:Int"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testUnknownType() throws ParseException {
+        new GenericQueryParser(analyzer).parse("SeriesNumber#short:[1 TO 2]");
+    }
+
+    @Test
+    public void testLegacyPoints() throws ParseException {
+        GenericQueryParser parser = new GenericQueryParser(analyzer);
+        parser.setSchema(IndexSchema.DEFAULT.withTypedPoints(false));
+
+        assertEquals(FloatPoint.newRangeQuery("_point_MyStringS", 1, 10),
+                parser.parse("MyStringS:Float:[1 TO 10]"));
+        assertEquals(FloatPoint.newRangeQuery("_point_MyStringS", Math.nextUp(1f), Float.POSITIVE_INFINITY),
+                parser.parse("MyStringS:Float:{1 TO *]"));
+    }
+
+    @Test
+    public void testSubstring() throws ParseException {
+        IndexSchema schema = new IndexSchema(IndexProfile.SCORED, true, false,
+                Collections.<String>emptySet(), Collections.singleton("PatientName"));
+        GenericQueryParser parser = new GenericQueryParser(analyzer);
+        parser.setAllowLeadingWildcard(true);
+        parser.setSchema(schema);
+
+        assertEquals(new PrefixQuery(new Term("_suffix_PatientName", "silva")), parser.parse("PatientName:*SILVA*"));
+        assertEquals(new TermQuery(new Term("_suffix_PatientName", "silva")), parser.parse("PatientName:*SILVA"));
+        assertEquals(new WildcardQuery(new Term("_suffix_PatientName", "sil?a*")), parser.parse("PatientName:*SIL?A*"));
+
+        // other forms and fields are not rewritten
+        assertEquals(new PrefixQuery(new Term("PatientName", "sil")), parser.parse("PatientName:SIL*"));
+        assertEquals(new WildcardQuery(new Term("PatientName", "*?ilva")), parser.parse("PatientName:*?ILVA"));
+        assertEquals(new WildcardQuery(new Term("StudyDescription", "*chest*")), parser.parse("StudyDescription:*CHEST*"));
+    }
 }
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.IndexSchema;
+import dicoogle.lucene.StoragePolicy;
+import dicoogle.lucene.dicom.abstraction.DicomDocument;
+import dicoogle.lucene.dicom.abstraction.IFieldSink;
+import dicoogle.lucene.dicom.abstraction.ReusableDocument;
+import dicoogle.lucene.query.ShardResultStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ReusableDocumentTest {
+
+    private static void fill(IFieldSink doc, String name, long number) {
+        doc.addKeyword("SOPInstanceUID", "1.2.3." + number);
+        doc.add("PatientName", name);
+        doc.add("SeriesNumber", number);
+        doc.add("SliceThickness", number / 2.0f);
+        doc.add("ContentSequence_CodeValue", "A" + number);
+        doc.add("ContentSequence_CodeValue", "B" + number);
+    }
+
+    private static List<String> describe(Iterable<? extends IndexableField> fields) {
+        List<String> out = new ArrayList<>();
+        for (IndexableField f : fields) {
+            out.add(f.name() + "|" + f.fieldType() + "|" + f.stringValue() + "|" + f.numericValue());
+        }
+        return out;
+    }
+
+    @Test
+    public void testSameFieldsAsDicomDocument() {
+        DicomDocument expected = new DicomDocument();
+        fill(expected, "Doe^John", 3);
+        ReusableDocument doc = new ReusableDocument();
+        fill(doc, "Doe^John", 3);
+
+        Document expectedDoc = expected.toDocument();
+        assertEquals(describe(expectedDoc.getFields()), describe(doc));
+        assertEquals("1.2.3.3", doc.get("SOPInstanceUID"));
+        assertEquals("Doe^John", doc.get("PatientName"));
+    }
+
+    @Test
+    public void testReuse() {
+        ReusableDocument doc = new ReusableDocument();
+        fill(doc, "Doe^John", 3);
+        List<IndexableField> first = new ArrayList<>();
+        doc.forEach(first::add);
+
+        doc.reset();
+        fill(doc, "Roe^Jane", 8);
+        List<IndexableField> second = new ArrayList<>();
+        doc.forEach(second::add);
+
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertSame(first.get(i), second.get(i));
+        }
+        assertEquals("Roe^Jane", doc.get("PatientName"));
+        assertEquals("1.2.3.8", doc.get("SOPInstanceUID"));
+
+        DicomDocument expected = new DicomDocument();
+        fill(expected, "Roe^Jane", 8);
+        assertEquals(describe(expected.toDocument().getFields()), describe(doc));
+
+        // fewer values than before
+        doc.reset();
+        doc.add("PatientName", "X");
+        assertEquals(1, describe(doc).size());
+    }
+
+    @Test
+    public void testStoragePolicy() throws IOException {
+        Map<String, StoragePolicy> storage = new HashMap<>();
+        storage.put("PatientName", StoragePolicy.INDEXED);
+        storage.put("SeriesNumber", StoragePolicy.DOC_VALUES);
+        storage.put("StudyDescription", StoragePolicy.DOC_VALUES);
+        IndexSchema schema = IndexSchema.DEFAULT.withStorage(storage, StoragePolicy.INDEXED);
+        assertEquals(StoragePolicy.STORED, schema.getStorage("SliceThickness"));
+        assertEquals(StoragePolicy.INDEXED, schema.getStorage("ContentSequence_CodeValue"));
+        assertEquals(StoragePolicy.INDEXED, schema.getStorage("ContentSequence"));
+
+        ReusableDocument doc = new ReusableDocument();
+        doc.setStorage(schema);
+        doc.addKeyword("uri", "file:/a/1.dcm");
+        fill(doc, "Doe^John", 3);
+        doc.add("StudyDescription", "Chest");
+
+        try (Directory dir = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            writer.addDocument(doc);
+            writer.commit();
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                // values which are not stored are still searchable
+                assertEquals(1, searcher.count(new TermQuery(new Term("PatientName", "doe"))));
+                assertEquals(1, searcher.count(new TermQuery(new Term("ContentSequence_CodeValue", "a3"))));
+
+                Document all = new ShardResultStream(searcher, new MatchAllDocsQuery()).getDocument(0);
+                assertEquals("1.2.3.3", all.get("SOPInstanceUID"));
+                assertNotNull(all.getField("SliceThickness"));
+                assertNull(all.get("PatientName"));
+                assertNull(all.get("ContentSequence_CodeValue"));
+                assertEquals("Chest", all.get("StudyDescription"));
+                assertEquals("3", all.get("SeriesNumber"));
+
+                HashMap<String, Object> extraFields = new HashMap<>();
+                extraFields.put("StudyDescription", "");
+                Document some = new ShardResultStream(searcher, new MatchAllDocsQuery(), extraFields).getDocument(0);
+                assertEquals("Chest", some.get("StudyDescription"));
+                assertEquals("file:/a/1.dcm", some.get("uri"));
+                assertNull(some.get("SOPInstanceUID"));
+            }
+        }
+    }
+
+    @Test
+    public void testKeyedNestedStorage() throws IOException {
+        IndexSchema schema = new IndexSchema(true, Collections.<String>emptySet());
+        assertEquals(StoragePolicy.INDEXED, schema.getNestedStorage());
+        ReusableDocument doc = new ReusableDocument();
+        doc.setStorage(schema);
+        doc.addKeyword("uri", "file:/a/1.dcm");
+        schema.addKeyed(doc, "ContentSequence_CodeValue", "T-04000");
+
+        try (Directory dir = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            writer.addDocument(doc);
+            doc.reset();
+            IndexSchema stored = schema.withStorage(new HashMap<String, StoragePolicy>(), StoragePolicy.STORED);
+            doc.setStorage(stored);
+            doc.addKeyword("uri", "file:/a/2.dcm");
+            stored.addKeyed(doc, "ContentSequence_CodeValue", "T-04000");
+            writer.addDocument(doc);
+            writer.commit();
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                assertEquals(2, searcher.count(new TermQuery(new Term(IndexSchema.NESTED_FIELD,
+                        "ContentSequence_CodeValue=T-04000"))));
+                // keyed values follow the storage policy of nested attributes
+                assertNull(reader.document(0).get(IndexSchema.NESTED_FIELD));
+                assertEquals("ContentSequence_CodeValue=T-04000", reader.document(1).get(IndexSchema.NESTED_FIELD));
+            }
+        }
+    }
+}
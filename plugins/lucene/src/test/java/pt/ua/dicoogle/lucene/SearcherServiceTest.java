@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.SearcherService;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SearcherServiceTest {
+
+    private Directory directory;
+    private IndexWriter writer;
+    private SearcherService searchers;
+
+    @Before
+    public void init() throws IOException {
+        directory = new RAMDirectory();
+        writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()));
+        searchers = new SearcherService(writer, 60000, 60);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        searchers.close();
+        writer.close();
+        directory.close();
+    }
+
+    private static Document doc(String uri) {
+        Document doc = new Document();
+        doc.add(new StringField("uri", uri, Field.Store.YES));
+        return doc;
+    }
+
+    @Test
+    public void testExistsTerm() throws IOException {
+        writer.addDocument(doc("file:/a/1.dcm"));
+        writer.commit();
+        writer.addDocument(doc("file:/a/2.dcm"));
+        searchers.refresh();
+
+        assertTrue(searchers.exists(new Term("uri", "file:/a/1.dcm")));
+        // uncommitted documents are seen once the searcher is refreshed
+        assertTrue(searchers.exists(new Term("uri", "file:/a/2.dcm")));
+        assertFalse(searchers.exists(new Term("uri", "file:/a/3.dcm")));
+        assertFalse(searchers.exists(new Term("uri", "file:/a")));
+        assertFalse(searchers.exists(new Term("nofield", "file:/a/1.dcm")));
+
+        // deleted documents are not reported
+        writer.deleteDocuments(new Term("uri", "file:/a/1.dcm"));
+        searchers.refresh();
+        assertFalse(searchers.exists(new Term("uri", "file:/a/1.dcm")));
+        assertTrue(searchers.exists(new Term("uri", "file:/a/2.dcm")));
+    }
+
+    @Test
+    public void testUnpin() throws IOException {
+        writer.addDocument(doc("file:/a/1.dcm"));
+        searchers.refresh();
+        long token = searchers.pin();
+        assertTrue(searchers.repin(token));
+        searchers.unpin(token);
+
+        // still pinned once, so it survives being replaced
+        writer.addDocument(doc("file:/a/2.dcm"));
+        searchers.refresh();
+        IndexSearcher old = searchers.acquire(token);
+        assertNotNull(old);
+        assertEquals(1, old.getIndexReader().numDocs());
+        searchers.releasePinned(old);
+
+        // released as soon as the last pin is
+        searchers.unpin(token);
+        assertNull(searchers.acquire(token));
+        assertFalse(searchers.repin(token));
+    }
+
+    @Test
+    public void testPinnedAfterClose() throws IOException {
+        writer.addDocument(doc("file:/a/1.dcm"));
+        searchers.refresh();
+        long token = searchers.pin();
+        searchers.close();
+
+        // the open stream keeps its searcher
+        IndexSearcher pinned = searchers.acquire(token);
+        assertNotNull(pinned);
+        assertEquals(1, pinned.search(new MatchAllDocsQuery(), 10).totalHits);
+        searchers.releasePinned(pinned);
+
+        searchers.unpin(token);
+        assertNull(searchers.acquire(token));
+    }
+
+    @Test
+    public void testShards() throws IOException {
+        try (Directory dir1 = new RAMDirectory(); Directory dir2 = new RAMDirectory();
+             IndexWriter shard1 = new IndexWriter(dir1, new IndexWriterConfig(new StandardAnalyzer()));
+             IndexWriter shard2 = new IndexWriter(dir2, new IndexWriterConfig(new StandardAnalyzer()))) {
+            try (SearcherService sharded = new SearcherService(Arrays.asList(shard1, shard2), 60000, 60)) {
+                for (int i = 0; i < 10; i++) {
+                    (i % 2 == 0 ? shard1 : shard2).addDocument(doc("file:/a/" + i + ".dcm"));
+                }
+                sharded.refresh();
+                assertTrue(sharded.exists(new Term("uri", "file:/a/0.dcm")));
+                assertTrue(sharded.exists(new Term("uri", "file:/a/1.dcm")));
+                long token = sharded.pin();
+                assertEquals(token, sharded.pin());
+
+                // a change in one shard refreshes the searcher
+                shard2.addDocument(doc("file:/a/10.dcm"));
+                sharded.refresh();
+                IndexSearcher searcher = sharded.acquire();
+                try {
+                    TopDocs hits = searcher.search(new MatchAllDocsQuery(), 20);
+                    assertEquals(11, hits.totalHits);
+                    assertEquals(11, hits.scoreDocs.length);
+                } finally {
+                    sharded.release(searcher);
+                }
+
+                // the pinned searcher still reads the shards as they were
+                IndexSearcher pinned = sharded.acquire(token);
+                assertNotNull(pinned);
+                try {
+                    assertEquals(10, pinned.getIndexReader().numDocs());
+                    // documents are loaded from the shard which holds them
+                    TopDocs hits = pinned.search(new TermQuery(new Term("uri", "file:/a/9.dcm")), 1);
+                    assertEquals("file:/a/9.dcm", pinned.doc(hits.scoreDocs[0].doc).get("uri"));
+                } finally {
+                    sharded.releasePinned(pinned);
+                }
+            }
+        }
+    }
+}
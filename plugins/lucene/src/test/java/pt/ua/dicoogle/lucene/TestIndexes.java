@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.dicom.abstraction.ReusableDocument;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Sample indexes shared by the tests.
+ */
+final class TestIndexes {
+
+    private TestIndexes() {
+    }
+
+    /**
+     * Indexes n sample documents in memory, merged into a single segment.
+     */
+    static Directory index(IndexWriterConfig config, int n) throws IOException {
+        return index(config, new ReusableDocument(), n);
+    }
+
+    /**
+     * Indexes n sample documents in memory with the given document, merged into a single segment.
+     */
+    static Directory index(IndexWriterConfig config, ReusableDocument doc, int n) throws IOException {
+        Directory dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, config)) {
+            for (int i = 0; i < n; i++) {
+                doc.reset();
+                doc.addKeyword("SOPInstanceUID", "1.2.3." + i);
+                doc.add("PatientName", "Doe^John " + (i % 100));
+                doc.add("Modality", (i % 2 == 0) ? "CT" : "MR");
+                doc.add("StudyDescription", "CHEST WO CONTRAST " + (i % 7));
+                doc.add("SeriesNumber", (long) (i % 10));
+                doc.add("others", new StringReader("Doe^John " + i + " CHEST WO CONTRAST"));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        return dir;
+    }
+
+    /**
+     * Adds documents holding only the URIs file:/a/first.dcm to file:/a/(first + n - 1).dcm.
+     */
+    static void add(IndexWriter writer, int first, int n) throws IOException {
+        add(writer, "a", first, n);
+    }
+
+    /**
+     * Adds documents holding only the URIs of files first to first + n - 1 in a folder.
+     */
+    static void add(IndexWriter writer, String folder, int first, int n) throws IOException {
+        for (int i = first; i < first + n; i++) {
+            Document doc = new Document();
+            doc.add(new StringField("uri", "file:/" + folder + "/" + i + ".dcm", Field.Store.YES));
+            writer.addDocument(doc);
+        }
+    }
+
+    /**
+     * @return the total size of the files in a directory
+     */
+    static long size(Directory dir) throws IOException {
+        long size = 0;
+        for (String file : dir.listAll()) {
+            size += dir.fileLength(file);
+        }
+        return size;
+    }
+}
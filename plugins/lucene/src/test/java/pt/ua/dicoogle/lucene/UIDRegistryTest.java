@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.registry.UIDRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class UIDRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String uid(int i) {
+        return "1.2.826.0.1.3680043.8.498." + i;
+    }
+
+    @Test
+    public void testAddContainsRemove() throws IOException {
+        try (UIDRegistry registry = UIDRegistry.open(folder.getRoot().toPath(), 1024, 10)) {
+            assertTrue(registry.isRebuildNeeded());
+            assertTrue(registry.add(uid(1)));
+            assertFalse(registry.add(uid(1)));
+            assertTrue(registry.contains(uid(1)));
+            assertFalse(registry.contains(uid(2)));
+            assertEquals(1, registry.size());
+
+            assertTrue(registry.remove(uid(1)));
+            assertFalse(registry.remove(uid(1)));
+            assertFalse(registry.contains(uid(1)));
+            assertEquals(0, registry.size());
+
+            // deleted slots are reused
+            assertTrue(registry.add(uid(1)));
+            assertEquals(1, registry.size());
+        }
+    }
+
+    @Test
+    public void testGrowth() throws IOException {
+        final int n = 20000;
+        try (UIDRegistry registry = UIDRegistry.open(folder.getRoot().toPath(), 1024, 10)) {
+            for (int i = 0; i < n; i++) {
+                assertTrue(registry.add(uid(i)));
+            }
+            assertEquals(n, registry.size());
+            for (int i = 0; i < n; i++) {
+                assertTrue(registry.contains(uid(i)));
+            }
+            for (int i = n; i < 2 * n; i++) {
+                assertFalse(registry.contains(uid(i)));
+            }
+            // about 1% with 10 bits per entry
+            assertTrue(registry.observedFalsePositiveRate() < 0.05);
+            assertTrue(registry.expectedFalsePositiveRate() < 0.05);
+        }
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (UIDRegistry registry = UIDRegistry.open(dir, 1024, 10)) {
+            for (int i = 0; i < 5000; i++) {
+                registry.add(uid(i));
+            }
+            registry.markClean();
+        }
+
+        try (UIDRegistry registry = UIDRegistry.open(dir, 1024, 10)) {
+            assertFalse(registry.isRebuildNeeded());
+            assertEquals(5000, registry.size());
+            assertTrue(registry.contains(uid(4999)));
+            assertFalse(registry.contains(uid(5000)));
+            // not marked clean this time
+            registry.add(uid(5000));
+        }
+
+        try (UIDRegistry registry = UIDRegistry.open(dir, 1024, 10)) {
+            assertTrue(registry.isRebuildNeeded());
+            assertEquals(0, registry.size());
+        }
+    }
+}
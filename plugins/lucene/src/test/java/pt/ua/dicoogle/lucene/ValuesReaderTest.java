@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.lucene;
+
+import dicoogle.lucene.dicom.ValuesReader;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class ValuesReaderTest {
+
+    private static String readAll(Reader reader, int bufferSize) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[bufferSize];
+        int n;
+        while ((n = reader.read(buf, 0, buf.length)) != -1) {
+            sb.append(buf, 0, n);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        assertEquals("CT HEAD  1.2.3", readAll(new ValuesReader(Arrays.asList("CT", "HEAD", "", "1.2.3")), 1));
+        assertEquals("CT HEAD  1.2.3", readAll(new ValuesReader(Arrays.asList("CT", "HEAD", "", "1.2.3")), 4));
+        assertEquals("CT HEAD  1.2.3", readAll(new ValuesReader(Arrays.asList("CT", "HEAD", "", "1.2.3")), 1024));
+        assertEquals("", readAll(new ValuesReader(Collections.emptyList()), 16));
+    }
+}